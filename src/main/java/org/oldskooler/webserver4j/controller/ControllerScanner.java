@@ -5,11 +5,15 @@ import org.oldskooler.inject4j.ServiceCollection;
 import org.oldskooler.inject4j.ServiceProvider;
 import org.oldskooler.webserver4j.http.HttpContext;
 import org.oldskooler.webserver4j.http.HttpMethod;
+import org.oldskooler.webserver4j.routing.AsyncRouteHandler;
 import org.oldskooler.webserver4j.routing.RouteHandler;
+import org.oldskooler.webserver4j.routing.RouteOptions;
 import org.oldskooler.webserver4j.routing.Router;
+import org.oldskooler.webserver4j.session.Session;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.Parameter;
@@ -18,6 +22,9 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
@@ -55,7 +62,9 @@ import java.util.jar.JarFile;
  * with a few convenience fallbacks (e.g., route/query by parameter name for
  * String parameters). Methods may return an {@link ActionResult}, {@link String}
  * (treated as <code>text/plain</code> OK), or any object (serialized via
- * {@link HttpContext#json(Object)}).
+ * {@link HttpContext#json(Object)}). A method returning a
+ * {@link java.util.concurrent.CompletionStage} of any of these is registered as an
+ * {@link AsyncRouteHandler} and answered when the stage completes.
  */
 public class ControllerScanner {
     private final ServiceCollection services;
@@ -169,17 +178,38 @@ public class ControllerScanner {
         }
 
         this.services.addScoped(controllerType);
+        Execution typeExecution = controllerType.getAnnotation(Execution.class);
+        RequestSizeLimit typeLimit = controllerType.getAnnotation(RequestSizeLimit.class);
 
         for (Method m : controllerType.getDeclaredMethods()) {
             String route = resolveMethodRoute(m);
             if (route == null) continue;
             HttpMethod verb = resolveVerb(m);
             String template = normalize(prefix, route);
-            RouteHandler handler = (ctx) -> invokeController(controllerType, m, ctx);
-            router.map(verb, template, handler);
+            RouteHandler handler = CompletionStage.class.isAssignableFrom(m.getReturnType())
+                    ? (AsyncRouteHandler) (ctx) -> invokeControllerAsync(controllerType, m, ctx)
+                    : (ctx) -> invokeController(controllerType, m, ctx);
+            router.map(verb, template, handler, resolveOptions(m, typeExecution, typeLimit));
         }
     }
 
+    /**
+     * Builds route options from the method's annotations, falling back to the controller's.
+     */
+    private RouteOptions resolveOptions(Method m, Execution typeExecution, RequestSizeLimit typeLimit) {
+        RouteOptions options = new RouteOptions();
+        Execution execution = m.getAnnotation(Execution.class);
+        if (execution == null) execution = typeExecution;
+        if (execution != null) options.execution(execution.value());
+
+        RequestSizeLimit limit = m.getAnnotation(RequestSizeLimit.class);
+        if (limit == null) limit = typeLimit;
+        if (limit != null) options.maxBodySize(limit.value());
+
+        if (m.isAnnotationPresent(StreamBody.class)) options.streamBody();
+        return options;
+    }
+
     /**
      * Combines a controller-level prefix with a method route into a normalized template.
      *
@@ -235,13 +265,80 @@ public class ControllerScanner {
             Object controller = scope.getService(controllerType);
             Object[] args = bindParameters(method, ctx);
             Object result = method.invoke(controller, args);
-            if (result instanceof ActionResult) {
-                return (ActionResult) result;
+            return toActionResult(ctx, result);
+        }
+    }
+
+    /**
+     * Invokes a controller action that returns a {@link CompletionStage}. The DI scope stays
+     * open until the stage completes, so scoped services remain usable by the async work.
+     * Cancelling the returned future cancels the action's own stage and closes the scope, even
+     * if that stage ignores the cancellation.
+     */
+    private CompletionStage<ActionResult> invokeControllerAsync(Class<?> controllerType, Method method,
+                                                                HttpContext ctx) throws Exception {
+        Scope scope = this.provider.createScope();
+        CompletionStage<?> stage;
+        try {
+            Object controller = scope.getService(controllerType);
+            Object[] args = bindParameters(method, ctx);
+            stage = (CompletionStage<?>) method.invoke(controller, args);
+        } catch (Exception | Error e) {
+            closeQuietly(scope);
+            throw e;
+        }
+        if (stage == null) {
+            closeQuietly(scope);
+            return null;
+        }
+        AtomicBoolean closed = new AtomicBoolean();
+        CompletableFuture<ActionResult> result = new CompletableFuture<ActionResult>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                boolean cancelled = super.cancel(mayInterruptIfRunning);
+                if (cancelled) {
+                    try {
+                        stage.toCompletableFuture().cancel(mayInterruptIfRunning);
+                    } catch (UnsupportedOperationException ignored) {
+                        // stage cannot be cancelled from outside; it runs to completion
+                    }
+                    if (closed.compareAndSet(false, true)) closeQuietly(scope);
+                }
+                return cancelled;
             }
-            if (result instanceof String) {
-                return ctx.ok((String) result);
+        };
+        stage.whenComplete((r, ex) -> {
+            try {
+                if (result.isDone()) return;
+                if (ex != null) {
+                    result.completeExceptionally(ex);
+                } else {
+                    result.complete(toActionResult(ctx, r));
+                }
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            } finally {
+                if (closed.compareAndSet(false, true)) closeQuietly(scope);
             }
-            return ctx.json(result);
+        });
+        return result;
+    }
+
+    private static ActionResult toActionResult(HttpContext ctx, Object result) {
+        if (result instanceof ActionResult) {
+            return (ActionResult) result;
+        }
+        if (result instanceof String) {
+            return ctx.ok((String) result);
+        }
+        return ctx.json(result);
+    }
+
+    private static void closeQuietly(Scope scope) {
+        try {
+            scope.close();
+        } catch (Exception ignored) {
+            // nothing sensible to do once the response is under way
         }
     }
 
@@ -259,9 +356,10 @@ public class ControllerScanner {
             Parameter p = params[i];
             Class<?> t = p.getType();
             if (t.isAssignableFrom(HttpContext.class)) { values[i] = ctx; continue; }
+            if (t == InputStream.class) { values[i] = ctx.request().getBody(); continue; }
 
             FromRoute fr = p.getAnnotation(FromRoute.class);
-            if (fr != null) { values[i] = ctx.request().getRouteParams().get(fr.value()); continue; }
+            if (fr != null) { values[i] = ctx.request().getRouteParam(fr.value()); continue; }
 
             FromQuery fq = p.getAnnotation(FromQuery.class);
             if (fq != null) { values[i] = ctx.request().getQuery().get(fq.value()); continue; }
@@ -270,10 +368,15 @@ public class ControllerScanner {
             if (ff != null) { values[i] = ctx.request().getForm().get(ff.value()); continue; }
 
             FromSession fs = p.getAnnotation(FromSession.class);
-            if (fs != null) { values[i] = ctx.session().data().get(fs.value()); continue; }
+            if (fs != null) {
+                Session session = ctx.peekSession();
+                values[i] = session == null ? null : session.data().get(fs.value());
+                continue;
+            }
 
             String name = p.getName();
-            String v = ctx.request().getRouteParams().getOrDefault(name, ctx.request().getQuery().get(name));
+            String v = ctx.request().getRouteParam(name);
+            if (v == null) v = ctx.request().getQuery().get(name);
             if (v != null && t == String.class) { values[i] = v; continue; }
 
             values[i] = null;
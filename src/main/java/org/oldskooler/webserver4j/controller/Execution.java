@@ -0,0 +1,18 @@
+package org.oldskooler.webserver4j.controller;
+
+import org.oldskooler.webserver4j.http.ExecutionModel;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Overrides the server's execution model for a controller or a single action.
+ * An annotation on the method takes precedence over one on the class.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+public @interface Execution {
+    ExecutionModel value();
+}
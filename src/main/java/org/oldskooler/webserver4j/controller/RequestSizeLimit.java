@@ -0,0 +1,17 @@
+package org.oldskooler.webserver4j.controller;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Overrides the server's maximum request body size for a controller or a single action.
+ * An annotation on the method takes precedence over one on the class.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+public @interface RequestSizeLimit {
+    /** Maximum body size in bytes; -1 for no limit. */
+    long value();
+}
@@ -0,0 +1,15 @@
+package org.oldskooler.webserver4j.controller;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Streams the request body to the action instead of buffering it first. Bind it with an
+ * {@link java.io.InputStream} parameter or read {@code ctx.request().getBody()}.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface StreamBody {
+}
@@ -0,0 +1,20 @@
+package org.oldskooler.webserver4j.http;
+
+/**
+ * Where interceptors and route handlers run.
+ * <p>
+ * Netty I/O threads multiplex many connections, so a handler that blocks on a database,
+ * a downstream service or a slow template holds up every connection on its event loop.
+ * Moving such handlers off the event loop keeps I/O threads doing only parsing and writing.
+ */
+public enum ExecutionModel {
+    /** Run inline on the connection's event loop. Cheapest for handlers that never block. */
+    EVENT_LOOP,
+    /** Run on a bounded thread pool shared by all offloaded requests. */
+    WORKER_POOL,
+    /**
+     * Run each request on its own virtual thread. Needs Java 21 or newer; on older runtimes
+     * this falls back to {@link #WORKER_POOL}.
+     */
+    VIRTUAL_THREADS
+}
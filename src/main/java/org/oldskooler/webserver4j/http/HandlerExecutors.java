@@ -0,0 +1,119 @@
+package org.oldskooler.webserver4j.http;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resolves an {@link ExecutionModel} to the executor that runs request handlers.
+ * <p>
+ * Executors are created on first use, so a server whose routes all stay on the event loop
+ * never starts a pool. The worker pool is bounded in both threads and queued tasks; once it is
+ * full, {@link Executor#execute(Runnable)} throws
+ * {@link java.util.concurrent.RejectedExecutionException}.
+ */
+public final class HandlerExecutors {
+    private final ExecutionModel defaultModel;
+    private final int poolThreads;
+    private final int queueCapacity;
+
+    private volatile ExecutorService workerPool;
+    private volatile ExecutorService virtualThreads;
+
+    /**
+     * @param defaultModel  model for routes without an explicit one
+     * @param poolThreads   worker pool size; 0 uses 8 threads per core
+     * @param queueCapacity worker pool queue length; 0 uses 1024
+     */
+    public HandlerExecutors(ExecutionModel defaultModel, int poolThreads, int queueCapacity) {
+        this.defaultModel = defaultModel == null ? ExecutionModel.EVENT_LOOP : defaultModel;
+        this.poolThreads = poolThreads > 0 ? poolThreads : Runtime.getRuntime().availableProcessors() * 8;
+        this.queueCapacity = queueCapacity > 0 ? queueCapacity : 1024;
+    }
+
+    /** @return the model used for routes that do not choose one */
+    public ExecutionModel defaultModel() {
+        return defaultModel;
+    }
+
+    /**
+     * @param model model chosen by the route, or null to use the default
+     * @return executor to run the handler on, or null to run it inline on the event loop
+     */
+    public Executor executorFor(ExecutionModel model) {
+        switch (model != null ? model : defaultModel) {
+            case WORKER_POOL:
+                return workerPool();
+            case VIRTUAL_THREADS:
+                return virtualThreads();
+            default:
+                return null;
+        }
+    }
+
+    private ExecutorService workerPool() {
+        ExecutorService pool = workerPool;
+        if (pool == null) {
+            synchronized (this) {
+                pool = workerPool;
+                if (pool == null) {
+                    ThreadPoolExecutor tpe = new ThreadPoolExecutor(poolThreads, poolThreads,
+                            60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity),
+                            new NamedThreadFactory("webserver4j-worker-"));
+                    tpe.allowCoreThreadTimeOut(true);
+                    workerPool = pool = tpe;
+                }
+            }
+        }
+        return pool;
+    }
+
+    private ExecutorService virtualThreads() {
+        ExecutorService exec = virtualThreads;
+        if (exec == null) {
+            synchronized (this) {
+                exec = virtualThreads;
+                if (exec == null) {
+                    try {
+                        // Looked up reflectively so the library still targets Java 8
+                        exec = (ExecutorService) Executors.class
+                                .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                    } catch (ReflectiveOperationException e) {
+                        exec = workerPool();
+                    }
+                    virtualThreads = exec;
+                }
+            }
+        }
+        return exec;
+    }
+
+    /**
+     * Stops accepting new work and lets queued requests finish.
+     */
+    public synchronized void shutdown() {
+        if (workerPool != null) workerPool.shutdown();
+        if (virtualThreads != null) virtualThreads.shutdown();
+    }
+
+    private static final class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger next = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + next.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package org.oldskooler.webserver4j.http;
 
 import com.google.gson.Gson;
 import org.oldskooler.webserver4j.controller.ActionResult;
+import org.oldskooler.webserver4j.session.LazySession;
 import org.oldskooler.webserver4j.session.Session;
 
 import java.nio.charset.StandardCharsets;
@@ -13,10 +14,17 @@ import java.util.List;
 public class HttpContext {
     private final HttpRequestData request;
     private final HttpResponseData response;
-    private final Session session;
+    private final LazySession session;
     private final Gson json;
 
     public HttpContext(HttpRequestData request, HttpResponseData response, Session session, Gson json) {
+        this(request, response, LazySession.of(session), json);
+    }
+
+    /**
+     * @param session the request's session, created on first call to {@link #session()}
+     */
+    public HttpContext(HttpRequestData request, HttpResponseData response, LazySession session, Gson json) {
         this.request = request;
         this.response = response;
         this.session = session;
@@ -31,8 +39,17 @@ public class HttpContext {
         return response;
     }
 
+    /**
+     * Returns the session, creating one (and sending its cookie) if the client has none.
+     * Use {@link #peekSession()} to only read an existing session.
+     */
     public Session session() {
-        return session;
+        return session.get();
+    }
+
+    /** @return the client's existing session, or null; never creates one */
+    public Session peekSession() {
+        return session.peek();
     }
 
     public String wildcard(int index) {
@@ -96,6 +113,36 @@ public class HttpContext {
         return ActionResult.fromResponse(response);
     }
 
+    /**
+     * Declares the entity tag of the response. If the request is a GET or HEAD whose
+     * If-None-Match matches it, the response becomes an empty 304 and true is returned, so
+     * the handler can skip building the body:
+     * <pre>
+     * if (ctx.etag(version)) return ctx.notModified();
+     * </pre>
+     *
+     * @param tag entity tag, quoted or bare; {@code W/} prefixes are kept
+     * @return true if the client's copy is current
+     */
+    public boolean etag(String tag) {
+        String quoted = Preconditions.quote(tag);
+        response.getHeaders().put("ETag", quoted);
+        HttpMethod m = request.getMethod();
+        if ((m == HttpMethod.GET || m == HttpMethod.HEAD)
+                && Preconditions.etagMatches(request.getHeader("If-None-Match"), quoted)) {
+            notModified();
+            return true;
+        }
+        return false;
+    }
+
+    /** Answers with an empty 304 Not Modified. */
+    public ActionResult notModified() {
+        response.setStatus(304);
+        response.setBody(new byte[0]);
+        return ActionResult.fromResponse(response);
+    }
+
     public void header(String name, String value) {
         response.getHeaders().put(name, value);
     }
@@ -1,36 +1,50 @@
 package org.oldskooler.webserver4j.http;
 
 import io.netty.handler.codec.http.cookie.Cookie;
+import org.oldskooler.webserver4j.routing.RouteParams;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.util.*;
 
 /**
- * Immutable snapshot of the incoming HTTP request used by controllers.
+ * The incoming HTTP request as seen by controllers.
+ * <p>
+ * Instances built with the public constructors are immutable snapshots. The server instead
+ * hands handlers a view that decodes headers, query string, body, form data and cookies on
+ * first access and caches them. That view reads the body from the pooled Netty request,
+ * which is released once the handler, or the stage an async handler returns, completes; a
+ * body or form not read by then fails with an {@link IllegalStateException}. To hand the
+ * request to a task that outlives the handler, pass it {@link #snapshot()}. The view's
+ * caches are not synchronized: read it from one thread at a time, such as the handler
+ * thread and then the stage's continuations.
+ * <p>
+ * Subclasses may decode parts of the request lazily by using the protected constructor
+ * and overriding the getters for query, form, files, cookies, body, content type and headers.
+ * When a route streams its body, {@link #getBody()} reads it as it arrives.
  */
 public class HttpRequestData {
     private final HttpMethod method;
     private final String path;
-    private final Map<String, String> routeParams;
+    private final RouteParams routeParams;
     private final QueryParams query;
     private final QueryParams form;
     private final List<UploadedFile> files;
     private final Map<String, Cookie> cookies;
     private final byte[] rawBody;
     private final String contentType;
-    private final List<String> wildcards;
     private final Map<String, String> headers;
 
     public HttpRequestData(HttpMethod method, String path,
-                           Map<String, String> routeParams,
+                           RouteParams routeParams,
                            QueryParams query, QueryParams form,
                            List<UploadedFile> files,
                            Map<String, Cookie> cookies,
                            Map<String, String> headers, byte[] rawBody,
-                           String contentType,
-                           List<String> wildcards) {
+                           String contentType) {
         this.method = method;
         this.path = path;
-        this.routeParams = Collections.unmodifiableMap(new HashMap<>(routeParams));
+        this.routeParams = routeParams;
         this.query = query;
         this.form = form;
         this.files = Collections.unmodifiableList(new ArrayList<>(files));
@@ -38,21 +52,63 @@ public class HttpRequestData {
         this.headers = Collections.unmodifiableMap(headers);
         this.rawBody = rawBody;
         this.contentType = contentType;
-        this.wildcards = Collections.unmodifiableList(new java.util.ArrayList<>(wildcards));
+    }
+
+    /**
+     * Builds a request with route params and wildcards given as values rather than as
+     * captures of a matched route.
+     */
+    public HttpRequestData(HttpMethod method, String path,
+                           Map<String, String> routeParams,
+                           QueryParams query, QueryParams form,
+                           List<UploadedFile> files,
+                           Map<String, Cookie> cookies,
+                           Map<String, String> headers, byte[] rawBody,
+                           String contentType,
+                           List<String> wildcards) {
+        this(method, path, RouteParams.of(routeParams, wildcards), query, form, files, cookies,
+                headers, rawBody, contentType);
+    }
+
+    /**
+     * Constructor for lazily decoded subclasses, which must override every getter
+     * except those for method, path, route params and wildcards.
+     */
+    protected HttpRequestData(HttpMethod method, String path, RouteParams routeParams) {
+        this.method = method;
+        this.path = path;
+        this.routeParams = routeParams;
+        this.query = null;
+        this.form = null;
+        this.files = null;
+        this.cookies = null;
+        this.headers = null;
+        this.rawBody = null;
+        this.contentType = null;
+    }
+
+    /**
+     * Decodes every part of the request into an immutable copy that stays valid after the
+     * request completes, e.g. for a background task. A streamed body is not included.
+     *
+     * @return this instance if it is already such a snapshot
+     */
+    public HttpRequestData snapshot() {
+        return this;
     }
 
     /**
      * Wildcard captures (positional): w0, w1, ...
      */
     public java.util.List<String> getWildcards() {
-        return wildcards;
+        return routeParams.wildcards();
     }
 
     /**
      * Convenience: return wildcard at index or null.
      */
     public String getWildcard(int index) {
-        return (index >= 0 && index < wildcards.size()) ? wildcards.get(index) : null;
+        return routeParams.wildcard(index);
     }
 
     public HttpMethod getMethod() {
@@ -64,7 +120,14 @@ public class HttpRequestData {
     }
 
     public Map<String, String> getRouteParams() {
-        return routeParams;
+        return routeParams.asMap();
+    }
+
+    /**
+     * Convenience: return a single route param or null, without building the full map.
+     */
+    public String getRouteParam(String name) {
+        return routeParams.get(name);
     }
 
     public QueryParams getQuery() {
@@ -87,6 +150,16 @@ public class HttpRequestData {
         return rawBody;
     }
 
+    /**
+     * Returns the request body as a stream. For routes that stream their body this is the only
+     * way to read it: {@link #getRawBody()}, {@link #getForm()} and {@link #getFiles()} are
+     * empty, and reads block until the client has sent more data.
+     */
+    public InputStream getBody() {
+        byte[] body = getRawBody();
+        return new ByteArrayInputStream(body == null ? new byte[0] : body);
+    }
+
     public String getContentType() {
         return contentType;
     }
@@ -94,4 +167,17 @@ public class HttpRequestData {
     public Map<String, String> getHeaders() {
         return headers;
     }
+
+    /**
+     * Returns the first value of a header, matching the name case-insensitively, or null.
+     */
+    public String getHeader(String name) {
+        Map<String, String> all = getHeaders();
+        String v = all.get(name);
+        if (v != null) return v;
+        for (Map.Entry<String, String> e : all.entrySet()) {
+            if (e.getKey().equalsIgnoreCase(name)) return e.getValue();
+        }
+        return null;
+    }
 }
@@ -1,24 +1,36 @@
 package org.oldskooler.webserver4j.http;
 
 import com.google.gson.Gson;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.HttpMethod;
-import io.netty.handler.codec.http.cookie.Cookie;
-import io.netty.handler.codec.http.cookie.ServerCookieDecoder;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import org.oldskooler.webserver4j.controller.ActionResult;
 import org.oldskooler.webserver4j.error.ErrorRegistry;
 import org.oldskooler.webserver4j.interceptor.InterceptorRegistry;
 import org.oldskooler.webserver4j.results.RequestParser;
 import org.oldskooler.webserver4j.results.ResponseWriter;
-import org.oldskooler.webserver4j.routing.MatchedRoute;
+import org.oldskooler.webserver4j.routing.AsyncRouteHandler;
+import org.oldskooler.webserver4j.routing.RouteDefinition;
 import org.oldskooler.webserver4j.routing.Router;
+import org.oldskooler.webserver4j.session.LazySession;
 import org.oldskooler.webserver4j.session.Session;
 import org.oldskooler.webserver4j.session.SessionManager;
+import org.oldskooler.webserver4j.staticfiles.CachedFile;
 import org.oldskooler.webserver4j.staticfiles.StaticFileService;
 
 import java.io.File;
 import java.nio.charset.StandardCharsets;
-import java.util.*;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Handles the core HTTP request processing logic.
@@ -37,6 +49,8 @@ public class HttpRequestHandler {
     private final ErrorRegistry errors;
     private final StaticFileService staticFiles;
     private final SessionManager sessions;
+    private final HandlerExecutors executors;
+    private final long asyncTimeoutMillis;
     private final Gson json = new Gson();
 
     private final RequestParser requestParser;
@@ -44,13 +58,26 @@ public class HttpRequestHandler {
 
     public HttpRequestHandler(Router router, InterceptorRegistry interceptors, ErrorRegistry errors,
                               StaticFileService staticFiles, SessionManager sessions) {
+        this(router, interceptors, errors, staticFiles, sessions,
+                new HandlerExecutors(ExecutionModel.EVENT_LOOP, 0, 0), TimeUnit.SECONDS.toMillis(30));
+    }
+
+    /**
+     * @param asyncTimeoutMillis time an async handler may take before the request is answered
+     *                           with 503 and its stage cancelled; 0 disables the timeout
+     */
+    public HttpRequestHandler(Router router, InterceptorRegistry interceptors, ErrorRegistry errors,
+                              StaticFileService staticFiles, SessionManager sessions,
+                              HandlerExecutors executors, long asyncTimeoutMillis) {
         this.router = router;
+        this.executors = executors;
+        this.asyncTimeoutMillis = asyncTimeoutMillis;
         this.interceptors = interceptors;
         this.errors = errors;
         this.staticFiles = staticFiles;
         this.sessions = sessions;
         this.requestParser = new RequestParser();
-        this.responseWriter = new ResponseWriter(sessions);
+        this.responseWriter = new ResponseWriter(sessions, staticFiles);
     }
 
     /**
@@ -58,67 +85,263 @@ public class HttpRequestHandler {
      * <p>
      * This method coordinates the entire request processing pipeline:
      * interceptors -> routing -> static files -> error handling
+     * <p>
+     * Routing runs on the event loop. Interceptors and the handler then run inline or on the
+     * executor chosen by the route's {@link ExecutionModel}; in the latter case the request is
+     * retained across the hop and the response is written back on the event loop. Responses
+     * go out in request order, so pipelined requests are answered in the order they came in.
      *
      * @param chx Netty channel handler context
      * @param req the incoming HTTP request
      * @throws Exception if processing fails
      */
     public void handle(ChannelHandlerContext chx, FullHttpRequest req) throws Exception {
-        String uri = req.uri();
-        String path = uri.split("\\?")[0];
-        org.oldskooler.webserver4j.http.HttpMethod method = mapMethod(req.method());
+        // Decode the shared per-request state once and match the route once
+        RequestState state = new RequestState(req, mapMethod(req.method()));
+        state.match(router);
+        handle(chx, state);
+    }
+
+    /**
+     * Handles a request whose route was already matched, as emitted by {@link RequestBodyHandler}.
+     * The caller keeps ownership of {@link RequestState#request()} and releases it afterwards.
+     *
+     * @param chx   Netty channel handler context
+     * @param state matched request state
+     */
+    public void handle(ChannelHandlerContext chx, RequestState state) {
+        FullHttpRequest req = state.request();
+        RouteDefinition route = state.route();
+        ResponseOrder.Slot slot = ResponseOrder.of(chx.channel()).next();
+
+        Executor executor = executors.executorFor(route != null ? route.execution : null);
+        if (executor == null && state.body() != null) {
+            // Streamed bodies are read with blocking calls, which must stay off the event loop
+            executor = executors.executorFor(ExecutionModel.WORKER_POOL);
+        }
+        if (executor == null) {
+            Runnable write = process(chx, slot, state, false);
+            if (write != null) {
+                // an earlier response may still be pending, so the write can outlive this call
+                req.retain();
+                writeInOrder(chx, slot, state, write);
+            }
+            return;
+        }
+
+        req.retain();
+        try {
+            executor.execute(() -> {
+                Runnable write;
+                try {
+                    write = process(chx, slot, state, true);
+                } catch (Throwable ex) {
+                    ex.printStackTrace();
+                    write = () -> responseWriter.writeStatus(chx, req, HttpResponseStatus.INTERNAL_SERVER_ERROR);
+                }
+                if (write != null) writeInOrder(chx, slot, state, write);
+            });
+        } catch (RejectedExecutionException ex) {
+            writeInOrder(chx, slot, state,
+                    () -> responseWriter.writeStatus(chx, req, HttpResponseStatus.SERVICE_UNAVAILABLE));
+        }
+    }
+
+    /**
+     * Runs session lookup, interceptors and the handler.
+     *
+     * @param slot     place of the request in the connection's response order
+     * @param retained whether the caller holds an extra reference to the request
+     * @return the action that writes the response, which must run on the event loop; or null
+     * if an async handler is still running and will write the response itself
+     */
+    private Runnable process(ChannelHandlerContext chx, ResponseOrder.Slot slot, RequestState state,
+                             boolean retained) {
+        FullHttpRequest req = state.request();
+        RouteDefinition route = state.route();
+        String path = state.path();
 
-        // Parse session from cookies
-        Session session = parseSession(req);
+        // The session is looked up from the cookie only if something asks for it
+        LazySession session = new LazySession(sessions, () -> state.cookie(SessionManager.COOKIE_NAME));
 
-        // Parse the full request
-        HttpRequestData request = requestParser.parse(req, method, path, router);
+        // Wrap the request; headers, query and body are decoded on first access
+        HttpRequestData request = requestParser.parseLazy(state);
 
         HttpResponseData resp = new HttpResponseData();
         HttpContext ctx = new HttpContext(request, resp, session, json);
 
         try {
-            // Apply interceptors
-            if (interceptors.apply(path, ctx)) {
-                responseWriter.writeResponse(chx, ctx, req, session, resp);
-                return;
-            }
-
-            // Try route handler
-            Optional<MatchedRoute> matched = router.match(method, path);
-            if (matched.isPresent()) {
-                matched.get().route.handler.handle(ctx);
-                responseWriter.writeResponse(chx, ctx, req, session, resp);
-                return;
-            }
+            // Apply interceptors, then the route handler
+            if (!interceptors.apply(path, ctx)) {
+                if (route != null) {
+                    if (route.handler instanceof AsyncRouteHandler) {
+                        CompletionStage<ActionResult> stage = ((AsyncRouteHandler) route.handler).handleAsync(ctx);
+                        if (stage != null) {
+                            if (!retained) req.retain();
+                            awaitAsync(chx, slot, ctx, state, session, resp, stage);
+                            return null;
+                        }
+                    } else {
+                        route.handler.handle(ctx);
+                    }
+                } else {
+                    // Try static file, from memory first
+                    CachedFile hit = staticFiles.lookupCached(path);
+                    if (hit != null) {
+                        return () -> responseWriter.sendCached(session.current(), chx, req, hit);
+                    }
+                    File file = staticFiles.resolve(path);
+                    CachedFile loaded = null;
+                    if (file != null && staticFiles.cache() != null) {
+                        if (chx.executor().inEventLoop()) {
+                            // read and compress it off the event loop; this request is sent from disk
+                            staticFiles.loadCachedAsync(path, file, executors.executorFor(ExecutionModel.WORKER_POOL));
+                        } else {
+                            loaded = staticFiles.loadCached(path, file);
+                        }
+                    }
+                    if (loaded != null) {
+                        return () -> responseWriter.sendCached(session.current(), chx, req, loaded);
+                    }
+                    if (file != null) {
+                        return () -> sendFile(chx, ctx, req, session.current(), resp, file);
+                    }
 
-            // Try static file
-            File file = staticFiles.resolve(path);
-            if (file != null) {
-                responseWriter.sendFile(session, chx, req, file);
-                return;
+                    // Fallback 404
+                    handle404(ctx, path, resp);
+                }
             }
-
-            // Fallback 404
-            handle404(ctx, path, resp);
         } catch (Throwable ex) {
             handleException(ctx, resp, ex);
         } finally {
+            // Persist session changes before the response can trigger the client's next request
+            sessions.commit(session.current());
+        }
+        return () -> responseWriter.writeResponse(chx, ctx, req, session.current(), resp);
+    }
+
+    private void sendFile(ChannelHandlerContext chx, HttpContext ctx, FullHttpRequest req,
+                          Session session, HttpResponseData resp, File file) {
+        try {
+            responseWriter.sendFile(session, chx, req, file);
+        } catch (Throwable ex) {
+            handleException(ctx, resp, ex);
             responseWriter.writeResponse(chx, ctx, req, session, resp);
         }
     }
 
-    private Session parseSession(FullHttpRequest req) {
-        Map<String, Cookie> cookies = new HashMap<>();
-        String cookieHeader = req.headers().get("Cookie");
-        if (cookieHeader != null) {
-            Set<Cookie> parsed = ServerCookieDecoder.STRICT.decode(cookieHeader);
-            for (Cookie c : parsed) {
-                cookies.put(c.name(), c);
+    /**
+     * Writes the response once an async handler's stage completes. Whichever comes first of
+     * completion, the async timeout and the connection closing wins; on a timeout a 503 is
+     * written and on either the stage is cancelled. Takes over the caller's reference to the
+     * request and keeps it, and commits the session, only once the stage has completed.
+     * The response takes its place in the connection's response order like any other.
+     */
+    private void awaitAsync(ChannelHandlerContext chx, ResponseOrder.Slot slot, HttpContext ctx, RequestState state,
+                            LazySession session, HttpResponseData resp, CompletionStage<ActionResult> stage) {
+        FullHttpRequest req = state.request();
+        AtomicBoolean done = new AtomicBoolean();
+        ChannelFuture closeFuture = chx.channel().closeFuture();
+
+        ScheduledFuture<?> timeout = asyncTimeoutMillis <= 0 ? null : chx.executor().schedule(() -> {
+            if (!done.compareAndSet(false, true)) return;
+            // runs on the event loop; the 503 may wait for earlier responses, so it holds its own reference
+            req.retain();
+            slot.complete(() -> {
+                try {
+                    responseWriter.writeResponse(chx, ctx, req, session.current(), plainResponse(503, "Service Unavailable"));
+                } finally {
+                    req.release();
+                }
+            });
+            cancel(stage);
+        }, asyncTimeoutMillis, TimeUnit.MILLISECONDS);
+
+        ChannelFutureListener onClose = f -> {
+            if (!done.compareAndSet(false, true)) return;
+            if (timeout != null) timeout.cancel(false);
+            slot.complete(null);
+            cancel(stage);
+        };
+        closeFuture.addListener(onClose);
+
+        stage.whenComplete((result, ex) -> {
+            sessions.commit(session.current());
+            if (!done.compareAndSet(false, true)) {
+                // timed out or disconnected: the response will never be written
+                writeOnEventLoop(chx, state, resp::release);
+                return;
+            }
+            if (timeout != null) timeout.cancel(false);
+            closeFuture.removeListener(onClose);
+            writeInOrder(chx, slot, state, () -> {
+                if (ex != null) handleException(ctx, resp, unwrap(ex));
+                responseWriter.writeResponse(chx, ctx, req, session.current(), resp);
+            });
+        });
+    }
+
+    /** Runs {@code write} on the channel's event loop, then releases the retained request. */
+    private static void writeOnEventLoop(ChannelHandlerContext chx, RequestState state, Runnable write) {
+        onEventLoop(chx, () -> {
+            try {
+                write.run();
+            } finally {
+                release(state);
+            }
+        });
+    }
+
+    /**
+     * Runs {@code write} on the channel's event loop once the responses to all earlier
+     * requests on the connection are written, then releases the retained request.
+     */
+    private static void writeInOrder(ChannelHandlerContext chx, ResponseOrder.Slot slot, RequestState state,
+                                     Runnable write) {
+        onEventLoop(chx, () -> slot.complete(() -> {
+            try {
+                write.run();
+            } finally {
+                release(state);
             }
+        }));
+    }
+
+    private static void onEventLoop(ChannelHandlerContext chx, Runnable task) {
+        if (chx.executor().inEventLoop()) {
+            task.run();
+        } else {
+            chx.executor().execute(task);
+        }
+    }
+
+    /** Drops the reference taken before leaving the event loop and discards any unread body. */
+    private static void release(RequestState state) {
+        state.closeBody();
+        state.request().release();
+    }
+
+    private static void cancel(CompletionStage<?> stage) {
+        try {
+            stage.toCompletableFuture().cancel(true);
+        } catch (UnsupportedOperationException ignored) {
+            // stage cannot be cancelled from outside; its result is simply dropped
+        }
+    }
+
+    private static Throwable unwrap(Throwable ex) {
+        while ((ex instanceof CompletionException || ex instanceof ExecutionException) && ex.getCause() != null) {
+            ex = ex.getCause();
         }
-        String sessionId = cookies.containsKey("SESSIONID") ? cookies.get("SESSIONID").value() : null;
-        return sessions.getOrCreate(sessionId);
+        return ex;
+    }
+
+    private static HttpResponseData plainResponse(int status, String text) {
+        HttpResponseData resp = new HttpResponseData();
+        resp.setStatus(status);
+        resp.setContentType("text/plain; charset=UTF-8");
+        resp.setBody(text.getBytes(StandardCharsets.UTF_8));
+        return resp;
     }
 
     private void handle404(HttpContext ctx, String path, HttpResponseData resp) {
@@ -145,7 +368,7 @@ public class HttpRequestHandler {
      * @param m Netty HTTP method
      * @return mapped internal HTTP method
      */
-    private org.oldskooler.webserver4j.http.HttpMethod mapMethod(HttpMethod m) {
+    static org.oldskooler.webserver4j.http.HttpMethod mapMethod(HttpMethod m) {
         if (m.equals(HttpMethod.GET)) return org.oldskooler.webserver4j.http.HttpMethod.GET;
         if (m.equals(HttpMethod.POST)) return org.oldskooler.webserver4j.http.HttpMethod.POST;
         if (m.equals(HttpMethod.PUT)) return org.oldskooler.webserver4j.http.HttpMethod.PUT;
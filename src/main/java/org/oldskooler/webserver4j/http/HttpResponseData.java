@@ -1,14 +1,22 @@
 package org.oldskooler.webserver4j.http;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.stream.ChunkedInput;
+
 import java.util.HashMap;
 import java.util.Map;
 
 /**
  * Mutable HTTP response builder.
+ * <p>
+ * The body is a byte array, or alternatively a buffer ({@link #setContent}) or a stream sent
+ * with chunked encoding ({@link #setStream}). Setting any body discards the previous one.
  */
 public class HttpResponseData {
     private int status = 200;
     private byte[] body = new byte[0];
+    private ByteBuf content;
+    private ChunkedInput<ByteBuf> stream;
     private String contentType = "text/plain; charset=UTF-8";
     private final Map<String,String> headers = new HashMap<>();
     private String filePath;
@@ -17,7 +25,61 @@ public class HttpResponseData {
     public void setStatus(int status) { this.status = status; }
 
     public byte[] getBody() { return body; }
-    public void setBody(byte[] body) { this.body = body; }
+    public void setBody(byte[] body) {
+        release();
+        this.body = body;
+    }
+
+    /**
+     * Sets the body as a buffer, sent without copying. The response writer releases it.
+     *
+     * @param content body; ownership passes to this response
+     */
+    public void setContent(ByteBuf content) {
+        release();
+        this.content = content;
+    }
+
+    /** @return the buffer body, now owned by the caller, or null if there is none */
+    public ByteBuf takeContent() {
+        ByteBuf c = content;
+        content = null;
+        return c;
+    }
+
+    /**
+     * Sets a body that is produced while it is sent, with chunked encoding, for bodies too
+     * large to hold in memory at once. The response writer closes it.
+     *
+     * @param stream body; ownership passes to this response
+     */
+    public void setStream(ChunkedInput<ByteBuf> stream) {
+        release();
+        this.stream = stream;
+    }
+
+    /** @return the streamed body, now owned by the caller, or null if there is none */
+    public ChunkedInput<ByteBuf> takeStream() {
+        ChunkedInput<ByteBuf> s = stream;
+        stream = null;
+        return s;
+    }
+
+    /** Releases a buffer or stream body that will not be sent. */
+    public void release() {
+        if (content != null) {
+            content.release();
+            content = null;
+        }
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (Exception ignored) {
+                // nothing left to clean up
+            }
+            stream = null;
+        }
+    }
 
     public String getContentType() { return contentType; }
     public void setContentType(String contentType) { this.contentType = contentType; }
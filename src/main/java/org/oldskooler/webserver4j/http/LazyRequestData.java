@@ -0,0 +1,141 @@
+package org.oldskooler.webserver4j.http;
+
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.cookie.Cookie;
+import org.oldskooler.webserver4j.results.RequestParser;
+import org.oldskooler.webserver4j.routing.RouteParams;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.*;
+
+/**
+ * {@link HttpRequestData} backed directly by the Netty {@link FullHttpRequest}.
+ * <p>
+ * Each part of the request is decoded on first access and cached, so a handler that only
+ * reads route params never touches the headers, query string or body. Because the data is
+ * read from the Netty request, a body or form not decoded by the time that request is
+ * released fails with an {@link IllegalStateException}; {@link #snapshot()} decodes
+ * everything up front. Headers, query and cookies stay readable, as they are not pooled.
+ * <p>
+ * The caches are plain fields: an instance is read by one thread at a time, which holds for
+ * a handler and the continuations of the stage it returns.
+ */
+final class LazyRequestData extends HttpRequestData {
+    private final RequestState state;
+    private final FullHttpRequest req;
+
+    private Map<String, String> headers;
+    private QueryParams query;
+    private QueryParams form;
+    private List<UploadedFile> files;
+    private byte[] rawBody;
+    private String contentType;
+
+    LazyRequestData(RequestState state) {
+        super(state.method(), state.path(), state.routeParams());
+        this.state = state;
+        this.req = state.request();
+    }
+
+    @Override
+    public HttpRequestData snapshot() {
+        return new HttpRequestData(getMethod(), getPath(),
+                RouteParams.of(getRouteParams(), new ArrayList<>(getWildcards())),
+                getQuery(), getForm(), getFiles(), getCookies(), getHeaders(),
+                state.body() != null ? new byte[0] : getRawBody(), getContentType());
+    }
+
+    @Override
+    public QueryParams getQuery() {
+        if (query == null) {
+            query = req.uri().indexOf('?') < 0
+                    ? QueryParams.EMPTY
+                    : QueryParams.wrap(RequestParser.parseQueryParams(req.uri()));
+        }
+        return query;
+    }
+
+    @Override
+    public QueryParams getForm() {
+        parseFormIfNeeded();
+        return form;
+    }
+
+    @Override
+    public List<UploadedFile> getFiles() {
+        parseFormIfNeeded();
+        return files;
+    }
+
+    @Override
+    public Map<String, Cookie> getCookies() {
+        return state.cookies();
+    }
+
+    @Override
+    public byte[] getRawBody() {
+        if (rawBody == null) {
+            checkLive();
+            rawBody = RequestParser.hasBody(req) ? RequestParser.readBody(req) : new byte[0];
+        }
+        return rawBody;
+    }
+
+    @Override
+    public InputStream getBody() {
+        if (state.body() != null) return state.body();
+        if (rawBody == null) checkLive();
+        return rawBody != null ? new ByteArrayInputStream(rawBody) : new ByteBufInputStream(req.content().duplicate());
+    }
+
+    @Override
+    public String getContentType() {
+        if (contentType == null) {
+            String ct = req.headers().get(HttpHeaderNames.CONTENT_TYPE);
+            contentType = ct == null ? "" : ct;
+        }
+        return contentType;
+    }
+
+    @Override
+    public Map<String, String> getHeaders() {
+        if (headers == null) {
+            headers = Collections.unmodifiableMap(RequestParser.parseHeaders(req));
+        }
+        return headers;
+    }
+
+    @Override
+    public String getHeader(String name) {
+        return req.headers().get(name);
+    }
+
+    /** Fails clearly, rather than with Netty's reference count error, once the request is released. */
+    private void checkLive() {
+        if (req.refCnt() == 0) {
+            throw new IllegalStateException("Request already completed; pass request().snapshot() to code that "
+                    + "reads it after the handler returns");
+        }
+    }
+
+    private void parseFormIfNeeded() {
+        if (form != null) return;
+        checkLive();
+        Map<String, List<String>> formMap = new HashMap<>();
+        List<UploadedFile> uploads = new ArrayList<>();
+        if (RequestParser.hasBody(req)) {
+            try {
+                RequestParser.parseForm(req, rawBody, formMap, uploads);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to parse form data", e);
+            }
+        }
+        files = Collections.unmodifiableList(uploads);
+        form = QueryParams.wrap(formMap);
+    }
+}
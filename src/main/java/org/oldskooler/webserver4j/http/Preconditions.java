@@ -0,0 +1,108 @@
+package org.oldskooler.webserver4j.http;
+
+import io.netty.handler.codec.DateFormatter;
+
+import java.util.Date;
+
+/**
+ * Evaluation of conditional GET headers ({@code If-None-Match}, {@code If-Modified-Since},
+ * {@code If-Range}).
+ */
+public final class Preconditions {
+    private Preconditions() {
+    }
+
+    /**
+     * Builds a strong entity tag for a file version from its size and modification time.
+     *
+     * @param length       file size in bytes
+     * @param lastModified modification time in epoch milliseconds
+     * @param encoding     content coding of the representation, or null for the original bytes
+     * @return quoted entity tag
+     */
+    public static String fileEtag(long length, long lastModified, String encoding) {
+        StringBuilder sb = new StringBuilder(32).append('"')
+                .append(Long.toHexString(length)).append('-').append(Long.toHexString(lastModified));
+        if (encoding != null) sb.append('-').append(encoding);
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Quotes a bare tag value; tags that are already quoted or weak are returned as given.
+     */
+    public static String quote(String tag) {
+        return tag.startsWith("\"") || tag.startsWith("W/") ? tag : '"' + tag + '"';
+    }
+
+    /**
+     * Weak comparison of an entity tag against an If-None-Match header, as used for GET.
+     *
+     * @param ifNoneMatch header value, may be null
+     * @param etag        current entity tag, quoted and possibly weak
+     * @return true if the client's copy matches
+     */
+    public static boolean etagMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null || etag == null) return false;
+        String opaque = opaque(etag);
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || opaque(candidate).equals(opaque)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param ifModifiedSince header value, may be null
+     * @param lastModified    modification time in epoch milliseconds
+     * @return true if the resource has not changed since the given date, at second precision
+     */
+    public static boolean notModifiedSince(String ifModifiedSince, long lastModified) {
+        if (ifModifiedSince == null || lastModified <= 0) return false;
+        Date since = DateFormatter.parseHttpDate(ifModifiedSince);
+        return since != null && lastModified / 1000 <= since.getTime() / 1000;
+    }
+
+    /**
+     * Decides whether a GET or HEAD can be answered with 304 Not Modified.
+     * If-None-Match takes precedence; If-Modified-Since is only consulted without it.
+     *
+     * @param ifNoneMatch     If-None-Match header, may be null
+     * @param ifModifiedSince If-Modified-Since header, may be null
+     * @param etag            current entity tag, or null if unknown
+     * @param lastModified    modification time in epoch milliseconds, or 0 if unknown
+     * @return true if the client's copy is current
+     */
+    public static boolean isNotModified(String ifNoneMatch, String ifModifiedSince, String etag, long lastModified) {
+        if (ifNoneMatch != null) return etagMatches(ifNoneMatch, etag);
+        return notModifiedSince(ifModifiedSince, lastModified);
+    }
+
+    /**
+     * Evaluates If-Range: a Range header is only honored if the client's validator still
+     * identifies the current representation. Entity tags are compared strongly; a date must
+     * equal the modification time exactly, at second precision.
+     *
+     * @param ifRange      If-Range header, may be null
+     * @param etag         current entity tag, or null if unknown
+     * @param lastModified modification time in epoch milliseconds, or 0 if unknown
+     * @return true if the Range header applies
+     */
+    public static boolean ifRangeMatches(String ifRange, String etag, long lastModified) {
+        if (ifRange == null) return true;
+        String value = ifRange.trim();
+        if (value.startsWith("\"") || value.startsWith("W/")) {
+            return etag != null && !etag.startsWith("W/") && value.equals(etag);
+        }
+        Date date = DateFormatter.parseHttpDate(value);
+        return date != null && lastModified > 0 && date.getTime() / 1000 == lastModified / 1000;
+    }
+
+    /** Formats epoch milliseconds as an HTTP date. */
+    public static String httpDate(long epochMillis) {
+        return DateFormatter.format(new Date(epochMillis));
+    }
+
+    private static String opaque(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+}
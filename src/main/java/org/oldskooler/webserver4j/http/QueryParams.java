@@ -6,13 +6,29 @@ import java.util.*;
  * Read-only map-like wrapper for query/form parameters.
  */
 public class QueryParams {
+    /** Shared instance with no parameters. */
+    public static final QueryParams EMPTY = new QueryParams(Collections.emptyMap());
+
     private final Map<String, List<String>> data;
+    private Map<String, List<String>> view;
 
     public QueryParams(Map<String, List<String>> data) {
         this.data = new HashMap<>();
         data.forEach((k,v) -> this.data.put(k, Collections.unmodifiableList(new ArrayList<>(v))));
     }
 
+    private QueryParams(Map<String, List<String>> data, boolean wrap) {
+        this.data = data;
+    }
+
+    /**
+     * Wraps a freshly decoded map without copying it. The caller hands over ownership
+     * and must not modify the map or its lists afterwards.
+     */
+    public static QueryParams wrap(Map<String, List<String>> data) {
+        return data.isEmpty() ? EMPTY : new QueryParams(data, true);
+    }
+
     /** Returns the first value for a key, or null. */
     public String get(String key) {
         List<String> list = data.get(key);
@@ -21,11 +37,17 @@ public class QueryParams {
 
     /** Returns all values for a key (possibly empty). */
     public List<String> getAll(String key) {
-        return data.getOrDefault(key, Collections.emptyList());
+        List<String> list = data.get(key);
+        return list == null ? Collections.emptyList() : Collections.unmodifiableList(list);
     }
 
     /** @return an unmodifiable view of the raw map. */
     public Map<String, List<String>> asMap() {
-        return Collections.unmodifiableMap(data);
+        if (view == null) {
+            Map<String, List<String>> m = new HashMap<>();
+            data.forEach((k, v) -> m.put(k, Collections.unmodifiableList(v)));
+            view = Collections.unmodifiableMap(m);
+        }
+        return view;
     }
 }
@@ -0,0 +1,41 @@
+package org.oldskooler.webserver4j.http;
+
+import io.netty.channel.Channel;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+
+/**
+ * Stops reading from a connection while anyone holds it paused, such as a streamed request
+ * body that is not consumed fast enough or too many pipelined requests awaiting their
+ * response. Reading resumes only once every holder has let go, so one holder never turns
+ * it back on under another. Pausing and resuming are thread-safe.
+ */
+final class ReadGate {
+    private static final AttributeKey<ReadGate> KEY = AttributeKey.valueOf("webserver4j.readGate");
+
+    private final Channel channel;
+    private int holds;
+
+    private ReadGate(Channel channel) {
+        this.channel = channel;
+    }
+
+    /** @return the gate of {@code channel}, created on first use; call on its event loop */
+    static ReadGate of(Channel channel) {
+        Attribute<ReadGate> attr = channel.attr(KEY);
+        ReadGate gate = attr.get();
+        if (gate == null) {
+            gate = new ReadGate(channel);
+            attr.set(gate);
+        }
+        return gate;
+    }
+
+    synchronized void pause() {
+        if (holds++ == 0) channel.config().setAutoRead(false);
+    }
+
+    synchronized void resume() {
+        if (--holds == 0) channel.config().setAutoRead(true);
+    }
+}
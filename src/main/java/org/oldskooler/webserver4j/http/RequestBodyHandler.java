@@ -0,0 +1,196 @@
+package org.oldskooler.webserver4j.http;
+
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.*;
+import io.netty.util.ReferenceCountUtil;
+import org.oldskooler.webserver4j.routing.RouteDefinition;
+import org.oldskooler.webserver4j.routing.Router;
+
+import java.io.IOException;
+
+/**
+ * Receives request bodies according to the matched route, replacing a fixed-size
+ * {@code HttpObjectAggregator}.
+ * <p>
+ * The route is matched as soon as the request head arrives. Most routes get their body
+ * aggregated into a {@link FullHttpRequest}, limited to the route's
+ * {@link RouteDefinition#maxBodySize} or the server default; oversized requests are answered
+ * with 413 without buffering the rest. Routes that opted into streaming are dispatched right
+ * away and read the body through a {@link RequestBodyStream} while it arrives.
+ * {@code Expect: 100-continue} is answered once the request is known to fit.
+ * <p>
+ * Emits one {@link RequestState} per request, whose {@link RequestState#request()} the
+ * receiver must release. Instances keep per-connection state and cannot be shared.
+ */
+public class RequestBodyHandler extends ChannelInboundHandlerAdapter {
+    /** Bytes a streamed body may buffer before the connection stops reading. */
+    private static final int STREAM_HIGH_WATER_MARK = 256 * 1024;
+    private static final int MAX_COMPONENTS = 1024;
+
+    private final Router router;
+    private final long defaultMaxBodySize;
+
+    private RequestState state;
+    private HttpRequest head;
+    private CompositeByteBuf content;
+    private RequestBodyStream stream;
+    private long limit;
+    private long received;
+    private boolean discarding;
+
+    /**
+     * @param router             router used to look up per-route body settings
+     * @param defaultMaxBodySize limit for routes without their own; -1 for no limit
+     */
+    public RequestBodyHandler(Router router, long defaultMaxBodySize) {
+        this.router = router;
+        this.defaultMaxBodySize = defaultMaxBodySize;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (msg instanceof HttpRequest) {
+            begin(ctx, (HttpRequest) msg);
+        }
+        if (msg instanceof HttpContent) {
+            content(ctx, (HttpContent) msg);
+        } else if (!(msg instanceof HttpRequest)) {
+            ctx.fireChannelRead(msg);
+        }
+    }
+
+    private void begin(ChannelHandlerContext ctx, HttpRequest msg) {
+        reset();
+        if (msg.decoderResult().isFailure()) {
+            discarding = true;
+            reject(ctx, HttpResponseStatus.BAD_REQUEST);
+            return;
+        }
+
+        head = msg;
+        state = new RequestState(msg, HttpRequestHandler.mapMethod(msg.method()), RequestState.stripQuery(msg.uri()));
+        RouteDefinition route = state.match(router);
+
+        long max = route != null && route.maxBodySize != 0 ? route.maxBodySize : defaultMaxBodySize;
+        limit = max < 0 ? Long.MAX_VALUE : max;
+        boolean streaming = route != null && route.streamBody;
+
+        if (!streaming && HttpUtil.getContentLength(msg, -1L) > limit) {
+            discarding = true;
+            reject(ctx, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+        if (HttpUtil.is100ContinueExpected(msg)) {
+            msg.headers().remove(HttpHeaderNames.EXPECT);
+            ctx.writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE));
+        }
+
+        if (streaming && !(msg instanceof FullHttpRequest)) {
+            stream = new RequestBodyStream(ctx.channel(), STREAM_HIGH_WATER_MARK);
+            FullHttpRequest empty = new DefaultFullHttpRequest(msg.protocolVersion(), msg.method(), msg.uri(),
+                    Unpooled.EMPTY_BUFFER, msg.headers(), EmptyHttpHeaders.INSTANCE);
+            state.complete(empty, stream);
+            dispatch(ctx);
+        } else {
+            content = ctx.alloc().compositeBuffer(MAX_COMPONENTS);
+        }
+    }
+
+    private void content(ChannelHandlerContext ctx, HttpContent msg) {
+        boolean last = msg instanceof LastHttpContent;
+        try {
+            if (discarding) {
+                if (last) discarding = false;
+                return;
+            }
+            if (state == null) return;
+
+            received += msg.content().readableBytes();
+            if (stream != null) {
+                if (received > limit) {
+                    stream.fail(new IOException("Request body exceeds " + limit + " bytes"));
+                    stream = null;
+                    discarding = !last;
+                    return;
+                }
+                stream.offer(msg.content().retain());
+                if (last) {
+                    stream.end();
+                    stream = null;
+                }
+                return;
+            }
+
+            if (received > limit) {
+                reset();
+                discarding = true;
+                reject(ctx, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+                return;
+            }
+            if (msg.content().isReadable()) {
+                content.addComponent(true, msg.content().retain());
+            }
+            if (last) {
+                FullHttpRequest full = new DefaultFullHttpRequest(head.protocolVersion(), head.method(), head.uri(),
+                        content, head.headers(), ((LastHttpContent) msg).trailingHeaders());
+                if (!(head instanceof FullHttpRequest) && HttpUtil.isTransferEncodingChunked(head)) {
+                    HttpUtil.setTransferEncodingChunked(full, false);
+                    HttpUtil.setContentLength(full, content.readableBytes());
+                }
+                content = null;
+                state.complete(full, null);
+                dispatch(ctx);
+            }
+        } finally {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    private void dispatch(ChannelHandlerContext ctx) {
+        RequestState ready = state;
+        state = null;
+        head = null;
+        ctx.fireChannelRead(ready);
+    }
+
+    private void reject(ChannelHandlerContext ctx, HttpResponseStatus status) {
+        FullHttpResponse res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, Unpooled.EMPTY_BUFFER);
+        res.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, 0);
+        res.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+        ctx.writeAndFlush(res).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    private void reset() {
+        if (content != null) {
+            content.release();
+            content = null;
+        }
+        if (stream != null) {
+            stream.fail(new IOException("Request body ended early"));
+            stream = null;
+        }
+        state = null;
+        head = null;
+        received = 0;
+        discarding = false;
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (stream != null) {
+            stream.fail(new IOException("Connection closed before the request body was complete"));
+            stream = null;
+        }
+        reset();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        reset();
+    }
+}
@@ -0,0 +1,148 @@
+package org.oldskooler.webserver4j.http;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+
+/**
+ * Request body delivered to the handler while it is still being received.
+ * <p>
+ * The event loop appends chunks as they are decoded and the handler thread reads them.
+ * Once more than {@code highWaterMark} bytes are waiting, the channel stops reading from the
+ * socket, so a slow consumer pushes back on the client through TCP instead of growing the
+ * heap; reading resumes when the backlog drops below half of it. Created on the event loop.
+ * <p>
+ * Reads block, so the stream must not be read on the event loop. Closing it early discards
+ * the rest of the body.
+ */
+public final class RequestBodyStream extends InputStream {
+    private final Channel channel;
+    private final ReadGate gate;
+    private final int highWaterMark;
+    private final ArrayDeque<ByteBuf> chunks = new ArrayDeque<>();
+    private long buffered;
+    private boolean paused;
+    private boolean ended;
+    private boolean closed;
+    private IOException failure;
+
+    RequestBodyStream(Channel channel, int highWaterMark) {
+        this.channel = channel;
+        this.gate = ReadGate.of(channel);
+        this.highWaterMark = highWaterMark;
+    }
+
+    /** Appends a chunk received on the event loop; takes ownership of {@code buf}. */
+    synchronized void offer(ByteBuf buf) {
+        if (closed || failure != null || !buf.isReadable()) {
+            buf.release();
+            return;
+        }
+        chunks.add(buf);
+        buffered += buf.readableBytes();
+        if (!paused && buffered >= highWaterMark) {
+            paused = true;
+            gate.pause();
+        }
+        notifyAll();
+    }
+
+    /** Marks the end of the body. */
+    synchronized void end() {
+        ended = true;
+        notifyAll();
+    }
+
+    /** Fails pending and future reads, e.g. when the connection closes mid-body. */
+    synchronized void fail(IOException cause) {
+        if (failure == null) failure = cause;
+        releaseChunks();
+        notifyAll();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        ByteBuf head = awaitChunk();
+        if (head == null) return -1;
+
+        int n = Math.min(len, head.readableBytes());
+        head.readBytes(b, off, n);
+        buffered -= n;
+        if (!head.isReadable()) chunks.poll().release();
+        resumeIfDrained();
+        return n;
+    }
+
+    @Override
+    public synchronized long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n) {
+            ByteBuf head = awaitChunk();
+            if (head == null) break;
+            int step = (int) Math.min(n - skipped, head.readableBytes());
+            head.skipBytes(step);
+            buffered -= step;
+            skipped += step;
+            if (!head.isReadable()) chunks.poll().release();
+        }
+        resumeIfDrained();
+        return skipped;
+    }
+
+    @Override
+    public synchronized int available() {
+        return (int) Math.min(buffered, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        releaseChunks();
+        notifyAll();
+    }
+
+    private ByteBuf awaitChunk() throws IOException {
+        while (true) {
+            if (closed) throw new IOException("Stream closed");
+            if (failure != null) throw failure;
+            ByteBuf head = chunks.peek();
+            if (head != null) return head;
+            if (ended) return null;
+            if (channel.eventLoop().inEventLoop()) {
+                throw new IllegalStateException("Blocking read of a streamed request body on the event loop");
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private void resumeIfDrained() {
+        if (paused && buffered <= highWaterMark / 2) {
+            paused = false;
+            gate.resume();
+        }
+    }
+
+    private void releaseChunks() {
+        ByteBuf buf;
+        while ((buf = chunks.poll()) != null) buf.release();
+        buffered = 0;
+        resumeIfDrained();
+    }
+}
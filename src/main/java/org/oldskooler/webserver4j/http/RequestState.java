@@ -0,0 +1,156 @@
+package org.oldskooler.webserver4j.http;
+
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.cookie.Cookie;
+import io.netty.handler.codec.http.cookie.ServerCookieDecoder;
+import org.oldskooler.webserver4j.routing.RouteDefinition;
+import org.oldskooler.webserver4j.routing.RouteParams;
+import org.oldskooler.webserver4j.routing.Router;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-request state shared by session lookup, request parsing and dispatch.
+ * <p>
+ * Everything here is decoded at most once per request: the path is split from the
+ * query string once, the Cookie header is decoded on first use, and the route is
+ * matched once so parameter binding and dispatch see the same result.
+ * Instances are confined to the request that created them.
+ * <p>
+ * {@link RequestBodyHandler} creates the state as soon as the request head arrives, so the
+ * route decides how the body is received, and completes it once the body is aggregated or,
+ * for streaming routes, right away with an empty request and a {@link RequestBodyStream}.
+ */
+public final class RequestState {
+    private final HttpRequest head;
+    private final HttpMethod method;
+    private final String path;
+    private final RouteParams routeParams = new RouteParams();
+    private FullHttpRequest request;
+    private RequestBodyStream body;
+    private RouteDefinition route;
+    private Map<String, Cookie> cookies;
+    private HttpRequestData requestData;
+
+    public RequestState(FullHttpRequest request, HttpMethod method) {
+        this(request, method, stripQuery(request.uri()));
+    }
+
+    public RequestState(FullHttpRequest request, HttpMethod method, String path) {
+        this((HttpRequest) request, method, path);
+        this.request = request;
+    }
+
+    RequestState(HttpRequest head, HttpMethod method, String path) {
+        this.head = head;
+        this.method = method;
+        this.path = path;
+    }
+
+    /**
+     * Attaches the complete request once its body has been received.
+     *
+     * @param request aggregated request, or an empty one when the body is streamed
+     * @param body    streamed body, or null when aggregated
+     */
+    void complete(FullHttpRequest request, RequestBodyStream body) {
+        this.request = request;
+        this.body = body;
+    }
+
+    static String stripQuery(String uri) {
+        int q = uri.indexOf('?');
+        return q < 0 ? uri : uri.substring(0, q);
+    }
+
+    /** @return the underlying Netty request; its content is empty when the body is streamed */
+    public FullHttpRequest request() {
+        return request;
+    }
+
+    /** @return the streamed request body, or null if the body was aggregated */
+    public RequestBodyStream body() {
+        return body;
+    }
+
+    /** Discards whatever the handler left unread of a streamed body. */
+    void closeBody() {
+        if (body != null) body.close();
+    }
+
+    /** @return the mapped HTTP method */
+    public HttpMethod method() {
+        return method;
+    }
+
+    /** @return the request path without query string */
+    public String path() {
+        return path;
+    }
+
+    /**
+     * Matches the request against the router and remembers the result.
+     *
+     * @param router router to match against
+     * @return the matched route, or null if none matches
+     */
+    public RouteDefinition match(Router router) {
+        route = router.match(method, path, routeParams);
+        return route;
+    }
+
+    /** @return the route found by {@link #match(Router)}, or null */
+    public RouteDefinition route() {
+        return route;
+    }
+
+    /** @return captures of the matched route; empty if nothing matched */
+    public RouteParams routeParams() {
+        return routeParams;
+    }
+
+    /**
+     * Returns the request as seen by handlers, created on first call. Each part of it is
+     * decoded when first read; it must not be used once the request has been released.
+     *
+     * @return lazily decoded request data
+     */
+    public HttpRequestData requestData() {
+        if (requestData == null) requestData = new LazyRequestData(this);
+        return requestData;
+    }
+
+    /**
+     * Returns the request cookies, decoding the Cookie header on first call.
+     *
+     * @return unmodifiable map of cookies keyed by name
+     */
+    public Map<String, Cookie> cookies() {
+        if (cookies == null) {
+            String header = head.headers().get(HttpHeaderNames.COOKIE);
+            if (header == null) {
+                cookies = Collections.emptyMap();
+            } else {
+                Map<String, Cookie> map = new HashMap<>();
+                for (Cookie c : ServerCookieDecoder.STRICT.decode(header)) {
+                    map.put(c.name(), c);
+                }
+                cookies = Collections.unmodifiableMap(map);
+            }
+        }
+        return cookies;
+    }
+
+    /**
+     * @param name cookie name
+     * @return the cookie value, or null if absent
+     */
+    public String cookie(String name) {
+        Cookie c = cookies().get(name);
+        return c == null ? null : c.value();
+    }
+}
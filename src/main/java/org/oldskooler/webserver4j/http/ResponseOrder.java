@@ -0,0 +1,87 @@
+package org.oldskooler.webserver4j.http;
+
+import io.netty.channel.Channel;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+
+import java.util.ArrayDeque;
+
+/**
+ * Writes the responses of one connection in the order of its requests.
+ * <p>
+ * HTTP/1.1 clients may pipeline requests, and handlers that run off the event loop or
+ * complete asynchronously finish in any order. Each request therefore takes a slot when it
+ * is dispatched, and its response is written once the responses of all earlier slots have
+ * been. While {@link #MAX_IN_FLIGHT} requests await their response, the connection stops
+ * reading, so one client cannot fill the worker queue. Used only on the channel's event loop.
+ */
+final class ResponseOrder {
+    /** Requests per connection that may await their response before reading pauses. */
+    static final int MAX_IN_FLIGHT = 16;
+    private static final AttributeKey<ResponseOrder> KEY = AttributeKey.valueOf("webserver4j.responseOrder");
+
+    private final ReadGate gate;
+    private final ArrayDeque<Slot> slots = new ArrayDeque<>();
+    private boolean paused;
+
+    private ResponseOrder(ReadGate gate) {
+        this.gate = gate;
+    }
+
+    /** @return the response order of {@code channel}, created on first use */
+    static ResponseOrder of(Channel channel) {
+        Attribute<ResponseOrder> attr = channel.attr(KEY);
+        ResponseOrder order = attr.get();
+        if (order == null) {
+            order = new ResponseOrder(ReadGate.of(channel));
+            attr.set(order);
+        }
+        return order;
+    }
+
+    /** Reserves the place of a request that was just dispatched. */
+    Slot next() {
+        Slot slot = new Slot();
+        slots.add(slot);
+        if (!paused && slots.size() >= MAX_IN_FLIGHT) {
+            paused = true;
+            gate.pause();
+        }
+        return slot;
+    }
+
+    /** Runs the writes of the leading completed slots. */
+    private void drain() {
+        Slot head;
+        while ((head = slots.peek()) != null && head.done) {
+            slots.poll();
+            try {
+                if (head.write != null) head.write.run();
+            } catch (Throwable ex) {
+                ex.printStackTrace();
+            }
+        }
+        if (paused && slots.size() < MAX_IN_FLIGHT) {
+            paused = false;
+            gate.resume();
+        }
+    }
+
+    /** Place of one request in the connection's response order. */
+    final class Slot {
+        private Runnable write;
+        private boolean done;
+
+        /**
+         * Writes the response now, or once the earlier responses have been written.
+         *
+         * @param write action writing the response; null if none will be sent
+         */
+        void complete(Runnable write) {
+            if (done) return;
+            this.write = write;
+            done = true;
+            drain();
+        }
+    }
+}
@@ -5,7 +5,6 @@ import org.oldskooler.webserver4j.routing.PathPattern;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
 
 /**
  * Registry mapping path patterns to interceptors.
@@ -25,8 +24,7 @@ public class InterceptorRegistry {
 
     public boolean apply(String path, HttpContext ctx) throws Exception {
         for (Entry e : entries) {
-            Matcher m = e.pattern.regex().matcher(path);
-            if (m.matches()) {
+            if (e.pattern.matches(path)) {
                 if (e.interceptor.preHandle(ctx)) return true;
             }
         }
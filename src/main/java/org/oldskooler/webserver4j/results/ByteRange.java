@@ -0,0 +1,110 @@
+package org.oldskooler.webserver4j.results;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * One satisfiable range of a {@code Range: bytes=...} request header, with inclusive bounds.
+ */
+final class ByteRange {
+    /** More ranges than this are treated as abuse and the whole representation is sent. */
+    static final int MAX_RANGES = 16;
+
+    final long start;
+    final long end;
+
+    private ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    long length() {
+        return end - start + 1;
+    }
+
+    String contentRange(long total) {
+        return "bytes " + start + '-' + end + '/' + total;
+    }
+
+    /**
+     * Parses a Range header against a representation of {@code total} bytes. Overlapping and
+     * adjacent ranges are coalesced, so the result is sorted and disjoint.
+     *
+     * @return the satisfiable ranges; an empty list if none is satisfiable (416); null if the
+     * header is malformed, uses another unit or asks for too many ranges, in which case it is
+     * ignored and the whole representation is sent
+     */
+    static List<ByteRange> parse(String header, long total) {
+        if (header == null) return null;
+        String spec = header.trim();
+        if (!spec.regionMatches(true, 0, "bytes=", 0, 6)) return null;
+
+        String[] parts = spec.substring(6).split(",");
+        if (parts.length > MAX_RANGES) return null;
+
+        List<ByteRange> ranges = new ArrayList<>(parts.length);
+        boolean any = false;
+        for (String part : parts) {
+            part = part.trim();
+            if (part.isEmpty()) continue;
+            any = true;
+            int dash = part.indexOf('-');
+            if (dash < 0) return null;
+            try {
+                String first = part.substring(0, dash).trim();
+                String last = part.substring(dash + 1).trim();
+                if (first.isEmpty()) {
+                    // suffix range: the final N bytes
+                    long n = Long.parseLong(last);
+                    if (n < 0) return null;
+                    if (n > 0 && total > 0) ranges.add(new ByteRange(Math.max(0, total - n), total - 1));
+                } else {
+                    long start = Long.parseLong(first);
+                    long end = last.isEmpty() ? total - 1 : Long.parseLong(last);
+                    if (start < 0 || (!last.isEmpty() && end < start)) return null;
+                    if (start < total) ranges.add(new ByteRange(start, Math.min(end, total - 1)));
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return any ? coalesce(ranges) : null;
+    }
+
+    private static List<ByteRange> coalesce(List<ByteRange> ranges) {
+        if (ranges.size() < 2) return ranges;
+        ranges.sort((a, b) -> Long.compare(a.start, b.start));
+        List<ByteRange> merged = new ArrayList<>(ranges.size());
+        ByteRange current = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            ByteRange next = ranges.get(i);
+            if (next.start <= current.end + 1) {
+                current = new ByteRange(current.start, Math.max(current.end, next.end));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+
+    /** @return a random multipart boundary */
+    static String boundary() {
+        ThreadLocalRandom r = ThreadLocalRandom.current();
+        return Long.toHexString(r.nextLong()) + Long.toHexString(r.nextLong());
+    }
+
+    /** @return the delimiter and headers preceding this range's part of a multipart/byteranges body */
+    byte[] partHeader(String boundary, String contentType, long total) {
+        return ("\r\n--" + boundary + "\r\nContent-Type: " + contentType
+                + "\r\nContent-Range: " + contentRange(total) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /** @return the closing delimiter of a multipart/byteranges body */
+    static byte[] closingDelimiter(String boundary) {
+        return ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,15 @@
+package org.oldskooler.webserver4j.results;
+
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+
+/**
+ * Response head whose body is written verbatim, from a file region or from bytes that are
+ * already encoded. {@link ResponseCompressor} lets it pass through untouched.
+ */
+final class FileResponse extends DefaultHttpResponse {
+    FileResponse(HttpResponseStatus status) {
+        super(HttpVersion.HTTP_1_1, status);
+    }
+}
@@ -1,16 +1,16 @@
 package org.oldskooler.webserver4j.results;
 
+import io.netty.buffer.ByteBufUtil;
 import io.netty.handler.codec.http.*;
-import io.netty.handler.codec.http.cookie.Cookie;
-import io.netty.handler.codec.http.cookie.ServerCookieDecoder;
 import io.netty.handler.codec.http.multipart.*;
 import org.oldskooler.webserver4j.http.HttpRequestData;
 import org.oldskooler.webserver4j.http.QueryParams;
+import org.oldskooler.webserver4j.http.RequestState;
 import org.oldskooler.webserver4j.http.UploadedFile;
-import org.oldskooler.webserver4j.routing.MatchedRoute;
 import org.oldskooler.webserver4j.routing.Router;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 
@@ -26,6 +26,7 @@ import java.util.*;
  *   <li>File upload handling</li>
  *   <li>Route parameter extraction</li>
  * </ul>
+ * Use {@link #parseLazy(RequestState)} to defer all of this until a handler reads it.
  */
 public class RequestParser {
 
@@ -43,50 +44,61 @@ public class RequestParser {
                                  org.oldskooler.webserver4j.http.HttpMethod method,
                                  String path,
                                  Router router) throws Exception {
+        RequestState state = new RequestState(req, method, path);
+        state.match(router);
+        return parse(state);
+    }
 
-        // Parse cookies
-        Map<String, Cookie> cookies = parseCookies(req);
+    /**
+     * Parses a request whose cookies and route match are already held by the shared
+     * per-request state, so neither is decoded again.
+     *
+     * @param state per-request state, already matched against the router
+     * @return parsed request data
+     * @throws Exception if parsing fails
+     */
+    public HttpRequestData parse(RequestState state) throws Exception {
+        FullHttpRequest req = state.request();
 
         // Parse headers
         Map<String, String> headers = parseHeaders(req);
 
         // Parse query parameters
-        Map<String, List<String>> queryMap = parseQueryParams(req);
+        Map<String, List<String>> queryMap = parseQueryParams(req.uri());
 
         // Parse form data and files
         FormParseResult formResult = parseFormData(req);
 
-        // Extract route parameters
-        RouteParseResult routeResult = parseRouteParams(method, path, router);
-
         return new HttpRequestData(
-                method,
-                path,
-                routeResult.routeParams,
-                new QueryParams(queryMap),
-                new QueryParams(formResult.formMap),
+                state.method(),
+                state.path(),
+                state.routeParams(),
+                QueryParams.wrap(queryMap),
+                QueryParams.wrap(formResult.formMap),
                 formResult.files,
-                cookies,
+                state.cookies(),
                 headers,
                 formResult.rawBody,
-                formResult.contentType,
-                routeResult.wildcardParts
+                formResult.contentType
         );
     }
 
-    private Map<String, Cookie> parseCookies(FullHttpRequest req) {
-        Map<String, Cookie> cookies = new HashMap<>();
-        String cookieHeader = req.headers().get(HttpHeaderNames.COOKIE);
-        if (cookieHeader != null) {
-            Set<Cookie> parsed = ServerCookieDecoder.STRICT.decode(cookieHeader);
-            for (Cookie c : parsed) {
-                cookies.put(c.name(), c);
-            }
-        }
-        return cookies;
+    /**
+     * Wraps the request in an {@link HttpRequestData} that decodes headers, query string,
+     * body, form data and cookies on first access. The returned object reads from the Netty
+     * request, so it is only valid while that request has not been released.
+     *
+     * @param state per-request state, already matched against the router
+     * @return lazily decoded request data
+     */
+    public HttpRequestData parseLazy(RequestState state) {
+        return state.requestData();
     }
 
-    private Map<String, String> parseHeaders(FullHttpRequest req) {
+    /**
+     * @return the request headers, keeping the first value of repeated names
+     */
+    public static Map<String, String> parseHeaders(FullHttpRequest req) {
         Map<String, String> headers = new HashMap<>();
         for (Map.Entry<String, String> entry : req.headers()) {
             headers.putIfAbsent(entry.getKey(), entry.getValue());
@@ -94,9 +106,12 @@ public class RequestParser {
         return headers;
     }
 
-    private Map<String, List<String>> parseQueryParams(FullHttpRequest req) {
-        QueryStringDecoder qd = new QueryStringDecoder(req.uri(), StandardCharsets.UTF_8);
-        return new HashMap<>(qd.parameters());
+    /**
+     * @return the query string parameters of a request URI
+     */
+    public static Map<String, List<String>> parseQueryParams(String uri) {
+        QueryStringDecoder qd = new QueryStringDecoder(uri, StandardCharsets.UTF_8);
+        return qd.parameters();
     }
 
     private FormParseResult parseFormData(FullHttpRequest req) throws Exception {
@@ -106,32 +121,58 @@ public class RequestParser {
         String contentType = req.headers().get(HttpHeaderNames.CONTENT_TYPE);
         String actualContentType = contentType == null ? "" : contentType;
 
-        if (req.method().equals(HttpMethod.POST) ||
+        if (hasBody(req)) {
+            rawBody = readBody(req);
+            parseForm(req, rawBody, formMap, files);
+        }
+
+        return new FormParseResult(formMap, files, rawBody, actualContentType);
+    }
+
+    /**
+     * @return true for methods whose body is read: POST, PUT and PATCH
+     */
+    public static boolean hasBody(FullHttpRequest req) {
+        return req.method().equals(HttpMethod.POST) ||
                 req.method().equals(HttpMethod.PUT) ||
-                req.method().equals(HttpMethod.PATCH)) {
+                req.method().equals(HttpMethod.PATCH);
+    }
 
-            rawBody = new byte[req.content().readableBytes()];
-            req.content().readBytes(rawBody);
+    /**
+     * Copies the request body without moving the content's reader index, so the
+     * multipart decoder can still read it afterwards.
+     */
+    public static byte[] readBody(FullHttpRequest req) {
+        return ByteBufUtil.getBytes(req.content());
+    }
 
-            if (contentType != null &&
-                    contentType.startsWith(HttpHeaderValues.APPLICATION_X_WWW_FORM_URLENCODED.toString())) {
-                parseUrlEncodedForm(rawBody, formMap);
-            } else if (contentType != null &&
-                    contentType.startsWith(HttpHeaderValues.MULTIPART_FORM_DATA.toString())) {
-                parseMultipartForm(req, formMap, files);
-            }
+    /**
+     * Decodes URL-encoded or multipart form data according to the Content-Type.
+     *
+     * @param rawBody the body bytes, or null to decode straight from the request content
+     */
+    public static void parseForm(FullHttpRequest req, byte[] rawBody, Map<String, List<String>> formMap,
+                                 List<UploadedFile> files) throws IOException {
+        String contentType = req.headers().get(HttpHeaderNames.CONTENT_TYPE);
+        if (contentType != null &&
+                contentType.startsWith(HttpHeaderValues.APPLICATION_X_WWW_FORM_URLENCODED.toString())) {
+            String body = rawBody != null
+                    ? new String(rawBody, StandardCharsets.UTF_8)
+                    : req.content().toString(StandardCharsets.UTF_8);
+            parseUrlEncodedForm(body, formMap);
+        } else if (contentType != null &&
+                contentType.startsWith(HttpHeaderValues.MULTIPART_FORM_DATA.toString())) {
+            parseMultipartForm(req, formMap, files);
         }
-
-        return new FormParseResult(formMap, files, rawBody, actualContentType);
     }
 
-    private void parseUrlEncodedForm(byte[] rawBody, Map<String, List<String>> formMap) {
-        QueryStringDecoder decoder = new QueryStringDecoder(new String(rawBody, StandardCharsets.UTF_8), false);
+    private static void parseUrlEncodedForm(String body, Map<String, List<String>> formMap) {
+        QueryStringDecoder decoder = new QueryStringDecoder(body, false);
         formMap.putAll(decoder.parameters());
     }
 
-    private void parseMultipartForm(FullHttpRequest req, Map<String, List<String>> formMap,
-                                    List<UploadedFile> files) throws Exception {
+    private static void parseMultipartForm(FullHttpRequest req, Map<String, List<String>> formMap,
+                                           List<UploadedFile> files) throws IOException {
         HttpPostRequestDecoder decoder = new HttpPostRequestDecoder(new DefaultHttpDataFactory(true), req);
         try {
             for (InterfaceHttpData data : decoder.getBodyHttpDatas()) {
@@ -152,21 +193,6 @@ public class RequestParser {
         }
     }
 
-    private RouteParseResult parseRouteParams(org.oldskooler.webserver4j.http.HttpMethod method,
-                                              String path, Router router) {
-        Optional<MatchedRoute> matched = router.match(method, path);
-
-        Map<String, String> routeParams = new HashMap<>();
-        List<String> wildcardParts = new ArrayList<>();
-
-        matched.ifPresent(m -> {
-            routeParams.putAll(m.params);
-            wildcardParts.addAll(m.wildcards);
-        });
-
-        return new RouteParseResult(routeParams, wildcardParts);
-    }
-
     private static class FormParseResult {
         final Map<String, List<String>> formMap;
         final List<UploadedFile> files;
@@ -181,14 +207,4 @@ public class RequestParser {
             this.contentType = contentType;
         }
     }
-
-    private static class RouteParseResult {
-        final Map<String, String> routeParams;
-        final List<String> wildcardParts;
-
-        RouteParseResult(Map<String, String> routeParams, List<String> wildcardParts) {
-            this.routeParams = routeParams;
-            this.wildcardParts = wildcardParts;
-        }
-    }
 }
\ No newline at end of file
@@ -0,0 +1,19 @@
+package org.oldskooler.webserver4j.results;
+
+import io.netty.handler.codec.http.HttpContentCompressor;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponse;
+import org.oldskooler.webserver4j.staticfiles.MimeTypes;
+
+/**
+ * {@link HttpContentCompressor} that only compresses text-like responses and never touches
+ * responses whose body is sent as a file region, which must reach the socket unchanged.
+ */
+public class ResponseCompressor extends HttpContentCompressor {
+    @Override
+    protected Result beginEncode(HttpResponse res, String acceptEncoding) throws Exception {
+        if (res instanceof FileResponse) return null;
+        if (!MimeTypes.isCompressible(res.headers().get(HttpHeaderNames.CONTENT_TYPE))) return null;
+        return super.beginEncode(res, acceptEncoding);
+    }
+}
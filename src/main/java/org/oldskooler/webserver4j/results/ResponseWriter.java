@@ -1,23 +1,34 @@
 package org.oldskooler.webserver4j.results;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
 import io.netty.handler.codec.http.*;
-import io.netty.handler.codec.http.cookie.Cookie;
-import io.netty.handler.codec.http.cookie.DefaultCookie;
-import io.netty.handler.codec.http.cookie.ServerCookieEncoder;
+import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.stream.ChunkedFile;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedNioFile;
+import io.netty.util.ReferenceCountUtil;
 import org.oldskooler.webserver4j.error.ErrorRegistry;
 import org.oldskooler.webserver4j.http.HttpContext;
 import org.oldskooler.webserver4j.http.HttpResponseData;
+import org.oldskooler.webserver4j.http.Preconditions;
 import org.oldskooler.webserver4j.session.Session;
 import org.oldskooler.webserver4j.session.SessionManager;
+import org.oldskooler.webserver4j.staticfiles.AcceptEncoding;
+import org.oldskooler.webserver4j.staticfiles.CachedFile;
+import org.oldskooler.webserver4j.staticfiles.CompressedVariant;
 import org.oldskooler.webserver4j.staticfiles.MimeTypes;
+import org.oldskooler.webserver4j.staticfiles.StaticFileService;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Handles writing HTTP responses back to clients.
@@ -32,10 +43,25 @@ import java.nio.file.Files;
  * </ul>
  */
 public class ResponseWriter {
+    /** Matches the maximum TLS record payload, so each chunk encrypts into one record. */
+    private static final int TLS_CHUNK_SIZE = 16 * 1024;
+    /** Chunk size for files streamed through the compressor. */
+    private static final int COMPRESSED_CHUNK_SIZE = 32 * 1024;
+
     private final SessionManager sessions;
+    private final StaticFileService staticFiles;
 
     public ResponseWriter(SessionManager sessions) {
+        this(sessions, null);
+    }
+
+    /**
+     * @param sessions    session manager for the session cookie
+     * @param staticFiles used to find precompressed sidecars of sent files; may be null
+     */
+    public ResponseWriter(SessionManager sessions, StaticFileService staticFiles) {
         this.sessions = sessions;
+        this.staticFiles = staticFiles;
     }
 
     /**
@@ -51,21 +77,39 @@ public class ResponseWriter {
                               FullHttpRequest req, Session session, HttpResponseData data) {
         try {
             if (data.getFilePath() != null) {
-                sendFile(session, chx, req, new File(data.getFilePath()));
+                data.release();
+                sendFile(session, chx, req, new File(data.getFilePath()), data.getHeaders());
+                return;
+            }
+            ChunkedInput<ByteBuf> stream = data.takeStream();
+            if (stream != null) {
+                writeStream(chx, req, session, data, stream);
                 return;
             }
 
+            ByteBuf content = data.takeContent();
+            if (content == null || data.getStatus() == 304) {
+                if (content != null) content.release();
+                content = Unpooled.wrappedBuffer(data.getBody());
+            }
             FullHttpResponse res = new DefaultFullHttpResponse(
                     HttpVersion.HTTP_1_1,
                     HttpResponseStatus.valueOf(data.getStatus()),
-                    Unpooled.wrappedBuffer(data.getBody())
+                    content
             );
-            res.headers().set(HttpHeaderNames.CONTENT_TYPE, data.getContentType());
-            res.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, data.getBody().length);
-            data.getHeaders().forEach(res.headers()::set);
+            try {
+                if (data.getStatus() != 304) {
+                    res.headers().set(HttpHeaderNames.CONTENT_TYPE, data.getContentType());
+                    res.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
+                }
+                data.getHeaders().forEach(res.headers()::set);
 
-            applySessionCookie(res, req, session);
-            setConnectionHeaders(res, req);
+                applySessionCookie(res, req, session);
+                setConnectionHeaders(res, req);
+            } catch (Throwable ex) {
+                res.release();
+                throw ex;
+            }
 
             ChannelFuture f = chx.writeAndFlush(res);
             if (!HttpUtil.isKeepAlive(req)) {
@@ -76,8 +120,44 @@ public class ResponseWriter {
         }
     }
 
+    /**
+     * Writes a response whose body is produced while it is sent, chunk by chunk as the socket
+     * accepts data. HTTP/1.0 clients know no chunked encoding; they get the body delimited by
+     * closing the connection.
+     */
+    private void writeStream(ChannelHandlerContext chx, FullHttpRequest req, Session session,
+                             HttpResponseData data, ChunkedInput<ByteBuf> stream) {
+        boolean chunked = !HttpVersion.HTTP_1_0.equals(req.protocolVersion());
+        HttpResponse res = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.valueOf(data.getStatus()));
+        try {
+            res.headers().set(HttpHeaderNames.CONTENT_TYPE, data.getContentType());
+            if (chunked) HttpUtil.setTransferEncodingChunked(res, true);
+            data.getHeaders().forEach(res.headers()::set);
+            applySessionCookie(res, req, session);
+            if (chunked) setConnectionHeaders(res, req);
+        } catch (Throwable ex) {
+            discard(stream);
+            throw ex;
+        }
+
+        chx.write(res);
+        ChannelFuture last = chx.writeAndFlush(new HttpChunkedInput(stream));
+        if (!chunked || !HttpUtil.isKeepAlive(req)) {
+            last.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
     /**
      * Sends a static file response to the client.
+     * <p>
+     * The file is streamed, never loaded into memory. On plaintext connections it is handed to
+     * the kernel as a {@link DefaultFileRegion} ({@code sendfile}); over TLS it is read in
+     * record-sized chunks. If the client accepts an encoding for which a precompressed
+     * sidecar exists, the sidecar is sent as stored; otherwise compressible types are
+     * compressed on the fly when the client accepts it.
+     * <p>
+     * A GET with a {@code Range} header gets 206 Partial Content, as multipart/byteranges when
+     * several ranges are asked for, or 416 if none can be satisfied. {@code If-Range} is honored.
      *
      * @param session current session
      * @param chx     Netty channel context
@@ -86,50 +166,305 @@ public class ResponseWriter {
      * @throws Exception if reading or sending fails
      */
     public void sendFile(Session session, ChannelHandlerContext chx, FullHttpRequest req, File file) throws Exception {
-        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        sendFile(session, chx, req, file, Collections.emptyMap());
+    }
 
-        HttpResponse res = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    /**
+     * Sends a file held in memory by the static file cache, choosing the encoded variant the
+     * client accepts. Releases {@code cached} when done.
+     *
+     * @param session current session
+     * @param chx     Netty channel context
+     * @param req     original HTTP request
+     * @param cached  cached file; ownership passes to this method
+     */
+    public void sendCached(Session session, ChannelHandlerContext chx, FullHttpRequest req, CachedFile cached) {
+        try {
+            CachedFile.Variant variant = cached.select(req.headers().get(HttpHeaderNames.ACCEPT_ENCODING));
+            if (isNotModified(req, variant.etag, cached.lastModified())) {
+                writeNotModified(chx, req, session, variant.etag, cached.lastModified(),
+                        variant.headers.get(HttpHeaderNames.VARY) != null);
+                return;
+            }
+            ByteBuf content = variant.content();
+            try {
+                long length = content.readableBytes();
+                List<ByteRange> ranges = requestedRanges(req, variant.etag, cached.lastModified(), length);
+                if (ranges != null && ranges.isEmpty()) {
+                    writeRangeNotSatisfiable(chx, req, session, length);
+                    return;
+                }
 
-        // Set content type based on file extension
-        String ext = getFileExtension(file);
-        res.headers().set(HttpHeaderNames.CONTENT_TYPE, MimeTypes.get(ext));
+                HttpResponse res = new FileResponse(ranges == null
+                        ? HttpResponseStatus.OK : HttpResponseStatus.PARTIAL_CONTENT);
+                res.headers().add(variant.headers);
+                setCacheControl(res);
+                applySessionCookie(res, req, session);
+                setConnectionHeaders(res, req);
 
-        applySessionCookie(res, req, session);
+                ChannelFuture last;
+                if (ranges == null) {
+                    chx.write(res);
+                    last = chx.writeAndFlush(new DefaultLastHttpContent(content.retain()));
+                } else if (ranges.size() == 1) {
+                    ByteRange r = ranges.get(0);
+                    res.headers().set(HttpHeaderNames.CONTENT_RANGE, r.contentRange(length));
+                    res.headers().set(HttpHeaderNames.CONTENT_LENGTH, r.length());
+                    chx.write(res);
+                    last = chx.writeAndFlush(new DefaultLastHttpContent(slice(content, r)));
+                } else {
+                    last = writeMultipart(chx, res, ranges, variant.headers.get(HttpHeaderNames.CONTENT_TYPE),
+                            length, r -> slice(content, r));
+                }
+                if (!HttpUtil.isKeepAlive(req)) {
+                    last.addListener(ChannelFutureListener.CLOSE);
+                }
+            } finally {
+                content.release();
+            }
+        } catch (IOException e) {
+            // slices of an in-memory buffer cannot fail to open
+            throw new IllegalStateException(e);
+        } finally {
+            cached.release();
+        }
+    }
+
+    private static ByteBuf slice(ByteBuf content, ByteRange r) {
+        return content.retainedSlice(content.readerIndex() + (int) r.start, (int) r.length());
+    }
+
+    private void sendFile(Session session, ChannelHandlerContext chx, FullHttpRequest req, File file,
+                          Map<String, String> headers) throws Exception {
+        String contentType = MimeTypes.get(getFileExtension(file));
+        String acceptEncoding = req.headers().get(HttpHeaderNames.ACCEPT_ENCODING);
+        CompressedVariant variant = staticFiles == null ? null : staticFiles.findPrecompressed(file, acceptEncoding);
+        // Ranges address stored bytes, so range requests are never compressed on the fly
+        String coding = variant == null && !req.headers().contains(HttpHeaderNames.RANGE)
+                && MimeTypes.isCompressible(contentType) ? compressedCoding(acceptEncoding) : null;
+        boolean compress = coding != null;
+        boolean vary = variant != null || MimeTypes.isCompressible(contentType);
+
+        // Compressing on the fly gives a weak tag, named like the gzip variant of the static cache
+        long lastModified = file.lastModified();
+        String etag = compress
+                ? "W/" + Preconditions.fileEtag(file.length(), lastModified, coding)
+                : Preconditions.fileEtag(file.length(), lastModified, variant != null ? variant.encoding : null);
+        if (isNotModified(req, etag, lastModified)) {
+            writeNotModified(chx, req, session, etag, lastModified, vary);
+            return;
+        }
+
+        File source = variant != null ? variant.file : file;
+        RandomAccessFile raf = new RandomAccessFile(source, "r");
+        try {
+            long length = raf.length();
+            List<ByteRange> ranges = compress ? null : requestedRanges(req, etag, lastModified, length);
+            if (ranges != null && ranges.isEmpty()) {
+                raf.close();
+                writeRangeNotSatisfiable(chx, req, session, length);
+                return;
+            }
+
+            HttpResponseStatus status = ranges == null ? HttpResponseStatus.OK : HttpResponseStatus.PARTIAL_CONTENT;
+            HttpResponse res = compress
+                    ? new DefaultHttpResponse(HttpVersion.HTTP_1_1, status)
+                    : new FileResponse(status);
+            res.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+            if (variant != null) {
+                res.headers().set(HttpHeaderNames.CONTENT_ENCODING, variant.encoding);
+            }
+            if (vary) {
+                res.headers().set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+            }
+            if (!compress) {
+                res.headers().set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+            }
+            res.headers().set(HttpHeaderNames.ETAG, etag);
+            res.headers().set(HttpHeaderNames.LAST_MODIFIED, Preconditions.httpDate(lastModified));
+            setCacheControl(res);
+            headers.forEach(res.headers()::set);
+            applySessionCookie(res, req, session);
+            setConnectionHeaders(res, req);
+
+            boolean tls = chx.pipeline().get(SslHandler.class) != null;
+            ChannelFuture last;
+            if (ranges != null && ranges.size() > 1) {
+                // Every part gets its own file handle, since a region closes its file when released
+                raf.close();
+                last = writeMultipart(chx, res, ranges, contentType, length, r -> tls
+                        ? new ChunkedFile(new RandomAccessFile(source, "r"), r.start, r.length(), TLS_CHUNK_SIZE)
+                        : new DefaultFileRegion(source, r.start, r.length()));
+            } else {
+                long offset = 0;
+                long count = length;
+                if (ranges != null) {
+                    ByteRange r = ranges.get(0);
+                    res.headers().set(HttpHeaderNames.CONTENT_RANGE, r.contentRange(length));
+                    offset = r.start;
+                    count = r.length();
+                }
+                res.headers().set(HttpHeaderNames.CONTENT_LENGTH, count);
+                chx.write(res);
+
+                if (compress) {
+                    // The compressor replaces Content-Length with chunked encoding
+                    last = chx.writeAndFlush(new HttpChunkedInput(
+                            new ChunkedNioFile(raf.getChannel(), 0, length, COMPRESSED_CHUNK_SIZE)));
+                } else if (!tls) {
+                    chx.write(new DefaultFileRegion(raf.getChannel(), offset, count));
+                    last = chx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+                } else {
+                    last = chx.writeAndFlush(new HttpChunkedInput(new ChunkedFile(raf, offset, count, TLS_CHUNK_SIZE)));
+                }
+            }
+            if (!HttpUtil.isKeepAlive(req)) {
+                last.addListener(ChannelFutureListener.CLOSE);
+            }
+        } catch (Throwable ex) {
+            raf.close();
+            throw ex;
+        }
+    }
 
-        long length = raf.length();
-        res.headers().set(HttpHeaderNames.CONTENT_LENGTH, length);
+    /** Opens the body of one part of a multipart/byteranges response. */
+    private interface PartSource {
+        Object open(ByteRange range) throws IOException;
+    }
+
+    /**
+     * Writes {@code res} as a multipart/byteranges response with one part per range. All part
+     * bodies are opened before anything is written, so a failure can still produce an error
+     * response.
+     */
+    private ChannelFuture writeMultipart(ChannelHandlerContext chx, HttpResponse res, List<ByteRange> ranges,
+                                         String contentType, long total, PartSource source) throws IOException {
+        String boundary = ByteRange.boundary();
+        byte[] closing = ByteRange.closingDelimiter(boundary);
+        byte[][] partHeaders = new byte[ranges.size()][];
+        long contentLength = closing.length;
+        for (int i = 0; i < partHeaders.length; i++) {
+            ByteRange r = ranges.get(i);
+            partHeaders[i] = r.partHeader(boundary, contentType, total);
+            contentLength += partHeaders[i].length + r.length();
+        }
+
+        List<Object> bodies = new ArrayList<>(ranges.size());
+        try {
+            for (ByteRange r : ranges) bodies.add(source.open(r));
+        } catch (IOException | RuntimeException e) {
+            for (Object body : bodies) discard(body);
+            throw e;
+        }
+
+        res.headers().set(HttpHeaderNames.CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary);
+        res.headers().set(HttpHeaderNames.CONTENT_LENGTH, contentLength);
         chx.write(res);
+        for (int i = 0; i < partHeaders.length; i++) {
+            chx.write(new DefaultHttpContent(Unpooled.wrappedBuffer(partHeaders[i])));
+            chx.write(bodies.get(i));
+        }
+        return chx.writeAndFlush(new DefaultLastHttpContent(Unpooled.wrappedBuffer(closing)));
+    }
 
-        // Handle compression and file streaming
-        if (supportsGzipCompression(req)) {
-            sendCompressedFile(chx, file);
+    private static void discard(Object body) {
+        if (body instanceof ChunkedInput) {
+            try {
+                ((ChunkedInput<?>) body).close();
+            } catch (Exception ignored) {
+                // nothing left to clean up
+            }
         } else {
-            chx.write(new ChunkedFile(raf));
+            ReferenceCountUtil.release(body);
+        }
+    }
+
+    /**
+     * @return the ranges to send for a GET, an empty list if none is satisfiable, or null to
+     * send the whole representation (no or malformed Range header, or a stale If-Range)
+     */
+    private List<ByteRange> requestedRanges(FullHttpRequest req, String etag, long lastModified, long length) {
+        if (!HttpMethod.GET.equals(req.method())) return null;
+        String range = req.headers().get(HttpHeaderNames.RANGE);
+        if (range == null || !Preconditions.ifRangeMatches(req.headers().get(HttpHeaderNames.IF_RANGE), etag, lastModified)) {
+            return null;
         }
+        return ByteRange.parse(range, length);
+    }
+
+    private void writeRangeNotSatisfiable(ChannelHandlerContext chx, FullHttpRequest req, Session session, long total) {
+        FullHttpResponse res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+        res.headers().set(HttpHeaderNames.CONTENT_RANGE, "bytes */" + total);
+        res.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, 0);
+        applySessionCookie(res, req, session);
+        setConnectionHeaders(res, req);
 
-        ChannelFuture last = chx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+        ChannelFuture f = chx.writeAndFlush(res);
         if (!HttpUtil.isKeepAlive(req)) {
-            last.addListener(ChannelFutureListener.CLOSE);
+            f.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    private boolean isNotModified(FullHttpRequest req, String etag, long lastModified) {
+        HttpMethod m = req.method();
+        if (!m.equals(HttpMethod.GET) && !m.equals(HttpMethod.HEAD)) return false;
+        return Preconditions.isNotModified(req.headers().get(HttpHeaderNames.IF_NONE_MATCH),
+                req.headers().get(HttpHeaderNames.IF_MODIFIED_SINCE), etag, lastModified);
+    }
+
+    /** Answers a conditional request with a bodiless 304 carrying the current validators. */
+    private void writeNotModified(ChannelHandlerContext chx, FullHttpRequest req, Session session,
+                                  String etag, long lastModified, boolean vary) {
+        FullHttpResponse res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED);
+        res.headers().set(HttpHeaderNames.ETAG, etag);
+        res.headers().set(HttpHeaderNames.LAST_MODIFIED, Preconditions.httpDate(lastModified));
+        if (vary) res.headers().set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+        setCacheControl(res);
+        applySessionCookie(res, req, session);
+        setConnectionHeaders(res, req);
+
+        ChannelFuture f = chx.writeAndFlush(res);
+        if (!HttpUtil.isKeepAlive(req)) {
+            f.addListener(ChannelFutureListener.CLOSE);
         }
     }
 
+    private void setCacheControl(HttpResponse res) {
+        String cacheControl = staticFiles != null ? staticFiles.cacheControl() : null;
+        if (cacheControl != null) res.headers().set(HttpHeaderNames.CACHE_CONTROL, cacheControl);
+    }
+
+    /**
+     * Writes a plain-text response carrying only a status, for a request whose handler could
+     * not run, e.g. because the executor rejected it or failed outside the handler.
+     *
+     * @param chx    Netty channel context
+     * @param req    original request
+     * @param status status to send
+     */
+    public void writeStatus(ChannelHandlerContext chx, FullHttpRequest req, HttpResponseStatus status) {
+        writePlain(chx, req, null, status);
+    }
+
     private void handleWriteError(ChannelHandlerContext chx, HttpContext ctx,
                                   FullHttpRequest req, Session session, Throwable ex) {
-        // Create a simple 500 error response
-        HttpResponseData errorResp = new HttpResponseData();
-        errorResp.setStatus(500);
-        errorResp.setContentType("text/plain; charset=UTF-8");
-        errorResp.setBody("Internal Server Error".getBytes(StandardCharsets.UTF_8));
+        writePlain(chx, req, session, HttpResponseStatus.INTERNAL_SERVER_ERROR);
+    }
+
+    private void writePlain(ChannelHandlerContext chx, FullHttpRequest req, Session session,
+                            HttpResponseStatus status) {
+        byte[] body = status.reasonPhrase().getBytes(StandardCharsets.UTF_8);
 
-        // Try to write the error response (without recursion)
+        // Try to write the response (without recursion)
         try {
             FullHttpResponse res = new DefaultFullHttpResponse(
                     HttpVersion.HTTP_1_1,
-                    HttpResponseStatus.INTERNAL_SERVER_ERROR,
-                    Unpooled.wrappedBuffer(errorResp.getBody())
+                    status,
+                    Unpooled.wrappedBuffer(body)
             );
-            res.headers().set(HttpHeaderNames.CONTENT_TYPE, errorResp.getContentType());
-            res.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, errorResp.getBody().length);
+            res.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; charset=UTF-8");
+            res.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, body.length);
 
             applySessionCookie(res, req, session);
             setConnectionHeaders(res, req);
@@ -152,18 +487,16 @@ public class ResponseWriter {
     }
 
     /**
-     * Adds or updates the session cookie in the HTTP response.
+     * Adds the session cookie to the HTTP response if the session is new or was rotated.
      *
      * @param res     response to add the cookie to
      * @param req     original request
-     * @param session current session
+     * @param session current session, or null if the request never reached session lookup
      */
     private void applySessionCookie(HttpResponse res, FullHttpRequest req, Session session) {
-        Cookie cookie = new DefaultCookie("SESSIONID", sessions.ensureId(session));
-        cookie.setHttpOnly(true);
-        cookie.setPath("/");
-        String encodedCookie = ServerCookieEncoder.STRICT.encode(cookie);
-        res.headers().add(HttpHeaderNames.SET_COOKIE, encodedCookie);
+        if (session == null) return;
+        String encodedCookie = sessions.cookieHeader(session);
+        if (encodedCookie != null) res.headers().add(HttpHeaderNames.SET_COOKIE, encodedCookie);
     }
 
     private String getFileExtension(File file) {
@@ -173,12 +506,16 @@ public class ResponseWriter {
                 : "";
     }
 
-    private boolean supportsGzipCompression(FullHttpRequest req) {
-        return req.headers().get(HttpHeaderNames.ACCEPT_ENCODING, "").contains("gzip");
-    }
-
-    private void sendCompressedFile(ChannelHandlerContext chx, File file) throws Exception {
-        byte[] uncompressed = Files.readAllBytes(file.toPath());
-        chx.write(new DefaultHttpContent(Unpooled.wrappedBuffer(uncompressed)));
+    /**
+     * Returns the coding {@link ResponseCompressor} will use for a request, choosing between
+     * gzip and deflate the way Netty does; the build has no Brotli or Zstandard encoder.
+     *
+     * @return "gzip", "deflate", or null if the client accepts neither
+     */
+    private static String compressedCoding(String acceptEncoding) {
+        double gzip = AcceptEncoding.quality(acceptEncoding, "gzip");
+        double deflate = AcceptEncoding.quality(acceptEncoding, "deflate");
+        if (gzip <= 0 && deflate <= 0) return null;
+        return gzip >= deflate ? "gzip" : "deflate";
     }
 }
\ No newline at end of file
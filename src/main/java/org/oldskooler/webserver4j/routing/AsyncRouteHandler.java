@@ -0,0 +1,35 @@
+package org.oldskooler.webserver4j.routing;
+
+import org.oldskooler.webserver4j.controller.ActionResult;
+import org.oldskooler.webserver4j.http.HttpContext;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Route handler that completes asynchronously.
+ * <p>
+ * The handler returns as soon as it has started its work; the response is written on the
+ * channel's event loop once the returned stage completes, so no thread is held while waiting
+ * on downstream services. The stage is cancelled if the connection closes or the server's
+ * async timeout elapses first; after a timeout a 503 has already been sent.
+ * <p>
+ * The request, including its body, stays readable until the stage completes. Once it has
+ * completed, or been cancelled, the request is released and work still running must not
+ * read it.
+ */
+@FunctionalInterface
+public interface AsyncRouteHandler extends RouteHandler {
+    /**
+     * @param ctx request context; the response may be filled in until the stage completes
+     * @return stage that completes when the response is ready, or null if it already is
+     * @throws Exception if the handler fails before returning a stage
+     */
+    CompletionStage<ActionResult> handleAsync(HttpContext ctx) throws Exception;
+
+    /** Blocks until {@link #handleAsync(HttpContext)} completes. */
+    @Override
+    default ActionResult handle(HttpContext ctx) throws Exception {
+        CompletionStage<ActionResult> stage = handleAsync(ctx);
+        return stage == null ? null : stage.toCompletableFuture().get();
+    }
+}
@@ -7,11 +7,21 @@ public class MatchedRoute {
     public RouteDefinition route;
     public Map<String, String> params;
     public List<String> wildcards;
+    /** Captures of the match, read lazily; {@link #params} and {@link #wildcards} are built from it. */
+    public RouteParams routeParams;
 
     public MatchedRoute(RouteDefinition route, Map<String, String> params, List<String> wildcards) {
         this.route = route;
         this.params = params;
         this.wildcards = wildcards;
+        this.routeParams = RouteParams.of(params, wildcards);
+    }
+
+    public MatchedRoute(RouteDefinition route, RouteParams routeParams) {
+        this.route = route;
+        this.routeParams = routeParams;
+        this.params = routeParams.asMap();
+        this.wildcards = routeParams.wildcards();
     }
 
 
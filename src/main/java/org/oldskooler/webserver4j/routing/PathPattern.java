@@ -1,81 +1,197 @@
 package org.oldskooler.webserver4j.routing;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
- * Converts ASP.NET-style route templates (e.g., "/users/{id}", "/files/**") to regex patterns.
+ * Compiles ASP.NET-style route templates (e.g., "/users/{id}", "/files/**") into segment matchers.
  * Supports named params {name}, single segment wildcard * and multi-segment wildcard **.
+ * <p>
+ * A compiled pattern scans the path once by index. Named params and * match one non-empty
+ * segment, ** matches zero or more characters including slashes (greedy), and a single
+ * trailing slash on the path is ignored. Captures are written as offsets into a
+ * {@link RouteParams} holder rather than as strings.
  */
 public final class PathPattern {
-    private final Pattern regex;
     /**
-     * Named groups for {...} route params.
+     * Kinds of template segments.
      */
-    private final List<String> routeParamGroupNames;
+    public enum SegmentKind {
+        /** Literal text that must match exactly. */
+        LITERAL,
+        /** Named route param {name}, matches one segment. */
+        PARAM,
+        /** Single segment wildcard *. */
+        WILDCARD,
+        /** Multi-segment wildcard **, matches zero or more characters including slashes. */
+        MULTI_WILDCARD
+    }
+
+    /**
+     * A single parsed template segment.
+     */
+    public static final class Segment {
+        public final SegmentKind kind;
+        /** Literal text for {@link SegmentKind#LITERAL}, param name for {@link SegmentKind#PARAM}, otherwise null. */
+        public final String value;
+
+        Segment(SegmentKind kind, String value) {
+            this.kind = kind;
+            this.value = value;
+        }
+    }
+
+    private final String template;
+    private final Segment[] segments;
+    private final List<Segment> segmentList;
     /**
-     * Named groups for wildcards in positional order (w0, w1, ...).
+     * Param name per capture in path order; null for wildcards.
      */
-    private final List<String> wildcardGroupNames;
+    private final String[] captureNames;
+    /**
+     * Capture index of each wildcard in positional order (w0, w1, ...).
+     */
+    private final int[] wildcardSlots;
+    private final List<String> routeParamNames;
+    /** Equivalent regex for the deprecated regex API, built on first use. */
+    private volatile Pattern regex;
 
-    private PathPattern(Pattern regex, List<String> routeParamGroupNames, List<String> wildcardGroupNames) {
-        this.regex = regex;
-        this.routeParamGroupNames = routeParamGroupNames;
-        this.wildcardGroupNames = wildcardGroupNames;
+    private PathPattern(String template, List<Segment> segments, List<String> captureNames,
+                        List<String> routeParamNames) {
+        this.template = template;
+        this.segments = segments.toArray(new Segment[0]);
+        this.segmentList = Collections.unmodifiableList(segments);
+        this.captureNames = captureNames.toArray(new String[0]);
+        this.routeParamNames = Collections.unmodifiableList(routeParamNames);
+
+        int wildcards = 0;
+        for (String n : this.captureNames) if (n == null) wildcards++;
+        this.wildcardSlots = new int[wildcards];
+        for (int i = 0, w = 0; i < this.captureNames.length; i++) {
+            if (this.captureNames[i] == null) wildcardSlots[w++] = i;
+        }
     }
 
     public static PathPattern compile(String template) {
         String[] parts = template.split("/");
-        StringBuilder sb = new StringBuilder();
+        List<Segment> segments = new ArrayList<>();
+        List<String> captureNames = new ArrayList<>();
         List<String> routeNames = new ArrayList<>();
-        List<String> wildcardNames = new ArrayList<>();
-        int wIndex = 0;
-        sb.append("^");
+        Set<String> seen = new HashSet<>();
         for (String p : parts) {
             if (p.isEmpty()) continue;
-            sb.append("/");
             if (p.equals("**")) {
-                String wn = "w" + (wIndex++);
-                sb.append("(?<").append(wn).append(">.*)");
-                wildcardNames.add(wn);
+                segments.add(new Segment(SegmentKind.MULTI_WILDCARD, null));
+                captureNames.add(null);
             } else if (p.equals("*")) {
-                String wn = "w" + (wIndex++);
-                sb.append("(?<").append(wn).append(">[^/]+)");
-                wildcardNames.add(wn);
+                segments.add(new Segment(SegmentKind.WILDCARD, null));
+                captureNames.add(null);
             } else if (p.startsWith("{") && p.endsWith("}")) {
                 String name = p.substring(1, p.length() - 1);
+                if (!seen.add(name)) {
+                    throw new IllegalArgumentException("Duplicate route param {" + name + "} in template: " + template);
+                }
+                segments.add(new Segment(SegmentKind.PARAM, name));
+                captureNames.add(name);
                 routeNames.add(name);
-                sb.append("(?<").append(name).append(">[^/]+)");
             } else {
-                sb.append(Pattern.quote(p));
+                segments.add(new Segment(SegmentKind.LITERAL, p));
             }
         }
-        sb.append("/?$");
-        return new PathPattern(Pattern.compile(sb.toString()), routeNames, wildcardNames);
+        return new PathPattern(template, segments, captureNames, routeNames);
+    }
+
+    /**
+     * @return the template this pattern was compiled from
+     */
+    public String template() {
+        return template;
     }
 
+    /**
+     * Parsed template segments in path order; empty for the root template "/".
+     */
+    public List<Segment> segments() {
+        return segmentList;
+    }
+
+    /**
+     * Names of the {...} route params in path order.
+     */
+    public List<String> routeParamNames() {
+        return routeParamNames;
+    }
+
+    /**
+     * @return number of * and ** wildcards in the template
+     */
+    public int wildcardCount() {
+        return wildcardSlots.length;
+    }
+
+    /**
+     * Builds a regex equivalent to this pattern, with a named group per route param and groups
+     * w0, w1, ... for the wildcards. Matching no longer uses it.
+     *
+     * @deprecated match with {@link #match(String, RouteParams)} instead
+     */
+    @Deprecated
     public Pattern regex() {
-        return regex;
+        Pattern p = regex;
+        if (p == null) {
+            StringBuilder sb = new StringBuilder("^");
+            int w = 0;
+            for (Segment s : segments) {
+                sb.append('/');
+                switch (s.kind) {
+                    case MULTI_WILDCARD: sb.append("(?<w").append(w++).append(">.*)"); break;
+                    case WILDCARD: sb.append("(?<w").append(w++).append(">[^/]+)"); break;
+                    case PARAM: sb.append("(?<").append(s.value).append(">[^/]+)"); break;
+                    default: sb.append(Pattern.quote(s.value));
+                }
+            }
+            sb.append("/?$");
+            regex = p = Pattern.compile(sb.toString());
+        }
+        return p;
     }
 
+    /**
+     * @deprecated use {@link #routeParamNames()}
+     */
+    @Deprecated
     public List<String> routeParamGroupNames() {
-        return routeParamGroupNames;
+        return routeParamNames;
     }
 
+    /**
+     * Group names of the wildcards in {@link #regex()}, in positional order (w0, w1, ...).
+     *
+     * @deprecated use {@link #wildcardCount()}
+     */
+    @Deprecated
     public List<String> wildcardGroupNames() {
-        return wildcardGroupNames;
+        List<String> names = new ArrayList<>(wildcardSlots.length);
+        for (int i = 0; i < wildcardSlots.length; i++) names.add("w" + i);
+        return names;
     }
 
     /**
-     * Extract named groups from a regex matcher into a map.
+     * Extract named groups from a {@link #regex()} matcher into a map.
+     *
+     * @deprecated use {@link RouteParams#asMap()}
      */
+    @Deprecated
     public Map<String, String> extractRouteParams(Matcher m) {
         Map<String, String> map = new HashMap<>();
-        for (String g : routeParamGroupNames) {
+        for (String g : routeParamNames) {
             try {
                 String v = m.group(g);
                 if (v != null) map.put(g, v);
@@ -87,11 +203,14 @@ public final class PathPattern {
     }
 
     /**
-     * Extract wildcard captures in positional order.
+     * Extract wildcard captures from a {@link #regex()} matcher in positional order.
+     *
+     * @deprecated use {@link RouteParams#wildcards()}
      */
+    @Deprecated
     public List<String> extractWildcards(Matcher m) {
         List<String> out = new ArrayList<>();
-        for (String g : wildcardGroupNames) {
+        for (String g : wildcardGroupNames()) {
             try {
                 String v = m.group(g);
                 if (v != null) out.add(v);
@@ -101,4 +220,77 @@ public final class PathPattern {
         }
         return out;
     }
+
+    String[] captureNames() {
+        return captureNames;
+    }
+
+    int[] wildcardSlots() {
+        return wildcardSlots;
+    }
+
+    /**
+     * Tests whether a path matches this pattern without recording captures.
+     */
+    public boolean matches(String path) {
+        return matchFrom(path, 0, 0, null, 0);
+    }
+
+    /**
+     * Matches a path and, on success, binds its captures into {@code params}.
+     *
+     * @param path   request path without query string
+     * @param params holder to write capture offsets into
+     * @return true if the path matches
+     */
+    public boolean match(String path, RouteParams params) {
+        params.reset();
+        params.ensureCapacity(captureNames.length);
+        if (!matchFrom(path, 0, 0, params.scratch, 0)) return false;
+        params.bind(path, this, captureNames.length);
+        return true;
+    }
+
+    /**
+     * Matches segments from index {@code seg} against the path starting at {@code pos}, where
+     * the next "/segment" is expected. Captures are recorded into {@code caps} when non-null.
+     */
+    private boolean matchFrom(String path, int seg, int pos, int[] caps, int depth) {
+        int len = path.length();
+        if (seg == segments.length) {
+            return pos == len || (pos == len - 1 && path.charAt(pos) == '/');
+        }
+        if (pos >= len || path.charAt(pos) != '/') return false;
+
+        Segment s = segments[seg];
+        int start = pos + 1;
+        if (s.kind == SegmentKind.MULTI_WILDCARD) {
+            // Greedy: try the longest capture first, then shorten it to each earlier slash.
+            int e = len;
+            while (e >= start) {
+                if (caps != null) {
+                    caps[depth * 2] = start;
+                    caps[depth * 2 + 1] = e;
+                }
+                if (matchFrom(path, seg + 1, e, caps, depth + 1)) return true;
+                e = e > start ? path.lastIndexOf('/', e - 1) : -1;
+            }
+            return false;
+        }
+
+        int end = path.indexOf('/', start);
+        if (end < 0) end = len;
+        if (end == start) return false;
+
+        if (s.kind == SegmentKind.LITERAL) {
+            if (end - start != s.value.length() || !path.regionMatches(start, s.value, 0, end - start)) return false;
+            return matchFrom(path, seg + 1, end, caps, depth);
+        }
+
+        if (caps != null) {
+            caps[depth * 2] = start;
+            caps[depth * 2 + 1] = end;
+        }
+        return matchFrom(path, seg + 1, end, caps, depth + 1);
+    }
 }
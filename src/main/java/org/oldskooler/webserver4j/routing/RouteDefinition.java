@@ -1,5 +1,6 @@
 package org.oldskooler.webserver4j.routing;
 
+import org.oldskooler.webserver4j.http.ExecutionModel;
 import org.oldskooler.webserver4j.http.HttpMethod;
 
 import java.util.regex.Pattern;
@@ -10,15 +11,50 @@ import java.util.regex.Pattern;
 public class RouteDefinition {
     public final HttpMethod method;
     public final String template;
+    /**
+     * Regex equivalent of {@link #compiled}, or the one passed to the deprecated constructor.
+     * Routing matches with {@link #compiled} only.
+     *
+     * @deprecated use {@link #compiled}, or {@link PathPattern#regex()} where a regex is required
+     */
+    @Deprecated
     public final Pattern pattern;
     public final PathPattern compiled;
     public final RouteHandler handler;
+    /** Execution model for this route, or null to use the server default. */
+    public final ExecutionModel execution;
+    /** Maximum request body size in bytes; 0 uses the server default, -1 means unlimited. */
+    public final long maxBodySize;
+    /** Whether the body is streamed to the handler instead of aggregated. */
+    public final boolean streamBody;
 
+    public RouteDefinition(HttpMethod method, String template, PathPattern compiled, RouteHandler handler) {
+        this(method, template, compiled, handler, null);
+    }
+
+    /**
+     * @deprecated the regex is no longer used for matching; use
+     * {@link #RouteDefinition(HttpMethod, String, PathPattern, RouteHandler)}
+     */
+    @Deprecated
     public RouteDefinition(HttpMethod method, String template, PathPattern compiled, Pattern pattern, RouteHandler handler) {
+        this(method, template, compiled, pattern, handler, null);
+    }
+
+    public RouteDefinition(HttpMethod method, String template, PathPattern compiled, RouteHandler handler,
+                           RouteOptions options) {
+        this(method, template, compiled, null, handler, options);
+    }
+
+    private RouteDefinition(HttpMethod method, String template, PathPattern compiled, Pattern pattern,
+                            RouteHandler handler, RouteOptions options) {
         this.method = method;
+        this.pattern = pattern != null || compiled == null ? pattern : compiled.regex();
         this.template = template;
         this.compiled = compiled;
-        this.pattern = pattern;
         this.handler = handler;
+        this.execution = options == null ? null : options.execution;
+        this.maxBodySize = options == null ? 0 : options.maxBodySize;
+        this.streamBody = options != null && options.streamBody;
     }
-}
\ No newline at end of file
+}
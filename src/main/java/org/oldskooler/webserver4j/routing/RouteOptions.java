@@ -0,0 +1,49 @@
+package org.oldskooler.webserver4j.routing;
+
+import org.oldskooler.webserver4j.http.ExecutionModel;
+
+/**
+ * Optional per-route settings for {@link Router#map(org.oldskooler.webserver4j.http.HttpMethod,
+ * String, RouteHandler, RouteOptions)}. Anything left unset uses the server default.
+ */
+public final class RouteOptions {
+    ExecutionModel execution;
+    long maxBodySize;
+    boolean streamBody;
+
+    /**
+     * @param model where the handler runs
+     * @return these options
+     */
+    public RouteOptions execution(ExecutionModel model) {
+        this.execution = model;
+        return this;
+    }
+
+    /**
+     * Limits the request body size. Larger aggregated requests are answered with
+     * 413 Payload Too Large before the handler runs; a streamed body fails with an
+     * {@link java.io.IOException} once the limit is crossed.
+     *
+     * @param bytes maximum body size; -1 for no limit
+     * @return these options
+     */
+    public RouteOptions maxBodySize(long bytes) {
+        this.maxBodySize = bytes;
+        return this;
+    }
+
+    /**
+     * Dispatches the request as soon as its headers arrive and hands the body to the handler
+     * as it is received, through {@link org.oldskooler.webserver4j.http.HttpRequestData#getBody()},
+     * instead of buffering it in memory first. Reads block until data arrives, so streaming
+     * routes never run on the event loop; routes that would use
+     * {@link ExecutionModel#EVENT_LOOP} run on the worker pool instead.
+     *
+     * @return these options
+     */
+    public RouteOptions streamBody() {
+        this.streamBody = true;
+        return this;
+    }
+}
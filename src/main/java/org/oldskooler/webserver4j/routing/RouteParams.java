@@ -0,0 +1,172 @@
+package org.oldskooler.webserver4j.routing;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Array-backed holder for the route params and wildcards captured by a match.
+ * <p>
+ * Matching only records start/end offsets into the request path; a value becomes a
+ * {@link String} the first time it is read and is cached afterwards. The same holder is
+ * reused for every candidate tried during a lookup, so a match allocates nothing beyond
+ * the holder itself. Instances are not thread-safe and belong to a single request.
+ */
+public final class RouteParams {
+    private static final int[] NO_OFFSETS = new int[0];
+
+    private String path;
+    private PathPattern pattern;
+    private int[] offsets = NO_OFFSETS;
+    private String[] values;
+    private Map<String, String> map;
+    private List<String> wildcards;
+    /** Wildcard values of a holder built by {@link #of}; null for matched holders. */
+    private List<String> fixedWildcards;
+
+    // Matching scratch space, reused across candidates.
+    int[] scratch = NO_OFFSETS;
+    RouteDefinition route;
+    int order = Integer.MAX_VALUE;
+
+    /**
+     * Creates a holder with the given values instead of captures of a match, for requests
+     * built by hand.
+     *
+     * @param params    named route params
+     * @param wildcards wildcard values in positional order
+     * @return an unbound holder reporting these values
+     */
+    public static RouteParams of(Map<String, String> params, List<String> wildcards) {
+        RouteParams p = new RouteParams();
+        p.map = Collections.unmodifiableMap(new HashMap<>(params));
+        p.fixedWildcards = Collections.unmodifiableList(new ArrayList<>(wildcards));
+        return p;
+    }
+
+    /**
+     * Clears the holder so it can be used for another lookup.
+     */
+    public void reset() {
+        path = null;
+        pattern = null;
+        values = null;
+        map = null;
+        fixedWildcards = null;
+        route = null;
+        order = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Ensures the scratch and result arrays can hold {@code captures} captures.
+     */
+    void ensureCapacity(int captures) {
+        int needed = captures * 2;
+        if (scratch.length < needed) {
+            scratch = new int[needed];
+            offsets = new int[needed];
+        }
+    }
+
+    /**
+     * Commits the first {@code captures} scratch captures as the current result.
+     */
+    void bind(String path, PathPattern pattern, int captures) {
+        System.arraycopy(scratch, 0, offsets, 0, captures * 2);
+        this.path = path;
+        this.pattern = pattern;
+        this.values = null;
+        this.map = null;
+    }
+
+    /**
+     * @return true if the holder is bound to a matched route
+     */
+    public boolean isBound() {
+        return pattern != null;
+    }
+
+    /**
+     * Returns the value of a named route param, or null if the matched template has none.
+     */
+    public String get(String name) {
+        if (pattern == null) return map == null ? null : map.get(name);
+        String[] names = pattern.captureNames();
+        for (int i = 0; i < names.length; i++) {
+            if (name.equals(names[i])) return value(i);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the wildcard capture at a positional index, or null if out of range.
+     */
+    public String wildcard(int index) {
+        if (pattern == null) {
+            return fixedWildcards != null && index >= 0 && index < fixedWildcards.size() ? fixedWildcards.get(index) : null;
+        }
+        int[] slots = pattern.wildcardSlots();
+        return (index >= 0 && index < slots.length) ? value(slots[index]) : null;
+    }
+
+    /**
+     * @return number of wildcard captures
+     */
+    public int wildcardCount() {
+        if (pattern == null) return fixedWildcards == null ? 0 : fixedWildcards.size();
+        return pattern.wildcardSlots().length;
+    }
+
+    /**
+     * @return an unmodifiable map of all named route params, built on first call
+     */
+    public Map<String, String> asMap() {
+        if (map == null) {
+            if (pattern == null) {
+                map = Collections.emptyMap();
+            } else {
+                Map<String, String> m = new HashMap<>();
+                String[] names = pattern.captureNames();
+                for (int i = 0; i < names.length; i++) {
+                    if (names[i] != null) m.put(names[i], value(i));
+                }
+                map = Collections.unmodifiableMap(m);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * @return an unmodifiable list view of the wildcard captures in positional order
+     */
+    public List<String> wildcards() {
+        if (wildcards == null) {
+            wildcards = new AbstractList<String>() {
+                @Override
+                public String get(int index) {
+                    if (index < 0 || index >= size()) throw new IndexOutOfBoundsException("Index: " + index);
+                    return wildcard(index);
+                }
+
+                @Override
+                public int size() {
+                    return wildcardCount();
+                }
+            };
+        }
+        return wildcards;
+    }
+
+    private String value(int capture) {
+        if (values == null) values = new String[pattern.captureNames().length];
+        String v = values[capture];
+        if (v == null) {
+            v = path.substring(offsets[capture * 2], offsets[capture * 2 + 1]);
+            values[capture] = v;
+        }
+        return v;
+    }
+}
@@ -0,0 +1,186 @@
+package org.oldskooler.webserver4j.routing;
+
+import java.util.List;
+
+/**
+ * Segment trie holding the routes of a single HTTP method.
+ * <p>
+ * Each level of the tree corresponds to one path segment. A node has literal children keyed by
+ * segment text, one child shared by {name} params and * wildcards (both match exactly one
+ * non-empty segment), and one child for ** wildcards. Lookup cost grows with the depth of the
+ * path rather than with the number of registered routes.
+ * <p>
+ * Matching keeps the semantics of the linear scan it replaces: when several templates match a
+ * path, the one registered first wins, and ** captures are greedy. Every node records the lowest
+ * registration order found in its subtree so branches that cannot beat the current best match
+ * are skipped.
+ */
+final class RouteTree {
+    private final Node root = new Node();
+    private int maxCaptures;
+
+    /**
+     * Adds a route to the tree. If an identical template was registered earlier, the earlier
+     * route keeps precedence, just like the first match of a linear scan.
+     *
+     * @param route the route definition
+     * @param order global registration order, lower wins
+     */
+    void insert(RouteDefinition route, int order) {
+        List<PathPattern.Segment> segments = route.compiled.segments();
+
+        Node node = root;
+        node.minOrder = Math.min(node.minOrder, order);
+        for (PathPattern.Segment seg : segments) {
+            switch (seg.kind) {
+                case LITERAL:
+                    if (node.literals == null) node.literals = new LiteralTable();
+                    node = node.literals.getOrAdd(seg.value);
+                    break;
+                case PARAM:
+                case WILDCARD:
+                    if (node.segment == null) node.segment = new Node();
+                    node = node.segment;
+                    break;
+                case MULTI_WILDCARD:
+                    if (node.multi == null) node.multi = new Node();
+                    node = node.multi;
+                    break;
+            }
+            node.minOrder = Math.min(node.minOrder, order);
+        }
+
+        if (node.route == null) {
+            node.route = route;
+            node.routeOrder = order;
+        }
+        maxCaptures = Math.max(maxCaptures, route.compiled.captureNames().length);
+    }
+
+    /**
+     * Finds the best matching route for a request path and binds its captures.
+     *
+     * @param path   request path without query string
+     * @param params holder to write capture offsets into
+     * @return the matched route, or null if no route matches
+     */
+    RouteDefinition find(String path, RouteParams params) {
+        params.reset();
+        params.ensureCapacity(maxCaptures);
+        search(root, path, params, 0, 0);
+        return params.route;
+    }
+
+    /**
+     * Depth-first search from {@code node}, where {@code pos} is the index at which the next
+     * "/segment" is expected and {@code depth} is the number of captures recorded so far.
+     */
+    private void search(Node node, String path, RouteParams p, int pos, int depth) {
+        if (node.minOrder >= p.order) return;
+
+        int len = path.length();
+
+        // A template may be followed by an optional trailing slash.
+        if (node.route != null && node.routeOrder < p.order
+                && (pos == len || (pos == len - 1 && path.charAt(pos) == '/'))) {
+            p.route = node.route;
+            p.order = node.routeOrder;
+            p.bind(path, node.route.compiled, depth);
+        }
+
+        if (pos >= len || path.charAt(pos) != '/') return;
+        int start = pos + 1;
+        int end = path.indexOf('/', start);
+        if (end < 0) end = len;
+
+        if (node.literals != null && end > start) {
+            Node child = node.literals.get(path, start, end);
+            if (child != null) search(child, path, p, end, depth);
+        }
+
+        if (node.segment != null && end > start) {
+            p.scratch[depth * 2] = start;
+            p.scratch[depth * 2 + 1] = end;
+            search(node.segment, path, p, end, depth + 1);
+        }
+
+        if (node.multi != null) {
+            // Greedy: try the longest capture first, then shorten it to each earlier slash.
+            int e = len;
+            while (e >= start) {
+                p.scratch[depth * 2] = start;
+                p.scratch[depth * 2 + 1] = e;
+                search(node.multi, path, p, e, depth + 1);
+                e = e > start ? path.lastIndexOf('/', e - 1) : -1;
+            }
+        }
+    }
+
+    private static final class Node {
+        LiteralTable literals;
+        Node segment;
+        Node multi;
+
+        RouteDefinition route;
+        int routeOrder = Integer.MAX_VALUE;
+
+        /** Lowest registration order of any route at or below this node. */
+        int minOrder = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Open-addressing table of literal children that is probed with a region of the request
+     * path, so lookups do not need a substring.
+     */
+    private static final class LiteralTable {
+        private String[] keys = new String[4];
+        private Node[] nodes = new Node[4];
+        private int size;
+
+        Node get(String path, int start, int end) {
+            int h = hash(path, start, end);
+            int mask = keys.length - 1;
+            int len = end - start;
+            for (int i = h & mask; ; i = (i + 1) & mask) {
+                String k = keys[i];
+                if (k == null) return null;
+                if (k.length() == len && path.regionMatches(start, k, 0, len)) return nodes[i];
+            }
+        }
+
+        Node getOrAdd(String key) {
+            Node existing = get(key, 0, key.length());
+            if (existing != null) return existing;
+            if ((size + 1) * 2 > keys.length) resize();
+            Node node = new Node();
+            put(key, node);
+            return node;
+        }
+
+        private void put(String key, Node node) {
+            int mask = keys.length - 1;
+            int i = hash(key, 0, key.length()) & mask;
+            while (keys[i] != null) i = (i + 1) & mask;
+            keys[i] = key;
+            nodes[i] = node;
+            size++;
+        }
+
+        private void resize() {
+            String[] oldKeys = keys;
+            Node[] oldNodes = nodes;
+            keys = new String[oldKeys.length * 2];
+            nodes = new Node[oldNodes.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) put(oldKeys[i], oldNodes[i]);
+            }
+        }
+
+        private static int hash(String s, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++) h = 31 * h + s.charAt(i);
+            return h ^ (h >>> 16);
+        }
+    }
+}
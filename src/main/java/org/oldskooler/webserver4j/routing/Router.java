@@ -1,32 +1,84 @@
 package org.oldskooler.webserver4j.routing;
 
+import org.oldskooler.webserver4j.http.ExecutionModel;
 import org.oldskooler.webserver4j.http.HttpMethod;
 
 import java.util.*;
-import java.util.regex.Matcher;
 
 /**
  * Router that supports explicit route registration and wildcard templates.
+ * <p>
+ * Routes are indexed in a segment trie per HTTP method, so matching cost depends on
+ * the depth of the request path rather than the number of registered routes. When
+ * several templates match, the one registered first wins.
  */
 public class Router {
     private final List<RouteDefinition> routes = new ArrayList<>();
+    private final Map<HttpMethod, RouteTree> trees = new EnumMap<>(HttpMethod.class);
 
     public void map(HttpMethod method, String template, RouteHandler handler) {
+        map(method, template, handler, (RouteOptions) null);
+    }
+
+    /**
+     * Registers a route that runs under a specific execution model.
+     *
+     * @param method    HTTP method
+     * @param template  path template
+     * @param handler   route handler
+     * @param execution where the handler runs, or null for the server default
+     */
+    public void map(HttpMethod method, String template, RouteHandler handler, ExecutionModel execution) {
+        map(method, template, handler, new RouteOptions().execution(execution));
+    }
+
+    /**
+     * Registers a route with per-route options.
+     *
+     * @param method   HTTP method
+     * @param template path template
+     * @param handler  route handler
+     * @param options  route options, or null for the server defaults
+     */
+    public void map(HttpMethod method, String template, RouteHandler handler, RouteOptions options) {
         PathPattern pp = PathPattern.compile(template);
-        routes.add(new RouteDefinition(method, template, pp, pp.regex(), handler));
+        RouteDefinition route = new RouteDefinition(method, template, pp, handler, options);
+        trees.computeIfAbsent(method, m -> new RouteTree()).insert(route, routes.size());
+        routes.add(route);
+    }
+
+    /**
+     * Registers an asynchronous route.
+     *
+     * @param method   HTTP method
+     * @param template path template
+     * @param handler  handler returning a stage that completes with the response
+     */
+    public void mapAsync(HttpMethod method, String template, AsyncRouteHandler handler) {
+        map(method, template, handler, (RouteOptions) null);
     }
 
     public Optional<MatchedRoute> match(HttpMethod method, String path) {
-        for (RouteDefinition r : routes) {
-            if (r.method != method) continue;
-            Matcher m = r.pattern.matcher(path);
-            if (m.matches()) {
-                Map<String, String> params = r.compiled.extractRouteParams(m);
-                List<String> wilds = r.compiled.extractWildcards(m);
-                return Optional.of(new MatchedRoute(r, params, wilds));
-            }
+        RouteParams params = new RouteParams();
+        RouteDefinition route = match(method, path, params);
+        return route == null ? Optional.empty() : Optional.of(new MatchedRoute(route, params));
+    }
+
+    /**
+     * Matches a path and writes the captured params into a caller-supplied holder.
+     *
+     * @param method HTTP method
+     * @param path   request path without query string
+     * @param params holder to bind captures into; reset before matching
+     * @return the matched route, or null if none matches
+     */
+    public RouteDefinition match(HttpMethod method, String path, RouteParams params) {
+        RouteTree tree = trees.get(method);
+        if (tree == null) {
+            params.reset();
+            return null;
         }
-        return Optional.empty();
+        return tree.find(path, params);
     }
 
     public List<RouteDefinition> getRoutes() {
@@ -0,0 +1,148 @@
+package org.oldskooler.webserver4j.server;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.IoHandlerFactory;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollIoHandler;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioIoHandler;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+/**
+ * Netty transport used for the server's event loops and sockets.
+ * <p>
+ * Native transports avoid the JDK selector, use edge-triggered I/O and expose socket options
+ * such as {@code SO_REUSEPORT} and {@code TCP_FASTOPEN}. They are only available on Linux
+ * with the matching native library on the classpath; {@link #resolve()} falls back to
+ * {@link #NIO} otherwise.
+ */
+public enum Transport {
+    /** Use epoll when available, otherwise NIO. */
+    AUTO,
+    /** Portable JDK NIO transport. */
+    NIO,
+    /** Linux native epoll transport. */
+    EPOLL,
+    /**
+     * Linux native io_uring transport. Its classes ship in a separate Netty artifact, so they
+     * are looked up reflectively and this transport is simply unavailable without it.
+     */
+    IO_URING;
+
+    private static final String IO_URING_PACKAGE = "io.netty.channel.uring.";
+
+    /**
+     * @return true if this transport can be used on the current host
+     */
+    public boolean isAvailable() {
+        switch (this) {
+            case AUTO:
+            case NIO:
+                return true;
+            case EPOLL:
+                return Epoll.isAvailable();
+            case IO_URING:
+                try {
+                    return (Boolean) Class.forName(IO_URING_PACKAGE + "IoUring").getMethod("isAvailable").invoke(null);
+                } catch (ReflectiveOperationException | LinkageError e) {
+                    return false;
+                }
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Resolves this setting to a concrete transport that is available on this host.
+     *
+     * @return {@link #EPOLL}, {@link #IO_URING} or {@link #NIO}; never {@link #AUTO}
+     */
+    public Transport resolve() {
+        if (this == AUTO) return EPOLL.isAvailable() ? EPOLL : NIO;
+        return isAvailable() ? this : NIO;
+    }
+
+    IoHandlerFactory newIoHandlerFactory() {
+        switch (this) {
+            case EPOLL:
+                return EpollIoHandler.newFactory();
+            case IO_URING:
+                try {
+                    return (IoHandlerFactory) Class.forName(IO_URING_PACKAGE + "IoUringIoHandler")
+                            .getMethod("newFactory").invoke(null);
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException("io_uring transport is not available", e);
+                }
+            default:
+                return NioIoHandler.newFactory();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    Class<? extends ServerChannel> serverChannelClass() {
+        switch (this) {
+            case EPOLL:
+                return EpollServerSocketChannel.class;
+            case IO_URING:
+                try {
+                    return (Class<? extends ServerChannel>) Class.forName(IO_URING_PACKAGE + "IoUringServerSocketChannel");
+                } catch (ClassNotFoundException e) {
+                    throw new IllegalStateException("io_uring transport is not available", e);
+                }
+            default:
+                return NioServerSocketChannel.class;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    Class<? extends Channel> socketChannelClass() {
+        switch (this) {
+            case EPOLL:
+                return EpollSocketChannel.class;
+            case IO_URING:
+                try {
+                    return (Class<? extends Channel>) Class.forName(IO_URING_PACKAGE + "IoUringSocketChannel");
+                } catch (ClassNotFoundException e) {
+                    throw new IllegalStateException("io_uring transport is not available", e);
+                }
+            default:
+                return NioSocketChannel.class;
+        }
+    }
+
+    /**
+     * Looks up a transport-specific socket option such as {@code TCP_FASTOPEN} or
+     * {@code SO_REUSEPORT}.
+     *
+     * @param name constant name on the transport's channel option class
+     * @return the option, or null if this transport does not support it
+     */
+    @SuppressWarnings("unchecked")
+    <T> ChannelOption<T> nativeOption(String name) {
+        Class<?> options;
+        switch (this) {
+            case EPOLL:
+                options = EpollChannelOption.class;
+                break;
+            case IO_URING:
+                try {
+                    options = Class.forName(IO_URING_PACKAGE + "IoUringChannelOption");
+                } catch (ClassNotFoundException e) {
+                    return null;
+                }
+                break;
+            default:
+                return null;
+        }
+        try {
+            return (ChannelOption<T>) options.getField(name).get(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
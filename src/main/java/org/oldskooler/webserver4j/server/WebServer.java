@@ -1,10 +1,10 @@
 package org.oldskooler.webserver4j.server;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioIoHandler;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.*;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
@@ -12,14 +12,28 @@ import io.netty.handler.stream.ChunkedWriteHandler;
 import org.oldskooler.inject4j.ServiceCollection;
 import org.oldskooler.webserver4j.controller.ControllerScanner;
 import org.oldskooler.webserver4j.error.ErrorRegistry;
+import org.oldskooler.webserver4j.http.ExecutionModel;
+import org.oldskooler.webserver4j.http.HandlerExecutors;
 import org.oldskooler.webserver4j.http.HttpRequestHandler;
+import org.oldskooler.webserver4j.http.RequestBodyHandler;
+import org.oldskooler.webserver4j.http.RequestState;
 import org.oldskooler.webserver4j.interceptor.InterceptorRegistry;
+import org.oldskooler.webserver4j.results.ResponseCompressor;
 import org.oldskooler.webserver4j.routing.Router;
 import org.oldskooler.webserver4j.session.SessionManager;
+import org.oldskooler.webserver4j.session.SessionReplicator;
+import org.oldskooler.webserver4j.staticfiles.PathResolutionCache;
+import org.oldskooler.webserver4j.staticfiles.StaticFileCache;
+import org.oldskooler.webserver4j.staticfiles.StaticFileIndex;
 import org.oldskooler.webserver4j.staticfiles.StaticFileService;
+import org.oldskooler.webserver4j.staticfiles.WebRootWatcher;
 
 import javax.net.ssl.SSLException;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -30,23 +44,58 @@ import java.util.concurrent.TimeUnit;
  *   <li>Routing via {@link Router}</li>
  *   <li>Interceptor support</li>
  *   <li>Controller scanning and registration</li>
- *   <li>Session management</li>
+ *   <li>Session management with background expiry</li>
  *   <li>Static file serving</li>
  *   <li>Error handling</li>
  *   <li>Optional SSL/TLS support</li>
+ *   <li>Native epoll / io_uring transports with NIO fallback</li>
+ *   <li>Blocking handlers offloaded to a worker pool or virtual threads</li>
+ *   <li>Asynchronous handlers completing a {@link java.util.concurrent.CompletionStage}</li>
+ *   <li>Per-route request body limits and streamed request bodies</li>
  * </ul>
  */
 public class WebServer {
     public static final class Builder {
         private int port = 8080;
         private String wwwroot = "wwwroot";
-        private final ServiceCollection services = new ServiceCollection();
+        private final ServiceCollection services;
         private boolean sslEnabled = false;
         private String certificatePath;
         private String privateKeyPath;
         private String keyPassword;
         private boolean useSelfSignedCert = false;
         private String sslHostname; // Add to Builder
+        private Transport transport = Transport.AUTO;
+        private int tcpFastOpen;
+        private int bossThreads = 1;
+        private int workerThreads;
+        private int backlog;
+        private int receiveBufferSize;
+        private int sendBufferSize;
+        private WriteBufferWaterMark writeBufferWaterMark;
+        private int reusePortAcceptors = 1;
+        private ByteBufAllocator allocator;
+        private ExecutionModel executionModel = ExecutionModel.EVENT_LOOP;
+        private int workerPoolThreads;
+        private int workerPoolQueue;
+        private long asyncTimeoutMillis = TimeUnit.SECONDS.toMillis(30);
+        private long maxBodySize = 32 * 1024 * 1024;
+        private boolean precompressedFiles = true;
+        private long staticCacheBytes;
+        private int staticCacheMaxFileSize;
+        private String staticCacheControl = "no-cache";
+        private int staticPathCacheEntries;
+        private long staticPathCacheTtlMillis;
+        private boolean preloadStaticFiles;
+        private SessionManager sessions;
+
+        public Builder() {
+            this(new ServiceCollection());
+        }
+
+        private Builder(ServiceCollection services) {
+            this.services = services;
+        }
 
         public Builder port(int port) {
             this.port = port;
@@ -119,9 +168,267 @@ public class WebServer {
             return this;
         }
 
+        /**
+         * Selects the Netty transport. The default, {@link Transport#AUTO}, uses native epoll
+         * on Linux when available; any native transport that is unavailable on the host falls
+         * back to NIO. Use {@link WebServer#transport()} to see which one was picked.
+         *
+         * @param transport transport to use
+         * @return this builder
+         */
+        public Builder transport(Transport transport) {
+            this.transport = java.util.Objects.requireNonNull(transport, "transport");
+            return this;
+        }
+
+        /**
+         * Enables TCP Fast Open on the listening socket when the transport is native.
+         * Ignored on NIO.
+         *
+         * @param queueLength maximum number of pending Fast Open requests; 0 disables it
+         * @return this builder
+         */
+        public Builder tcpFastOpen(int queueLength) {
+            this.tcpFastOpen = queueLength;
+            return this;
+        }
+
+        /**
+         * Sets the number of acceptor (boss) threads. One is enough unless several
+         * {@link #reusePort(int) SO_REUSEPORT} acceptors are used.
+         *
+         * @param threads number of boss threads, default 1
+         * @return this builder
+         */
+        public Builder bossThreads(int threads) {
+            this.bossThreads = threads;
+            return this;
+        }
+
+        /**
+         * Sets the number of I/O worker threads.
+         *
+         * @param threads number of worker threads; 0 uses Netty's default of twice the core count
+         * @return this builder
+         */
+        public Builder workerThreads(int threads) {
+            this.workerThreads = threads;
+            return this;
+        }
+
+        /**
+         * Sets the accept queue length ({@code SO_BACKLOG}) of the listening socket.
+         *
+         * @param backlog queue length; 0 keeps the platform default
+         * @return this builder
+         */
+        public Builder backlog(int backlog) {
+            this.backlog = backlog;
+            return this;
+        }
+
+        /**
+         * Sets {@code SO_RCVBUF} on accepted connections.
+         *
+         * @param bytes buffer size; 0 keeps the platform default
+         * @return this builder
+         */
+        public Builder receiveBufferSize(int bytes) {
+            this.receiveBufferSize = bytes;
+            return this;
+        }
+
+        /**
+         * Sets {@code SO_SNDBUF} on accepted connections.
+         *
+         * @param bytes buffer size; 0 keeps the platform default
+         * @return this builder
+         */
+        public Builder sendBufferSize(int bytes) {
+            this.sendBufferSize = bytes;
+            return this;
+        }
+
+        /**
+         * Sets the outbound buffer water marks of accepted connections. A channel stops being
+         * writable above {@code high} pending bytes and becomes writable again below {@code low}.
+         *
+         * @param low  low water mark in bytes
+         * @param high high water mark in bytes
+         * @return this builder
+         */
+        public Builder writeBufferWaterMark(int low, int high) {
+            this.writeBufferWaterMark = new WriteBufferWaterMark(low, high);
+            return this;
+        }
+
+        /**
+         * Binds several listening sockets to the port with {@code SO_REUSEPORT} so the kernel
+         * spreads incoming connections across them, each served by its own boss thread.
+         * Only honored by native transports; NIO always binds a single socket.
+         *
+         * @param acceptors number of listening sockets
+         * @return this builder
+         */
+        public Builder reusePort(int acceptors) {
+            this.reusePortAcceptors = acceptors;
+            return this;
+        }
+
+        /**
+         * Sets the {@link ByteBufAllocator} for the listening socket and accepted connections,
+         * e.g. {@link io.netty.buffer.PooledByteBufAllocator#DEFAULT} for pooled direct buffers
+         * or a new {@link io.netty.buffer.AdaptiveByteBufAllocator} for smaller footprints.
+         *
+         * @param allocator allocator to use; null keeps Netty's default
+         * @return this builder
+         */
+        public Builder allocator(ByteBufAllocator allocator) {
+            this.allocator = allocator;
+            return this;
+        }
+
+        /**
+         * Sets where interceptors and route handlers run unless a route overrides it, e.g.
+         * with {@link org.oldskooler.webserver4j.controller.Execution}. Handlers that block
+         * should not run on the event loop.
+         *
+         * @param model execution model, default {@link ExecutionModel#EVENT_LOOP}
+         * @return this builder
+         */
+        public Builder executionModel(ExecutionModel model) {
+            this.executionModel = model;
+            return this;
+        }
+
+        /**
+         * Sizes the pool used by {@link ExecutionModel#WORKER_POOL}. Requests that find both
+         * the threads and the queue busy are answered with 503 Service Unavailable.
+         *
+         * @param threads       pool size; 0 uses 8 threads per core
+         * @param queueCapacity pending requests allowed before rejecting; 0 uses 1024
+         * @return this builder
+         */
+        public Builder workerPool(int threads, int queueCapacity) {
+            this.workerPoolThreads = threads;
+            this.workerPoolQueue = queueCapacity;
+            return this;
+        }
+
+        /**
+         * Sets how long an {@link org.oldskooler.webserver4j.routing.AsyncRouteHandler} may take.
+         * When it elapses the client receives 503 Service Unavailable and the handler's stage is
+         * cancelled.
+         *
+         * @param timeout timeout, 0 to wait indefinitely; default 30 seconds
+         * @param unit    unit of {@code timeout}
+         * @return this builder
+         */
+        public Builder asyncTimeout(long timeout, TimeUnit unit) {
+            this.asyncTimeoutMillis = unit.toMillis(timeout);
+            return this;
+        }
+
+        /**
+         * Sets the largest request body that is buffered for a route without its own limit.
+         * Larger requests are answered with 413 Payload Too Large. Routes can raise or lower
+         * the limit, or stream their body instead, through
+         * {@link org.oldskooler.webserver4j.routing.RouteOptions}.
+         *
+         * @param bytes maximum body size, -1 for no limit; default 32 MB
+         * @return this builder
+         */
+        public Builder maxBodySize(long bytes) {
+            this.maxBodySize = bytes;
+            return this;
+        }
+
+        /**
+         * Controls whether static files are served from precompressed sidecars such as
+         * {@code app.js.br} or {@code app.js.gz} when the client accepts that encoding.
+         *
+         * @param enabled true to look for sidecars; default true
+         * @return this builder
+         */
+        public Builder precompressedFiles(boolean enabled) {
+            this.precompressedFiles = enabled;
+            return this;
+        }
+
+        /**
+         * Keeps small static files in memory, with their compressed variants and headers, so
+         * hits are served without filesystem calls. The least recently used files are evicted
+         * beyond {@code maxBytes}, and changes under the web root invalidate entries right away.
+         *
+         * @param maxBytes    total memory budget; 0 disables the cache (default)
+         * @param maxFileSize largest file that is cached
+         * @return this builder
+         */
+        public Builder staticFileCache(long maxBytes, int maxFileSize) {
+            this.staticCacheBytes = maxBytes;
+            this.staticCacheMaxFileSize = maxFileSize;
+            return this;
+        }
+
+        /**
+         * Sets the Cache-Control header of static file responses. The default
+         * {@code no-cache} lets browsers keep files but revalidate them on every use, which is
+         * answered cheaply with 304 Not Modified. Use e.g. {@code public, max-age=31536000, immutable}
+         * for fingerprinted assets.
+         *
+         * @param value header value, or null to send none
+         * @return this builder
+         */
+        public Builder staticCacheControl(String value) {
+            this.staticCacheControl = value;
+            return this;
+        }
+
+        /**
+         * Remembers which request paths resolve to a static file and which do not, so repeated
+         * lookups, including the misses of scanners and typos, skip the filesystem. Entries are
+         * dropped when the web root changes, and after {@code ttl} in case a change notification
+         * is lost.
+         *
+         * @param maxEntries paths to remember; 0 disables the cache (default)
+         * @param ttl        lifetime of an entry; 0 to rely on change notifications alone
+         * @param unit       unit of {@code ttl}
+         * @return this builder
+         */
+        public Builder staticPathCache(int maxEntries, long ttl, TimeUnit unit) {
+            this.staticPathCacheEntries = maxEntries;
+            this.staticPathCacheTtlMillis = unit.toMillis(ttl);
+            return this;
+        }
+
+        /**
+         * Lists every file under the web root at startup and answers all static path lookups
+         * from that list, kept current by watching the directory. Takes precedence over
+         * {@link #staticPathCache}.
+         *
+         * @param enabled true to preload; default false
+         * @return this builder
+         */
+        public Builder preloadStaticFiles(boolean enabled) {
+            this.preloadStaticFiles = enabled;
+            return this;
+        }
+
+        /**
+         * Uses a custom session manager, e.g. one with a different TTL or with a limit on the
+         * number of sessions or their memory. By default sessions live 24 hours after their
+         * last use and are not limited.
+         *
+         * @param sessions session manager, see {@link SessionManager.Builder}
+         * @return this builder
+         */
+        public Builder sessions(SessionManager sessions) {
+            this.sessions = sessions;
+            return this;
+        }
+
         public WebServer build() {
-            return new WebServer(port, wwwroot, services, sslEnabled,
-                    certificatePath, privateKeyPath, keyPassword, useSelfSignedCert, sslHostname);
+            return new WebServer(this);
         }
     }
 
@@ -147,12 +454,25 @@ public class WebServer {
     private final InterceptorRegistry interceptors = new InterceptorRegistry();
     private final ErrorRegistry errors = new ErrorRegistry();
     private final StaticFileService staticFiles;
+    private final WebRootWatcher staticWatcher;
     private final SessionManager sessions;
     private final ServiceCollection services;
     private final ControllerScanner scanner;
+    private final HandlerExecutors executors;
     private final HttpRequestHandler requestHandler;
     private final SslContext sslContext;
     private final String sslHostname;
+    private final Transport transport;
+    private final int tcpFastOpen;
+    private final int bossThreads;
+    private final int workerThreads;
+    private final int backlog;
+    private final int receiveBufferSize;
+    private final int sendBufferSize;
+    private final WriteBufferWaterMark writeBufferWaterMark;
+    private final int reusePortAcceptors;
+    private final ByteBufAllocator allocator;
+    private final long maxBodySize;
 
     /**
      * Constructs a new {@code WebServer} with SSL support.
@@ -169,14 +489,72 @@ public class WebServer {
     public WebServer(int port, String wwwroot, ServiceCollection services,
                      boolean sslEnabled, String certificatePath, String privateKeyPath,
                      String keyPassword, boolean useSelfSignedCert, String sslHostname) {
-        this.port = port;
-        this.staticFiles = new StaticFileService(wwwroot);
-        this.sessions = new SessionManager(TimeUnit.HOURS.toMillis(24));
-        this.services = services;
-        this.scanner = new ControllerScanner(services);
-        this.requestHandler = new HttpRequestHandler(router, interceptors, errors, staticFiles, sessions);
-        this.sslHostname = sslHostname;
-        this.sslContext = createSslContext(sslEnabled, certificatePath, privateKeyPath, keyPassword, useSelfSignedCert, sslHostname);
+        this(toBuilder(port, wwwroot, services, sslEnabled, certificatePath, privateKeyPath,
+                keyPassword, useSelfSignedCert, sslHostname));
+    }
+
+    private WebServer(Builder b) {
+        this.port = b.port;
+        this.staticWatcher = createStaticWatcher(b);
+        this.staticFiles = new StaticFileService(b.wwwroot, b.precompressedFiles,
+                createStaticFileCache(b, staticWatcher), b.staticCacheControl,
+                b.staticPathCacheEntries > 0 && !b.preloadStaticFiles
+                        ? new PathResolutionCache(b.staticPathCacheEntries, b.staticPathCacheTtlMillis, staticWatcher)
+                        : null,
+                b.preloadStaticFiles ? new StaticFileIndex(staticWatcher) : null);
+        // every cache listens by now
+        if (staticWatcher != null) staticWatcher.start();
+        this.sessions = b.sessions != null ? b.sessions : new SessionManager(TimeUnit.HOURS.toMillis(24));
+        this.services = b.services;
+        this.scanner = new ControllerScanner(b.services);
+        this.executors = new HandlerExecutors(b.executionModel, b.workerPoolThreads, b.workerPoolQueue);
+        this.requestHandler = new HttpRequestHandler(router, interceptors, errors, staticFiles, sessions, executors,
+                b.asyncTimeoutMillis);
+        this.sslHostname = b.sslHostname;
+        this.sslContext = createSslContext(b.sslEnabled, b.certificatePath, b.privateKeyPath, b.keyPassword,
+                b.useSelfSignedCert, b.sslHostname);
+        this.transport = b.transport.resolve();
+        this.tcpFastOpen = b.tcpFastOpen;
+        this.bossThreads = b.bossThreads;
+        this.workerThreads = b.workerThreads;
+        this.backlog = b.backlog;
+        this.receiveBufferSize = b.receiveBufferSize;
+        this.sendBufferSize = b.sendBufferSize;
+        this.writeBufferWaterMark = b.writeBufferWaterMark;
+        this.reusePortAcceptors = b.reusePortAcceptors;
+        this.allocator = b.allocator;
+        this.maxBodySize = b.maxBodySize;
+    }
+
+    /** Creates the web root watcher if any static file cache needs one. */
+    private static WebRootWatcher createStaticWatcher(Builder b) {
+        if (b.staticCacheBytes <= 0 && b.staticPathCacheEntries <= 0 && !b.preloadStaticFiles) return null;
+        try {
+            return new WebRootWatcher(Paths.get(b.wwwroot));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to watch static files in " + b.wwwroot, e);
+        }
+    }
+
+    private static StaticFileCache createStaticFileCache(Builder b, WebRootWatcher watcher) {
+        if (b.staticCacheBytes <= 0) return null;
+        ByteBufAllocator alloc = b.allocator != null ? b.allocator : PooledByteBufAllocator.DEFAULT;
+        return new StaticFileCache(b.staticCacheBytes, b.staticCacheMaxFileSize, alloc, watcher);
+    }
+
+    private static Builder toBuilder(int port, String wwwroot, ServiceCollection services,
+                                     boolean sslEnabled, String certificatePath, String privateKeyPath,
+                                     String keyPassword, boolean useSelfSignedCert, String sslHostname) {
+        Builder b = new Builder(services);
+        b.port = port;
+        b.wwwroot = wwwroot;
+        b.sslEnabled = sslEnabled;
+        b.certificatePath = certificatePath;
+        b.privateKeyPath = privateKeyPath;
+        b.keyPassword = keyPassword;
+        b.useSelfSignedCert = useSelfSignedCert;
+        b.sslHostname = sslHostname;
+        return b;
     }
 
     /**
@@ -249,6 +627,15 @@ public class WebServer {
         return sslContext != null;
     }
 
+    /**
+     * Returns the transport the server runs on, after native availability was checked.
+     *
+     * @return resolved transport; never {@link Transport#AUTO}
+     */
+    public Transport transport() {
+        return transport;
+    }
+
     /**
      * Returns the router used to define routes.
      *
@@ -276,6 +663,15 @@ public class WebServer {
         return errors;
     }
 
+    /**
+     * Returns the session manager, e.g. to rotate a session ID after login.
+     *
+     * @return session manager
+     */
+    public SessionManager sessions() {
+        return sessions;
+    }
+
     /**
      * Registers controllers by scanning the given base package.
      *
@@ -308,12 +704,24 @@ public class WebServer {
      * @throws InterruptedException if the server thread is interrupted
      */
     public void start() throws InterruptedException {
-        EventLoopGroup boss = new MultiThreadIoEventLoopGroup(NioIoHandler.newFactory());
-        EventLoopGroup worker = new MultiThreadIoEventLoopGroup(NioIoHandler.newFactory());
+        ChannelOption<Boolean> reusePort = reusePortAcceptors > 1 ? transport.nativeOption("SO_REUSEPORT") : null;
+        int acceptors = reusePort != null ? reusePortAcceptors : 1;
+
+        EventLoopGroup boss = new MultiThreadIoEventLoopGroup(Math.max(bossThreads, acceptors),
+                transport.newIoHandlerFactory());
+        EventLoopGroup worker = new MultiThreadIoEventLoopGroup(workerThreads, transport.newIoHandlerFactory());
         try {
+            // Session expiry runs on a boss thread, which otherwise only accepts connections
+            long tick = sessions.tickMillis();
+            boss.next().scheduleAtFixedRate(sessions::expireDue, tick, tick, TimeUnit.MILLISECONDS);
+            SessionReplicator replicator = sessions.replicator();
+            if (replicator != null) {
+                replicator.start(transport.newIoHandlerFactory(), transport.serverChannelClass(), transport.socketChannelClass());
+            }
+
             ServerBootstrap b = new ServerBootstrap();
             b.group(boss, worker)
-                    .channel(NioServerSocketChannel.class)
+                    .channel(transport.serverChannelClass())
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel ch) {
@@ -325,13 +733,17 @@ public class WebServer {
                             }
 
                             p.addLast(new HttpServerCodec());
-                            p.addLast(new HttpObjectAggregator(32 * 1024 * 1024));
-                            p.addLast(new HttpContentCompressor());
+                            p.addLast(new ResponseCompressor());
                             p.addLast(new ChunkedWriteHandler());
-                            p.addLast(new SimpleChannelInboundHandler<FullHttpRequest>() {
+                            p.addLast(new RequestBodyHandler(router, maxBodySize));
+                            p.addLast(new SimpleChannelInboundHandler<RequestState>() {
                                 @Override
-                                protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest msg) throws Exception {
-                                    requestHandler.handle(ctx, msg);
+                                protected void channelRead0(ChannelHandlerContext ctx, RequestState msg) {
+                                    try {
+                                        requestHandler.handle(ctx, msg);
+                                    } finally {
+                                        msg.request().release();
+                                    }
                                 }
 
                                 @Override
@@ -343,14 +755,55 @@ public class WebServer {
                     })
                     .childOption(ChannelOption.TCP_NODELAY, true);
 
+            if (tcpFastOpen > 0) {
+                ChannelOption<Integer> fastOpen = transport.nativeOption("TCP_FASTOPEN");
+                if (fastOpen != null) b.option(fastOpen, tcpFastOpen);
+            }
+            applySocketOptions(b, reusePort);
+
             //String protocol = sslContext != null ? "HTTPS" : "HTTP";
             //System.out.println("Starting " + protocol + " server on port " + port);
 
-            Channel ch = b.bind(port).sync().channel();
-            ch.closeFuture().sync();
+            List<Channel> channels = new ArrayList<>(acceptors);
+            for (int i = 0; i < acceptors; i++) {
+                channels.add(b.bind(port).sync().channel());
+            }
+            for (Channel ch : channels) {
+                ch.closeFuture().sync();
+            }
         } finally {
             boss.shutdownGracefully();
             worker.shutdownGracefully();
+            executors.shutdown();
+            closeStaticFiles();
+            try {
+                sessions.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void closeStaticFiles() {
+        if (staticWatcher != null) {
+            try {
+                staticWatcher.close();
+            } catch (IOException ignored) {
+                // the watcher thread stops either way
+            }
+        }
+        if (staticFiles.cache() != null) staticFiles.cache().close();
+    }
+
+    private void applySocketOptions(ServerBootstrap b, ChannelOption<Boolean> reusePort) {
+        if (reusePort != null) b.option(reusePort, true);
+        if (backlog > 0) b.option(ChannelOption.SO_BACKLOG, backlog);
+        if (receiveBufferSize > 0) b.childOption(ChannelOption.SO_RCVBUF, receiveBufferSize);
+        if (sendBufferSize > 0) b.childOption(ChannelOption.SO_SNDBUF, sendBufferSize);
+        if (writeBufferWaterMark != null) b.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark);
+        if (allocator != null) {
+            b.option(ChannelOption.ALLOCATOR, allocator);
+            b.childOption(ChannelOption.ALLOCATOR, allocator);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,416 @@
+package org.oldskooler.webserver4j.session;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Keeps each session entirely in its cookie, so any server behind a load balancer can serve
+ * any request without sticky sessions, a shared store or per-session memory.
+ * <p>
+ * The cookie holds the session id, its expiry and the serialized attributes, deflated when
+ * that makes them smaller. It is signed with HMAC-SHA256, or, with {@link Builder#encrypt},
+ * encrypted with AES-GCM, which authenticates it as well and also hides the attributes from
+ * the client. A cookie that fails verification or has expired is ignored and a new session
+ * begins.
+ * <p>
+ * A new cookie is only encoded and sent when the attributes changed, the id was rotated, or
+ * a tenth of the TTL passed since it was issued, which keeps the sliding expiry. Sessions
+ * that never hold any attributes get no cookie at all.
+ * <p>
+ * Keys are rotated by adding the new key first: it signs all new cookies, while cookies
+ * signed with the older keys stay valid until they are reissued or expire.
+ * <p>
+ * Browsers reject cookies beyond about 4 KB, so keep the attributes small: ids and flags
+ * rather than objects. Sessions that outgrow the limit are not saved. Since a client can
+ * replay an older cookie until it expires, state that must be revocable, such as a
+ * logout of all devices, belongs on the server.
+ *
+ * <h2>Usage</h2>
+ * <pre>{@code
+ * SessionManager sessions = new CookieSessionManager.Builder()
+ *         .ttl(30, TimeUnit.MINUTES)
+ *         .key(2, newSecret)      // signs new cookies
+ *         .key(1, oldSecret)      // still accepted
+ *         .encrypt(true)
+ *         .build();
+ * }</pre>
+ */
+public class CookieSessionManager extends SessionManager {
+    /** Largest cookie value issued; browsers cap the whole cookie at 4096 bytes. */
+    public static final int MAX_COOKIE_LENGTH = 4000;
+
+    private static final byte VERSION = 1;
+    private static final int FLAG_ENCRYPTED = 1;
+    private static final int FLAG_DEFLATED = 2;
+    /** version, key id, flags, expiry in epoch seconds */
+    private static final int HEADER_LENGTH = 1 + 1 + 1 + 4;
+    /** HMAC-SHA256 truncated to 128 bits */
+    private static final int MAC_LENGTH = 16;
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+    /** Attribute bytes below which deflating is not attempted. */
+    private static final int DEFLATE_THRESHOLD = 128;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES-GCM not available", e);
+        }
+    });
+
+    /**
+     * Builder for a {@link CookieSessionManager}.
+     */
+    public static class Builder {
+        private long ttlMillis = TimeUnit.HOURS.toMillis(24);
+        private final List<Key> keys = new ArrayList<>();
+        private boolean encrypt;
+        private SessionSerializer serializer = new JavaSessionSerializer();
+        private SessionIdGenerator idGenerator;
+
+        /**
+         * @param ttl  time a session lives after its last use; default 24 hours
+         * @param unit unit of {@code ttl}
+         * @return this builder
+         */
+        public Builder ttl(long ttl, TimeUnit unit) {
+            this.ttlMillis = unit.toMillis(ttl);
+            return this;
+        }
+
+        /**
+         * Adds a key. The first key added signs new cookies; the others only verify existing
+         * ones, so add the new key first when rotating and drop the old one once its cookies
+         * have expired.
+         *
+         * @param id     key id written into the cookie, 0 to 255, unique
+         * @param secret random secret of at least 32 bytes
+         * @return this builder
+         */
+        public Builder key(int id, byte[] secret) {
+            if (id < 0 || id > 255) throw new IllegalArgumentException("Key id must be between 0 and 255: " + id);
+            if (secret.length < 32) throw new IllegalArgumentException("Secret must be at least 32 bytes");
+            for (Key k : keys) {
+                if (k.id == id) throw new IllegalArgumentException("Duplicate key id: " + id);
+            }
+            keys.add(new Key(id, secret));
+            return this;
+        }
+
+        /**
+         * @param encrypt whether to encrypt cookies with AES-GCM instead of only signing them;
+         *                default false
+         * @return this builder
+         */
+        public Builder encrypt(boolean encrypt) {
+            this.encrypt = encrypt;
+            return this;
+        }
+
+        /**
+         * @param serializer converts the attributes to bytes; default Java serialization
+         * @return this builder
+         */
+        public Builder serializer(SessionSerializer serializer) {
+            this.serializer = serializer;
+            return this;
+        }
+
+        /**
+         * @param generator source of new session ids; default {@link SecureSessionIdGenerator}
+         * @return this builder
+         */
+        public Builder idGenerator(SessionIdGenerator generator) {
+            this.idGenerator = generator;
+            return this;
+        }
+
+        public CookieSessionManager build() {
+            if (keys.isEmpty()) throw new IllegalStateException("At least one key is required");
+            return new CookieSessionManager(this);
+        }
+    }
+
+    /** Signing and encryption keys derived from one secret. */
+    private static final class Key {
+        final int id;
+        final SecretKeySpec encryptionKey;
+        final ThreadLocal<Mac> macs;
+
+        Key(int id, byte[] secret) {
+            this.id = id;
+            byte[] macKey = derive(secret, "session-mac");
+            this.encryptionKey = new SecretKeySpec(derive(secret, "session-enc"), "AES");
+            this.macs = ThreadLocal.withInitial(() -> newMac(macKey));
+        }
+
+        private static byte[] derive(byte[] secret, String label) {
+            return newMac(secret).doFinal(label.getBytes(StandardCharsets.US_ASCII));
+        }
+
+        private static Mac newMac(byte[] key) {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(key, "HmacSHA256"));
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HmacSHA256 not available", e);
+            }
+        }
+
+        byte[] mac(byte[] data, int length) {
+            Mac mac = macs.get();
+            mac.update(data, 0, length);
+            return mac.doFinal();
+        }
+    }
+
+    private final long ttlMillis;
+    private final List<Key> keys;
+    private final Key current;
+    private final boolean encrypt;
+    private final SessionSerializer serializer;
+
+    private CookieSessionManager(Builder b) {
+        super(new SessionManager.Builder().ttl(b.ttlMillis, TimeUnit.MILLISECONDS).idGenerator(b.idGenerator));
+        this.ttlMillis = b.ttlMillis;
+        this.keys = Collections.unmodifiableList(new ArrayList<>(b.keys));
+        this.current = keys.get(0);
+        this.encrypt = b.encrypt;
+        this.serializer = b.serializer;
+    }
+
+    /**
+     * Decodes the session carried by a cookie, or starts a new one.
+     *
+     * @param cookie value of the session cookie, may be {@code null} or empty
+     * @return the decoded session, or a new empty one
+     */
+    @Override
+    public Session getOrCreate(String cookie) {
+        Session existing = find(cookie);
+        if (existing != null) return existing;
+        Session session = new Session(idGenerator().generate());
+        session.expiresAt = System.currentTimeMillis() + ttlMillis;
+        return session;
+    }
+
+    /**
+     * Decodes the session carried by a cookie.
+     *
+     * @param cookie value of the session cookie, may be {@code null} or empty
+     * @return the session, or {@code null} if the cookie is missing, forged or expired
+     */
+    @Override
+    public Session find(String cookie) {
+        if (cookie == null || cookie.isEmpty() || cookie.length() > MAX_COOKIE_LENGTH) return null;
+        try {
+            return decode(Base64.getUrlDecoder().decode(cookie));
+        } catch (IllegalArgumentException | IOException | GeneralSecurityException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Gives a session a fresh ID, keeping its data; the new cookie is sent with the current
+     * response.
+     *
+     * @param s the session to rotate
+     * @return the same session, now under its new ID
+     */
+    @Override
+    public Session rotate(Session s) {
+        s.changeId(idGenerator().generate());
+        s.markDirty();
+        return s;
+    }
+
+    /**
+     * Encodes the session into the cookie to send with the response, if it changed. A session
+     * too large for a cookie is logged and not saved; the client keeps its previous cookie.
+     *
+     * @param s the session of the current request, may be {@code null}
+     */
+    @Override
+    public void commit(Session s) {
+        if (s == null) return;
+        if (!s.wasPersisted() && s.data().isEmpty()) {
+            // a new session without attributes is the same as no cookie
+            s.setPendingCookie(null);
+            return;
+        }
+        if (!s.takeDirty(ttlMillis / 10) && !s.isCookiePending()) return;
+        try {
+            String value = Base64.getUrlEncoder().withoutPadding().encodeToString(encode(s));
+            if (value.length() > MAX_COOKIE_LENGTH) {
+                throw new IOException("Session cookie of " + value.length() + " bytes exceeds "
+                        + MAX_COOKIE_LENGTH + "; session " + s.getId() + " not saved");
+            }
+            s.setPendingCookie(encodeCookie(value));
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            s.setPendingCookie(null);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns the {@code Set-Cookie} value prepared by {@link #commit(Session)}, or null if the
+     * client's cookie is still current.
+     */
+    @Override
+    public String cookieHeader(Session s) {
+        return s.takePendingCookie(id -> null);
+    }
+
+    private byte[] encode(Session s) throws IOException, GeneralSecurityException {
+        byte[] id = s.getId().getBytes(StandardCharsets.US_ASCII);
+        byte[] data = serializer.serialize(s.data());
+        int flags = encrypt ? FLAG_ENCRYPTED : 0;
+        if (data.length >= DEFLATE_THRESHOLD) {
+            byte[] deflated = deflate(data);
+            if (deflated.length < data.length) {
+                data = deflated;
+                flags |= FLAG_DEFLATED;
+            }
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH)
+                .put(VERSION)
+                .put((byte) current.id)
+                .put((byte) flags)
+                .putInt((int) Math.min(0xFFFFFFFFL, (s.expiresAt + 999) / 1000));
+        ByteBuffer body = ByteBuffer.allocate(1 + id.length + data.length)
+                .put((byte) id.length)
+                .put(id)
+                .put(data);
+
+        if (encrypt) {
+            byte[] iv = new byte[IV_LENGTH];
+            RANDOM.nextBytes(iv);
+            Cipher cipher = CIPHERS.get();
+            cipher.init(Cipher.ENCRYPT_MODE, current.encryptionKey, new GCMParameterSpec(TAG_BITS, iv));
+            cipher.updateAAD(header.array());
+            byte[] sealed = cipher.doFinal(body.array());
+            return ByteBuffer.allocate(HEADER_LENGTH + IV_LENGTH + sealed.length)
+                    .put(header.array()).put(iv).put(sealed).array();
+        }
+        byte[] out = new byte[HEADER_LENGTH + body.capacity() + MAC_LENGTH];
+        System.arraycopy(header.array(), 0, out, 0, HEADER_LENGTH);
+        System.arraycopy(body.array(), 0, out, HEADER_LENGTH, body.capacity());
+        byte[] mac = current.mac(out, HEADER_LENGTH + body.capacity());
+        System.arraycopy(mac, 0, out, out.length - MAC_LENGTH, MAC_LENGTH);
+        return out;
+    }
+
+    private Session decode(byte[] raw) throws IOException, GeneralSecurityException {
+        if (raw.length < HEADER_LENGTH + 1 + MAC_LENGTH || raw[0] != VERSION) return null;
+        Key key = keyFor(raw[1] & 0xFF);
+        if (key == null) return null;
+        int flags = raw[2];
+        long expiresAt = 1000L * (ByteBuffer.wrap(raw, 3, 4).getInt() & 0xFFFFFFFFL);
+        long now = System.currentTimeMillis();
+        if (expiresAt <= now) return null;
+
+        byte[] body;
+        if ((flags & FLAG_ENCRYPTED) != 0) {
+            // only the configured mode is accepted, so a client cannot downgrade to signing
+            if (!encrypt || raw.length < HEADER_LENGTH + IV_LENGTH + TAG_BITS / 8 + 1) return null;
+            Cipher cipher = CIPHERS.get();
+            cipher.init(Cipher.DECRYPT_MODE, key.encryptionKey,
+                    new GCMParameterSpec(TAG_BITS, raw, HEADER_LENGTH, IV_LENGTH));
+            cipher.updateAAD(raw, 0, HEADER_LENGTH);
+            body = cipher.doFinal(raw, HEADER_LENGTH + IV_LENGTH, raw.length - HEADER_LENGTH - IV_LENGTH);
+        } else {
+            if (encrypt) return null;
+            int signed = raw.length - MAC_LENGTH;
+            byte[] expected = key.mac(raw, signed);
+            byte[] actual = new byte[MAC_LENGTH];
+            System.arraycopy(raw, signed, actual, 0, MAC_LENGTH);
+            byte[] truncated = new byte[MAC_LENGTH];
+            System.arraycopy(expected, 0, truncated, 0, MAC_LENGTH);
+            if (!MessageDigest.isEqual(truncated, actual)) return null;
+            body = new byte[signed - HEADER_LENGTH];
+            System.arraycopy(raw, HEADER_LENGTH, body, 0, body.length);
+        }
+
+        int idLength = body[0] & 0xFF;
+        if (1 + idLength > body.length) return null;
+        String id = new String(body, 1, idLength, StandardCharsets.US_ASCII);
+        byte[] data = new byte[body.length - 1 - idLength];
+        System.arraycopy(body, 1 + idLength, data, 0, data.length);
+        if ((flags & FLAG_DEFLATED) != 0) data = inflate(data);
+
+        Map<String, Object> attributes = serializer.deserialize(data);
+        Session session = new Session(id, attributes, expiresAt);
+        session.expiresAt = now + ttlMillis;
+        return session;
+    }
+
+    private Key keyFor(int id) {
+        for (Key k : keys) {
+            if (k.id == id) return k;
+        }
+        return null;
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+            byte[] buf = new byte[512];
+            while (!deflater.finished()) {
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data) throws IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            // raw inflation wants a trailing dummy byte
+            inflater.setInput(Arrays.copyOf(data, data.length + 1));
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buf = new byte[512];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buf);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated session data");
+                }
+                out.write(buf, 0, n);
+                // a signed cookie cannot be a zip bomb, but keep the size sane regardless
+                if (out.size() > 64 * MAX_COOKIE_LENGTH) throw new IOException("Session data too large");
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package org.oldskooler.webserver4j.session;
+
+import java.util.ArrayDeque;
+
+/**
+ * Hashed timing wheel of session ids, bucketed by the tick in which they expire.
+ * <p>
+ * Ids are placed once, when the session is created, and not moved when it is touched.
+ * When a bucket comes due its ids are handed to a visitor, which removes the session if it
+ * really expired or schedules it again for its current expiry time. Each session is thus
+ * visited about once per wheel revolution, and the work per tick is proportional to the
+ * sessions due in it rather than to all sessions. Work is capped per call; whatever is
+ * left of a bucket carries over to the next call.
+ * <p>
+ * Since a session expires a fixed time after its last use, the buckets also order sessions
+ * by recency: {@link #evict} walks them from the present onwards to find the least recently
+ * used sessions, at tick granularity.
+ */
+final class ExpiryWheel {
+    /** Receives the ids of a due bucket. */
+    interface Visitor {
+        /**
+         * @param id   scheduled session id
+         * @param tick tick of the bucket the id was found in
+         * @return true if the session was removed
+         */
+        boolean visit(String id, long tick);
+    }
+
+    private final long tickMillis;
+    private final int mask;
+    /** Buckets, allocated on first use; guarded by {@code this}. */
+    private final ArrayDeque<String>[] buckets;
+
+    private final Object advanceLock = new Object();
+    /** Last tick whose bucket was detached; guarded by {@code advanceLock}. */
+    private long processedTick;
+    /** Detached bucket that ran out of budget; guarded by {@code advanceLock}. */
+    private ArrayDeque<String> draining;
+
+    /**
+     * @param tickMillis granularity of expiry
+     * @param size       number of buckets, rounded up to a power of two
+     * @param now        current time in epoch milliseconds
+     */
+    @SuppressWarnings("unchecked")
+    ExpiryWheel(long tickMillis, int size, long now) {
+        int n = Integer.highestOneBit(Math.max(size, 2) - 1) << 1;
+        this.tickMillis = tickMillis;
+        this.mask = n - 1;
+        this.buckets = new ArrayDeque[n];
+        this.processedTick = now / tickMillis;
+    }
+
+    long tickMillis() {
+        return tickMillis;
+    }
+
+    /** @return tick of the bucket a session expiring at {@code expiresAt} belongs to */
+    long tickOf(long expiresAt) {
+        return expiresAt / tickMillis + 1;
+    }
+
+    /** Schedules {@code id} to be visited in the first tick after {@code expiresAt}. */
+    synchronized void schedule(String id, long expiresAt) {
+        int i = (int) (tickOf(expiresAt) & mask);
+        ArrayDeque<String> bucket = buckets[i];
+        if (bucket == null) buckets[i] = bucket = new ArrayDeque<>();
+        bucket.add(id);
+    }
+
+    private synchronized ArrayDeque<String> detach(long tick) {
+        int i = (int) (tick & mask);
+        ArrayDeque<String> bucket = buckets[i];
+        buckets[i] = null;
+        return bucket;
+    }
+
+    /** Puts back the unvisited rest of a detached bucket. */
+    private synchronized void reattach(long tick, ArrayDeque<String> rest) {
+        int i = (int) (tick & mask);
+        ArrayDeque<String> bucket = buckets[i];
+        if (bucket == null) {
+            buckets[i] = rest;
+        } else {
+            bucket.addAll(rest);
+        }
+    }
+
+    /**
+     * Visits the ids of every bucket that came due up to {@code now}, at most {@code budget}
+     * of them. The visitor may call {@link #schedule} to put an id back.
+     *
+     * @return number of ids visited
+     */
+    int advance(long now, int budget, Visitor visitor) {
+        synchronized (advanceLock) {
+            long nowTick = now / tickMillis;
+            if (draining == null && nowTick - processedTick > buckets.length) {
+                // after a long pause every bucket is due; one revolution visits them all
+                processedTick = nowTick - buckets.length;
+            }
+            int visited = 0;
+            while (visited < budget) {
+                if (draining == null) {
+                    if (processedTick >= nowTick) break;
+                    processedTick++;
+                    draining = detach(processedTick);
+                    if (draining == null) continue;
+                }
+                String id;
+                while (visited < budget && (id = draining.poll()) != null) {
+                    visitor.visit(id, processedTick);
+                    visited++;
+                }
+                if (draining.isEmpty()) draining = null;
+            }
+            return visited;
+        }
+    }
+
+    /**
+     * Visits ids in order of their bucket, starting with the earliest due, until the visitor
+     * has removed {@code count} sessions or {@code horizonTicks} future ticks were searched.
+     * The visitor removes the sessions that really belong to the visited tick and schedules
+     * the others again.
+     *
+     * @return number of sessions removed
+     */
+    int evict(int count, long horizonTicks, Visitor visitor) {
+        synchronized (advanceLock) {
+            int removed = 0;
+            String id;
+            while (draining != null && removed < count && (id = draining.poll()) != null) {
+                if (visitor.visit(id, processedTick)) removed++;
+            }
+            if (draining != null && draining.isEmpty()) draining = null;
+
+            for (long t = processedTick + 1; removed < count && t <= processedTick + horizonTicks; t++) {
+                ArrayDeque<String> bucket = detach(t);
+                if (bucket == null) continue;
+                while (removed < count && (id = bucket.poll()) != null) {
+                    if (visitor.visit(id, t)) removed++;
+                }
+                if (!bucket.isEmpty()) reattach(t, bucket);
+            }
+            return removed;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package org.oldskooler.webserver4j.session;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Serializes session attributes with Java serialization, so every attribute value must be
+ * {@link Serializable}. Types survive the round trip unchanged. Only use it for files no
+ * one else can write: deserializing untrusted bytes is unsafe.
+ */
+public final class JavaSessionSerializer implements SessionSerializer {
+    @Override
+    public byte[] serialize(Map<String, Object> data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(new HashMap<>(data));
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> deserialize(byte[] bytes) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (Map<String, Object>) in.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Unreadable session data", e);
+        }
+    }
+}
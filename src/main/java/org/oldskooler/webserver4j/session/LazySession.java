@@ -0,0 +1,77 @@
+package org.oldskooler.webserver4j.session;
+
+import java.util.function.Supplier;
+
+/**
+ * The session of one request, looked up or created only when first needed.
+ * <p>
+ * Requests that never touch their session, such as static files, health checks and
+ * crawlers without a cookie, cost nothing in the session store: no cookie is decoded, no
+ * session is allocated and none is sent back.
+ */
+public final class LazySession {
+    private final SessionManager manager;
+    private final Supplier<String> requestedId;
+    private volatile Session session;
+    private volatile boolean looked;
+
+    /**
+     * @param manager     session store
+     * @param requestedId supplies the session id sent by the client, or null; called at most once
+     */
+    public LazySession(SessionManager manager, Supplier<String> requestedId) {
+        this.manager = manager;
+        this.requestedId = requestedId;
+    }
+
+    private LazySession(Session session) {
+        this.manager = null;
+        this.requestedId = null;
+        this.session = session;
+        this.looked = true;
+    }
+
+    /** @return a holder of an already known session, which may be null */
+    public static LazySession of(Session session) {
+        return new LazySession(session);
+    }
+
+    /**
+     * Returns the request's session, creating one if the client sent none or an unknown id.
+     *
+     * @return the session; null only for holders created with {@link #of(Session)} of null
+     */
+    public Session get() {
+        Session s = session;
+        if (s != null || manager == null) return s;
+        synchronized (this) {
+            if (session == null) {
+                session = looked ? manager.create() : manager.getOrCreate(requestedId.get());
+                looked = true;
+            }
+            return session;
+        }
+    }
+
+    /**
+     * Returns the request's existing session without creating one.
+     *
+     * @return the session, or null if the client has none
+     */
+    public Session peek() {
+        Session s = session;
+        if (s != null || looked) return s;
+        synchronized (this) {
+            if (!looked) {
+                session = manager.find(requestedId.get());
+                looked = true;
+            }
+            return session;
+        }
+    }
+
+    /** @return the session if {@link #get()} or {@link #peek()} produced one, otherwise null */
+    public Session current() {
+        return session;
+    }
+}
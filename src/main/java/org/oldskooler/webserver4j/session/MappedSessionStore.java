@@ -0,0 +1,298 @@
+package org.oldskooler.webserver4j.session;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent session store in a single memory-mapped file, so sessions survive restarts
+ * without a database or remote service.
+ * <p>
+ * The file is an append-only log: every save appends the whole session, every delete appends
+ * a tombstone, and an in-heap index maps each id to its latest record. The index is rebuilt by
+ * scanning the log on open; a record torn by a crash fails its checksum and ends the scan.
+ * Once more than half of the log is superseded, deleted or expired, the live records are
+ * copied into a fresh file that atomically replaces the old one.
+ * <p>
+ * Writes land in the page cache through the mapping and survive a crash of the process;
+ * {@link #close()} forces them to disk. The log is limited to 2 GB.
+ * <p>
+ * Compaction runs inside the {@link #save} that finds the log mostly dead, under the store's
+ * lock. A {@link SessionManager} saves on its background writer thread, so requests never
+ * wait for it; only a {@link #load} of a session missing from memory does, meanwhile.
+ * If the new file cannot replace the old one (for instance on Windows while the old mapping
+ * is still live), the store keeps appending to the old log and tries again once it has
+ * doubled. Java offers no way to unmap a file, so mappings dropped when the log grows or is
+ * compacted hold address space until they are garbage collected.
+ * <p>
+ * Record layout: {@code magic:int, length:int, type:byte, expiresAt:long, idLength:short,
+ * id:utf8, data, crc32:int}, where {@code length} covers the bytes from {@code type} to the
+ * end of {@code data}.
+ */
+public final class MappedSessionStore implements SessionStore {
+    private static final int MAGIC = 0x53455353;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    /** type, expiresAt, idLength */
+    private static final int BODY_HEADER = 1 + 8 + 2;
+    /** magic and length before the body, crc after it */
+    private static final int FRAMING = 4 + 4 + 4;
+    private static final int INITIAL_SIZE = 1024 * 1024;
+    private static final long MIN_COMPACT_SIZE = 4L * 1024 * 1024;
+
+    /** Position of a live record in the log. */
+    private static final class Entry {
+        final int offset;
+        final int size;
+        final int dataOffset;
+        final int dataLength;
+        final long expiresAt;
+
+        Entry(int offset, int size, int dataOffset, int dataLength, long expiresAt) {
+            this.offset = offset;
+            this.size = size;
+            this.dataOffset = dataOffset;
+            this.dataLength = dataLength;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Path file;
+    private final SessionSerializer serializer;
+    private final Map<String, Entry> index = new HashMap<>();
+
+    private FileChannel channel;
+    private MappedByteBuffer map;
+    private int writePos;
+    private long liveBytes;
+    /** Log size below which no compaction is attempted. */
+    private long compactAt = MIN_COMPACT_SIZE;
+
+    /**
+     * Opens or creates a store using Java serialization.
+     *
+     * @param file log file
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    public MappedSessionStore(Path file) throws IOException {
+        this(file, new JavaSessionSerializer());
+    }
+
+    /**
+     * @param file       log file
+     * @param serializer converts session attributes to bytes
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    public MappedSessionStore(Path file, SessionSerializer serializer) throws IOException {
+        this.file = file.toAbsolutePath();
+        this.serializer = serializer;
+        Path dir = this.file.getParent();
+        if (dir != null) Files.createDirectories(dir);
+        open();
+        scan();
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = Math.max(channel.size(), INITIAL_SIZE);
+        if (size > Integer.MAX_VALUE) throw new IOException("Session log too large: " + file);
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    /** Rebuilds the index from the log, stopping at the first incomplete or corrupt record. */
+    private void scan() {
+        long now = System.currentTimeMillis();
+        int pos = 0;
+        int limit = map.capacity();
+        while (pos + FRAMING + BODY_HEADER <= limit && map.getInt(pos) == MAGIC) {
+            int length = map.getInt(pos + 4);
+            if (length < BODY_HEADER || (long) pos + FRAMING + length > limit) break;
+            if (map.getInt(pos + 8 + length) != crc(pos + 8, length)) break;
+
+            byte type = map.get(pos + 8);
+            long expiresAt = map.getLong(pos + 9);
+            int idLength = map.getShort(pos + 17) & 0xFFFF;
+            if (BODY_HEADER + idLength > length) break;
+            String id = readString(pos + 8 + BODY_HEADER, idLength);
+
+            Entry previous = index.remove(id);
+            if (previous != null) liveBytes -= previous.size;
+            if (type == PUT && expiresAt > now) {
+                int dataOffset = pos + 8 + BODY_HEADER + idLength;
+                index.put(id, new Entry(pos, FRAMING + length, dataOffset, length - BODY_HEADER - idLength, expiresAt));
+                liveBytes += FRAMING + length;
+            }
+            pos += FRAMING + length;
+        }
+        writePos = pos;
+    }
+
+    @Override
+    public synchronized StoredSession load(String id) throws IOException {
+        Entry e = index.get(id);
+        if (e == null) return null;
+        if (e.expiresAt <= System.currentTimeMillis()) {
+            index.remove(id);
+            liveBytes -= e.size;
+            return null;
+        }
+        byte[] bytes = new byte[e.dataLength];
+        ByteBuffer view = map.duplicate();
+        view.position(e.dataOffset);
+        view.get(bytes);
+        return new StoredSession(e.expiresAt, serializer.deserialize(bytes));
+    }
+
+    @Override
+    public void save(String id, long expiresAt, Map<String, Object> data) throws IOException {
+        byte[] bytes = serializer.serialize(data);
+        synchronized (this) {
+            append(PUT, id, expiresAt, bytes);
+        }
+    }
+
+    @Override
+    public synchronized void delete(String id) throws IOException {
+        Entry e = index.remove(id);
+        if (e == null) return;
+        liveBytes -= e.size;
+        // the tombstone keeps the session deleted across a restart
+        append(DELETE, id, 0, new byte[0]);
+    }
+
+    private void append(byte type, String id, long expiresAt, byte[] data) throws IOException {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        if (idBytes.length > 0xFFFF) throw new IOException("Session id too long");
+        int length = BODY_HEADER + idBytes.length + data.length;
+        int size = FRAMING + length;
+
+        if (type == PUT && writePos > compactAt && liveBytes < (writePos - liveBytes)) {
+            compact();
+        }
+        ensureCapacity(size);
+
+        int pos = writePos;
+        map.putInt(pos, MAGIC);
+        map.put(pos + 8, type);
+        map.putLong(pos + 9, expiresAt);
+        map.putShort(pos + 17, (short) idBytes.length);
+        ByteBuffer view = map.duplicate();
+        view.position(pos + 8 + BODY_HEADER);
+        view.put(idBytes);
+        view.put(data);
+        map.putInt(pos + 8 + length, crc(pos + 8, length));
+        // the length goes last: until then, a scan sees an incomplete record
+        map.putInt(pos + 4, length);
+        writePos = pos + size;
+
+        if (type == PUT) {
+            Entry previous = index.put(id, new Entry(pos, size, pos + 8 + BODY_HEADER + idBytes.length,
+                    data.length, expiresAt));
+            if (previous != null) liveBytes -= previous.size;
+            liveBytes += size;
+        }
+    }
+
+    private void ensureCapacity(int size) throws IOException {
+        long needed = (long) writePos + size;
+        if (needed <= map.capacity()) return;
+        long grown = Math.max(needed, 2L * map.capacity());
+        if (grown > Integer.MAX_VALUE) grown = needed;
+        if (grown > Integer.MAX_VALUE) throw new IOException("Session log full: " + file);
+        map.force();
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, grown);
+    }
+
+    /**
+     * Copies the live records into a new file and swaps it in. Record bytes are copied as
+     * they are, so nothing is deserialized. If the swap fails, the old log is reopened and
+     * stays in use.
+     */
+    private void compact() throws IOException {
+        long now = System.currentTimeMillis();
+        Path tmp = file.resolveSibling(file.getFileName() + ".compact");
+        Map<String, Entry> moved = new HashMap<>(index.size() * 2);
+        int pos = 0;
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Iterator<Map.Entry<String, Entry>> it = index.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Entry> me = it.next();
+                Entry e = me.getValue();
+                if (e.expiresAt <= now) continue;
+                ByteBuffer record = map.duplicate();
+                record.position(e.offset).limit(e.offset + e.size);
+                while (record.hasRemaining()) out.write(record);
+                moved.put(me.getKey(), new Entry(pos, e.size, pos + (e.dataOffset - e.offset), e.dataLength, e.expiresAt));
+                pos += e.size;
+            }
+            out.force(true);
+        }
+
+        map.force();
+        channel.close();
+        try {
+            replace(tmp);
+        } catch (IOException e) {
+            e.printStackTrace();
+            Files.deleteIfExists(tmp);
+            compactAt = 2L * writePos;
+            return;
+        } finally {
+            open();
+        }
+
+        compactAt = MIN_COMPACT_SIZE;
+        index.clear();
+        index.putAll(moved);
+        writePos = pos;
+        liveBytes = pos;
+    }
+
+    private void replace(Path compacted) throws IOException {
+        try {
+            Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private int crc(int offset, int length) {
+        CRC32 crc = new CRC32();
+        ByteBuffer view = map.duplicate();
+        view.position(offset).limit(offset + length);
+        crc.update(view);
+        return (int) crc.getValue();
+    }
+
+    private String readString(int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = map.duplicate();
+        view.position(offset);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** @return number of live sessions in the log */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /** Forces pending writes to disk and closes the file. */
+    @Override
+    public synchronized void close() throws IOException {
+        map.force();
+        channel.close();
+    }
+}
@@ -0,0 +1,32 @@
+package org.oldskooler.webserver4j.session;
+
+import java.util.Map;
+
+/**
+ * The default store: sessions live only in the manager's in-heap map and are lost on
+ * restart. Saving and deleting are no-ops, so no session is ever serialized.
+ */
+public final class MemorySessionStore implements SessionStore {
+    /** Shared instance; the store holds no state. */
+    public static final MemorySessionStore INSTANCE = new MemorySessionStore();
+
+    private MemorySessionStore() {
+    }
+
+    @Override
+    public StoredSession load(String id) {
+        return null;
+    }
+
+    @Override
+    public void save(String id, long expiresAt, Map<String, Object> data) {
+    }
+
+    @Override
+    public void delete(String id) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,110 @@
+package org.oldskooler.webserver4j.session;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * The default {@link SessionIdGenerator}: random bytes from a per-thread CSPRNG, encoded as
+ * URL-safe base64 without padding.
+ * <p>
+ * Each thread has its own generator and buffers, so creating a session allocates nothing but
+ * the id string. The generators are DRBG on Java 9 and later, and SHA1PRNG on Java 8, whose
+ * instances keep their state to themselves; threads only share the platform source once,
+ * to seed a new generator. Random bytes are drawn for {@value #IDS_PER_REFILL} ids at a time, which spreads the
+ * generator's fixed cost per call; the buffer never leaves its thread.
+ * The default 24 bytes give 192 bits of entropy in 32 characters, where a UUID gives 122.
+ */
+public final class SecureSessionIdGenerator implements SessionIdGenerator {
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+    /** Default number of random bytes per id. */
+    public static final int DEFAULT_BYTES = 24;
+
+    private static final int IDS_PER_REFILL = 64;
+
+    /** Platform generator, only used to seed the per-thread ones. */
+    private static final SecureRandom SEEDER = new SecureRandom();
+
+    /** Per-thread generator and buffers. */
+    private static final class State {
+        final SecureRandom random = newRandom();
+        final byte[] pool;
+        final char[] chars;
+        int position;
+
+        State(int length) {
+            pool = new byte[length * IDS_PER_REFILL];
+            position = pool.length;
+            chars = new char[(length * 4 + 2) / 3];
+        }
+    }
+
+    private final int length;
+    private final ThreadLocal<State> state;
+
+    public SecureSessionIdGenerator() {
+        this(DEFAULT_BYTES);
+    }
+
+    /**
+     * @param bytes random bytes per id; at least 16
+     */
+    public SecureSessionIdGenerator(int bytes) {
+        if (bytes < 16) throw new IllegalArgumentException("Session ids need at least 16 random bytes");
+        this.length = bytes;
+        this.state = ThreadLocal.withInitial(() -> new State(bytes));
+    }
+
+    @Override
+    public String generate() {
+        State s = state.get();
+        if (s.position == s.pool.length) {
+            s.random.nextBytes(s.pool);
+            s.position = 0;
+        }
+        byte[] b = s.pool;
+        char[] c = s.chars;
+        int start = s.position;
+        int end = start + length;
+        s.position = end;
+
+        int i = start, j = 0;
+        for (int full = end - length % 3; i < full; i += 3) {
+            int v = (b[i] & 0xFF) << 16 | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF);
+            c[j++] = ALPHABET[v >>> 18];
+            c[j++] = ALPHABET[(v >>> 12) & 0x3F];
+            c[j++] = ALPHABET[(v >>> 6) & 0x3F];
+            c[j++] = ALPHABET[v & 0x3F];
+        }
+        if (i < end) {
+            int v = (b[i] & 0xFF) << 16 | (i + 1 < end ? (b[i + 1] & 0xFF) << 8 : 0);
+            c[j++] = ALPHABET[v >>> 18];
+            c[j++] = ALPHABET[(v >>> 12) & 0x3F];
+            if (i + 1 < end) c[j++] = ALPHABET[(v >>> 6) & 0x3F];
+        }
+        return new String(c, 0, j);
+    }
+
+    /**
+     * Prefers DRBG (Java 9+), then SHA1PRNG, as NativePRNG, the usual default on Linux,
+     * funnels every instance through one global lock. SHA1PRNG is seeded from the platform
+     * source before first use, so it never falls back to its own weaker self-seeding.
+     */
+    private static SecureRandom newRandom() {
+        try {
+            return SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException e) {
+            // Java 8
+        }
+        try {
+            SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+            byte[] seed = new byte[32];
+            SEEDER.nextBytes(seed);
+            random.setSeed(seed);
+            return random;
+        } catch (NoSuchAlgorithmException e) {
+            return new SecureRandom();
+        }
+    }
+}
@@ -1,26 +1,323 @@
 package org.oldskooler.webserver4j.session;
 
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 /**
  * Per-client session storage backed by an in-memory map.
- * The session persists across requests via the SESSIONID cookie.
+ * The session persists across requests via the SESSIONID cookie, which is only sent while
+ * the client does not know the current id yet: after creation and after {@link SessionManager#rotate}.
+ * <p>
+ * Changes made through {@link #set}, {@link #remove} or {@link #data()}, including its key,
+ * value and entry views and their iterators, mark the session dirty, so a persistent
+ * {@link SessionStore} writes it after the request.
+ * Objects changed in place, such as a list stored in the session, need {@link #markDirty()}.
  */
 public class Session {
-    private final String id;
-    private final Map<String, Object> data = new ConcurrentHashMap<>();
+    private volatile String id;
+    private final Map<String, Object> data = new TrackingMap();
+    private boolean cookiePending = true;
+    private String encodedCookie;
+
+    /** Expiry time in epoch milliseconds, maintained by {@link SessionManager}. */
+    volatile long expiresAt;
+    /** Approximate heap footprint in bytes, as of the last {@link #reweigh()}. */
+    private long weight;
+
+    private volatile boolean dirty;
+    /** Expiry time last written to the store; guarded by {@code this}. */
+    private long persistedExpiresAt;
 
     public Session(String id) {
         this.id = id;
     }
 
+    /** Restores a session read from a {@link SessionStore}; its client already has the cookie. */
+    Session(String id, Map<String, Object> restored, long persistedExpiresAt) {
+        this.id = id;
+        this.data.putAll(restored);
+        this.cookiePending = false;
+        this.dirty = false;
+        this.persistedExpiresAt = persistedExpiresAt;
+    }
+
     /** @return session id */
     public String getId() { return id; }
 
+    /** @return true if the session is new or its id was rotated and the cookie has not been sent yet */
+    public synchronized boolean isCookiePending() { return cookiePending; }
+
+    /**
+     * Returns the Set-Cookie value once after creation or rotation, null otherwise. The encoded
+     * value is kept until the id changes.
+     */
+    synchronized String takePendingCookie(Function<String, String> encoder) {
+        if (!cookiePending) return null;
+        cookiePending = false;
+        if (encodedCookie == null) encodedCookie = encoder.apply(id);
+        return encodedCookie;
+    }
+
+    /**
+     * Sets the Set-Cookie value to send with the current response, replacing the default
+     * cookie carrying the id; null sends none.
+     */
+    synchronized void setPendingCookie(String encoded) {
+        encodedCookie = encoded;
+        cookiePending = encoded != null;
+    }
+
+    synchronized void changeId(String newId) {
+        id = newId;
+        encodedCookie = null;
+        cookiePending = true;
+    }
+
     /** @return mutable attribute map */
     public Map<String, Object> data() { return data; }
 
+    /**
+     * Re-estimates the heap footprint from the attribute map. Values are measured shallowly:
+     * strings and byte arrays by length, anything else by a flat guess.
+     *
+     * @return change of the estimate since the previous call
+     */
+    synchronized long reweigh() {
+        long w = 200 + 2L * id.length();
+        for (Map.Entry<String, Object> e : data.entrySet()) {
+            w += 64 + sizeOf(e.getKey()) + sizeOf(e.getValue());
+        }
+        long delta = w - weight;
+        weight = w;
+        return delta;
+    }
+
+    synchronized long weight() {
+        return weight;
+    }
+
+    private static long sizeOf(Object v) {
+        if (v == null) return 0;
+        if (v instanceof CharSequence) return 40 + 2L * ((CharSequence) v).length();
+        if (v instanceof byte[]) return 16 + ((byte[]) v).length;
+        if (v instanceof Number || v instanceof Boolean || v instanceof Character) return 16;
+        if (v instanceof Collection) return 32 + 16L * ((Collection<?>) v).size();
+        if (v instanceof Map) return 48 + 32L * ((Map<?, ?>) v).size();
+        return 64;
+    }
+
+    /** @return true if the session was restored from or written to a store */
+    synchronized boolean wasPersisted() {
+        return persistedExpiresAt != 0;
+    }
+
+    /** Flags the session for writing to the store, e.g. after changing a stored object in place. */
+    public void markDirty() { dirty = true; }
+
+    /**
+     * Decides whether the session must be written to the store: when its data changed, or when
+     * its expiry moved by at least {@code minExtension} since the last write. Clears the flag,
+     * so changes made during the write mark it again.
+     */
+    synchronized boolean takeDirty(long minExtension) {
+        long current = expiresAt;
+        if (!dirty && current - persistedExpiresAt < minExtension) return false;
+        dirty = false;
+        persistedExpiresAt = current;
+        return true;
+    }
+
+    /**
+     * Attribute map that marks the session dirty on every change, including removals and
+     * {@link Map.Entry#setValue} through its views and their iterators.
+     */
+    private final class TrackingMap extends AbstractMap<String, Object> implements ConcurrentMap<String, Object> {
+        private final ConcurrentHashMap<String, Object> map = new ConcurrentHashMap<>();
+
+        @Override public int size() { return map.size(); }
+        @Override public boolean isEmpty() { return map.isEmpty(); }
+        @Override public boolean containsKey(Object key) { return map.containsKey(key); }
+        @Override public boolean containsValue(Object value) { return map.containsValue(value); }
+        @Override public Object get(Object key) { return map.get(key); }
+        @Override public Object getOrDefault(Object key, Object defaultValue) { return map.getOrDefault(key, defaultValue); }
+        @Override public void forEach(BiConsumer<? super String, ? super Object> action) { map.forEach(action); }
+
+        @Override
+        public Object put(String key, Object value) {
+            dirty = true;
+            return map.put(key, value);
+        }
+
+        @Override
+        public void putAll(Map<? extends String, ?> m) {
+            dirty = true;
+            map.putAll(m);
+        }
+
+        @Override
+        public Object putIfAbsent(String key, Object value) {
+            dirty = true;
+            return map.putIfAbsent(key, value);
+        }
+
+        @Override
+        public Object remove(Object key) {
+            dirty = true;
+            return map.remove(key);
+        }
+
+        @Override
+        public boolean remove(Object key, Object value) {
+            dirty = true;
+            return map.remove(key, value);
+        }
+
+        @Override
+        public boolean replace(String key, Object oldValue, Object newValue) {
+            dirty = true;
+            return map.replace(key, oldValue, newValue);
+        }
+
+        @Override
+        public Object replace(String key, Object value) {
+            dirty = true;
+            return map.replace(key, value);
+        }
+
+        @Override
+        public void replaceAll(BiFunction<? super String, ? super Object, ?> fn) {
+            dirty = true;
+            map.replaceAll(fn);
+        }
+
+        @Override
+        public Object compute(String key, BiFunction<? super String, ? super Object, ?> fn) {
+            dirty = true;
+            return map.compute(key, fn);
+        }
+
+        @Override
+        public Object computeIfAbsent(String key, Function<? super String, ?> fn) {
+            dirty = true;
+            return map.computeIfAbsent(key, fn);
+        }
+
+        @Override
+        public Object computeIfPresent(String key, BiFunction<? super String, ? super Object, ?> fn) {
+            dirty = true;
+            return map.computeIfPresent(key, fn);
+        }
+
+        @Override
+        public Object merge(String key, Object value, BiFunction<? super Object, ? super Object, ?> fn) {
+            dirty = true;
+            return map.merge(key, value, fn);
+        }
+
+        @Override
+        public void clear() {
+            dirty = true;
+            map.clear();
+        }
+
+        @Override
+        public Set<String> keySet() {
+            return new AbstractSet<String>() {
+                @Override public Iterator<String> iterator() { return tracking(map.keySet().iterator()); }
+                @Override public int size() { return map.size(); }
+                @Override public boolean contains(Object o) { return map.containsKey(o); }
+                @Override public boolean remove(Object o) { return TrackingMap.this.remove(o) != null; }
+                @Override public void clear() { TrackingMap.this.clear(); }
+            };
+        }
+
+        @Override
+        public Collection<Object> values() {
+            return new AbstractCollection<Object>() {
+                @Override public Iterator<Object> iterator() { return tracking(map.values().iterator()); }
+                @Override public int size() { return map.size(); }
+                @Override public boolean contains(Object o) { return map.containsValue(o); }
+                @Override public void clear() { TrackingMap.this.clear(); }
+            };
+        }
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet() {
+            return new AbstractSet<Map.Entry<String, Object>>() {
+                @Override
+                public Iterator<Map.Entry<String, Object>> iterator() {
+                    Iterator<Map.Entry<String, Object>> it = tracking(map.entrySet().iterator());
+                    return new Iterator<Map.Entry<String, Object>>() {
+                        @Override public boolean hasNext() { return it.hasNext(); }
+                        @Override public Map.Entry<String, Object> next() { return new TrackingEntry(it.next()); }
+                        @Override public void remove() { it.remove(); }
+                    };
+                }
+
+                @Override public int size() { return map.size(); }
+                @Override public boolean contains(Object o) { return map.entrySet().contains(o); }
+
+                @Override
+                public boolean remove(Object o) {
+                    if (!(o instanceof Map.Entry)) return false;
+                    Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+                    return TrackingMap.this.remove(e.getKey(), e.getValue());
+                }
+
+                @Override public void clear() { TrackingMap.this.clear(); }
+            };
+        }
+
+        @Override public boolean equals(Object o) { return map.equals(o); }
+        @Override public int hashCode() { return map.hashCode(); }
+        @Override public String toString() { return map.toString(); }
+
+        private <T> Iterator<T> tracking(Iterator<T> it) {
+            return new Iterator<T>() {
+                @Override public boolean hasNext() { return it.hasNext(); }
+                @Override public T next() { return it.next(); }
+
+                @Override
+                public void remove() {
+                    dirty = true;
+                    it.remove();
+                }
+            };
+        }
+
+        /** Entry whose {@link #setValue} writes through to the map and marks the session dirty. */
+        private final class TrackingEntry implements Map.Entry<String, Object> {
+            private final Map.Entry<String, Object> entry;
+
+            TrackingEntry(Map.Entry<String, Object> entry) {
+                this.entry = entry;
+            }
+
+            @Override public String getKey() { return entry.getKey(); }
+            @Override public Object getValue() { return entry.getValue(); }
+
+            @Override
+            public Object setValue(Object value) {
+                dirty = true;
+                return entry.setValue(value);
+            }
+
+            @Override public boolean equals(Object o) { return entry.equals(o); }
+            @Override public int hashCode() { return entry.hashCode(); }
+            @Override public String toString() { return entry.toString(); }
+        }
+    }
+
     public Object get(String key) { return data.get(key); }
     public void set(String key, Object value) { data.put(key, value); }
     public void remove(String key) { data.remove(key); }
@@ -0,0 +1,10 @@
+package org.oldskooler.webserver4j.session;
+
+/**
+ * Produces new session ids. Ids must be unguessable, since knowing one is enough to take
+ * over its session, and must only contain characters allowed in a cookie value.
+ * Implementations must be thread-safe.
+ */
+public interface SessionIdGenerator {
+    String generate();
+}
@@ -1,51 +1,241 @@
 package org.oldskooler.webserver4j.session;
 
-import java.time.Instant;
+import io.netty.handler.codec.http.cookie.Cookie;
+import io.netty.handler.codec.http.cookie.DefaultCookie;
+import io.netty.handler.codec.http.cookie.ServerCookieEncoder;
+
+import java.io.IOException;
 import java.util.Map;
-import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
 
 /**
  * Manages user sessions with automatic expiration support.
  * <p>
  * This class provides thread-safe session creation, retrieval, and cleanup.
  * Each session is identified by a unique ID string and has a configurable
- * time-to-live (TTL). Expired sessions are removed on {@link #sweep()}.
+ * time-to-live (TTL) that is refreshed whenever the session is used.
+ * </p>
+ * <p>
+ * Sessions live in a single concurrent map and carry their own expiry time. Reading a
+ * session only writes to it when its expiry is refreshed, which happens at most once per
+ * second per session, so the hot path is a lock-free map lookup.
+ * </p>
+ * <p>
+ * Expiry is tracked in a hashed timing wheel: {@link #expireDue()}, called every
+ * {@link #tickMillis()} (the web server schedules this), only looks at the sessions due in
+ * the elapsed ticks and removes at most a fixed number per call, so its cost follows the
+ * number of expiring sessions rather than the total and never causes a long pause.
+ * </p>
+ * <p>
+ * The store can be bounded by session count and by an approximate byte budget. When either
+ * is exceeded, the least recently used sessions are evicted, found through the same wheel.
+ * </p>
+ * <p>
+ * With a persistent {@link SessionStore}, the map serves as its cache: a session missing
+ * from memory is read from the store, and {@link #commit(Session)} writes it back after a
+ * request that changed it. Evicted sessions stay in the store; expired ones are deleted.
+ * Writes and deletions are only queued by the request or expiry tick and applied to the
+ * store by a background thread, so neither waits for serialization or disk I/O.
  * </p>
  *
  * <h2>Usage</h2>
  * <pre>{@code
- * SessionManager manager = new SessionManager(30_000); // 30s TTL
+ * SessionManager manager = new SessionManager.Builder()
+ *         .ttl(30, TimeUnit.MINUTES)
+ *         .maxSessions(100_000)
+ *         .maxBytes(256L * 1024 * 1024)
+ *         .build();
  * Session s = manager.getOrCreate("someId");
  * String id = manager.ensureId(s);
- * manager.sweep(); // periodically remove expired sessions
+ * String setCookie = manager.cookieHeader(s); // non-null only for new or rotated sessions
+ * manager.expireDue(); // every tickMillis(), remove sessions that expired
  * }</pre>
  */
 public class SessionManager {
+    /** Name of the cookie carrying the session ID. */
+    public static final String COOKIE_NAME = "SESSIONID";
 
-    /** Active sessions keyed by their session ID. */
-    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    /** Default cap on sessions removed per {@link #expireDue()} call. */
+    public static final int DEFAULT_MAX_EXPIRIES_PER_TICK = 10_000;
+
+    /** Largest number of wheel buckets; longer TTLs get a coarser tick instead. */
+    private static final int MAX_WHEEL_SIZE = 1 << 16;
+
+    /** Minimum time between two expiry refreshes of the same session. */
+    private static final long REFRESH_INTERVAL_MILLIS = 1000;
+
+    /** Sessions evicted at once when a limit is exceeded, so eviction does not run per request. */
+    private static final int EVICTION_BATCH = 16;
 
-    /** Expiry timestamps (epoch millis) keyed by session ID. */
-    private final Map<String, Long> expiries = new ConcurrentHashMap<>();
+    /**
+     * Builder for a {@link SessionManager}.
+     */
+    public static class Builder {
+        private long ttlMillis = TimeUnit.HOURS.toMillis(24);
+        private long tickMillis;
+        private int maxExpiriesPerTick = DEFAULT_MAX_EXPIRIES_PER_TICK;
+        private int maxSessions;
+        private long maxBytes;
+        private SessionStore store = MemorySessionStore.INSTANCE;
+        private SessionIdGenerator idGenerator;
+        private SessionReplicator replicator;
+
+        /**
+         * @param ttl  time a session lives after its last use; default 24 hours
+         * @param unit unit of {@code ttl}
+         * @return this builder
+         */
+        public Builder ttl(long ttl, TimeUnit unit) {
+            this.ttlMillis = unit.toMillis(ttl);
+            return this;
+        }
+
+        /**
+         * @param tick granularity of expiry; sessions are removed up to one tick late. Defaults
+         *             to one second, or coarser for TTLs beyond 65536 seconds
+         * @param unit unit of {@code tick}
+         * @return this builder
+         */
+        public Builder tick(long tick, TimeUnit unit) {
+            this.tickMillis = unit.toMillis(tick);
+            return this;
+        }
+
+        /**
+         * @param max cap on sessions removed per {@link #expireDue()} call; the rest carry over
+         *            to the next call. Default {@value #DEFAULT_MAX_EXPIRIES_PER_TICK}
+         * @return this builder
+         */
+        public Builder maxExpiriesPerTick(int max) {
+            this.maxExpiriesPerTick = max;
+            return this;
+        }
+
+        /**
+         * @param max maximum number of live sessions; 0 for no limit (default)
+         * @return this builder
+         */
+        public Builder maxSessions(int max) {
+            this.maxSessions = max;
+            return this;
+        }
+
+        /**
+         * @param bytes approximate heap budget of all sessions and their attributes; 0 for no
+         *              limit (default)
+         * @return this builder
+         */
+        public Builder maxBytes(long bytes) {
+            this.maxBytes = bytes;
+            return this;
+        }
+
+        /**
+         * @param store where sessions are kept beyond the heap, e.g. a {@link MappedSessionStore};
+         *              default {@link MemorySessionStore}, which keeps nothing
+         * @return this builder
+         */
+        public Builder store(SessionStore store) {
+            this.store = store;
+            return this;
+        }
+
+        /**
+         * @param generator source of new session ids; default {@link SecureSessionIdGenerator}
+         * @return this builder
+         */
+        public Builder idGenerator(SessionIdGenerator generator) {
+            this.idGenerator = generator;
+            return this;
+        }
+
+        /**
+         * @param replicator replicates sessions to other nodes; none by default
+         * @return this builder
+         */
+        public Builder replicator(SessionReplicator replicator) {
+            this.replicator = replicator;
+            return this;
+        }
+
+        public SessionManager build() {
+            return new SessionManager(this);
+        }
+    }
+
+    /** Active sessions keyed by their session ID. */
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
 
     /** Time-to-live for sessions, in milliseconds. */
     private final long ttlMillis;
 
+    /** Session ids bucketed by expiry tick. */
+    private final ExpiryWheel wheel;
+
+    /** Upper bound of sessions removed per {@link #expireDue()} call. */
+    private final int maxExpiriesPerTick;
+
+    private final int maxSessions;
+    private final long maxBytes;
+    private final SessionStore store;
+    /** Applies writes to {@link #store} in the background; null for the memory store. */
+    private final StoreWriter writer;
+    private final SessionIdGenerator idGenerator;
+    private final SessionReplicator replicator;
+
+    /** Sum of the session weights. */
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
     /**
-     * Constructs a new {@code SessionManager}.
+     * Constructs a new unbounded {@code SessionManager} with a tick of one second, or coarser
+     * for TTLs beyond 65536 seconds.
      *
      * @param ttlMillis the time-to-live for each session, in milliseconds
      */
     public SessionManager(long ttlMillis) {
-        this.ttlMillis = ttlMillis;
+        this(new Builder().ttl(ttlMillis, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Constructs a new unbounded {@code SessionManager}.
+     *
+     * @param ttlMillis          the time-to-live for each session, in milliseconds
+     * @param tickMillis         granularity of expiry; sessions are removed up to one tick late
+     * @param maxExpiriesPerTick cap on sessions removed per {@link #expireDue()} call; the rest
+     *                           carry over to the next call
+     */
+    public SessionManager(long ttlMillis, long tickMillis, int maxExpiriesPerTick) {
+        this(new Builder().ttl(ttlMillis, TimeUnit.MILLISECONDS).tick(tickMillis, TimeUnit.MILLISECONDS)
+                .maxExpiriesPerTick(maxExpiriesPerTick));
+    }
+
+    protected SessionManager(Builder b) {
+        this.ttlMillis = b.ttlMillis;
+        this.maxExpiriesPerTick = b.maxExpiriesPerTick;
+        this.maxSessions = b.maxSessions;
+        this.maxBytes = b.maxBytes;
+        this.replicator = b.replicator;
+        this.store = replicator != null ? replicator.attach(this, b.store) : b.store;
+        this.writer = store == MemorySessionStore.INSTANCE ? null : new StoreWriter(store);
+        if (writer != null) writer.start();
+        this.idGenerator = b.idGenerator != null ? b.idGenerator : new SecureSessionIdGenerator();
+        long tick = b.tickMillis > 0
+                ? b.tickMillis
+                : Math.max(1000, (b.ttlMillis + MAX_WHEEL_SIZE - 1) / MAX_WHEEL_SIZE);
+        long buckets = Math.min(MAX_WHEEL_SIZE, b.ttlMillis / tick + 1);
+        this.wheel = new ExpiryWheel(tick, (int) buckets, System.currentTimeMillis());
     }
 
     /**
      * Retrieves an existing session by ID or creates a new one if it does not exist.
      * <p>
      * If the given {@code id} is {@code null}, empty, or not present in the session map,
-     * a new session will be created with a random UUID-based ID. Otherwise, the
+     * a new session will be created with a fresh random ID. Otherwise, the
      * session is returned and its expiry is refreshed.
      * </p>
      *
@@ -53,16 +243,112 @@ public class SessionManager {
      * @return the existing or newly created {@link Session}
      */
     public Session getOrCreate(String id) {
-        if (id == null || id.isEmpty() || !sessions.containsKey(id)) {
-            String newId = UUID.randomUUID().toString().replace("-", "");
-            Session session = new Session(newId);
-            sessions.put(newId, session);
-            expiries.put(newId, System.currentTimeMillis() + ttlMillis);
-            return session;
+        Session existing = find(id);
+        if (existing != null) return existing;
+        String newId = idGenerator.generate();
+        Session session = new Session(newId);
+        bytes.add(session.reweigh());
+        track(newId, session);
+        enforceLimits();
+        return session;
+    }
+
+    private void track(String id, Session session) {
+        long expiresAt = System.currentTimeMillis() + ttlMillis;
+        session.expiresAt = expiresAt;
+        sessions.put(id, session);
+        wheel.schedule(id, expiresAt);
+    }
+
+    /**
+     * Retrieves an existing session by ID without creating one, refreshing its expiry.
+     *
+     * @param id the session ID, may be {@code null} or empty
+     * @return the session, or {@code null} if there is none with that ID
+     */
+    public Session find(String id) {
+        if (id == null || id.isEmpty()) return null;
+        Session session = sessions.get(id);
+        if (session == null) return load(id);
+
+        long now = System.currentTimeMillis();
+        long expiresAt = session.expiresAt;
+        // expired but not yet removed by the wheel
+        if (expiresAt <= now) return null;
+        if (now + ttlMillis - expiresAt >= REFRESH_INTERVAL_MILLIS) {
+            // the wheel picks up the new expiry lazily, when the old bucket comes due
+            session.expiresAt = now + ttlMillis;
+            bytes.add(session.reweigh());
+            if (maxBytes > 0 && bytes.sum() > maxBytes) enforceLimits();
+        }
+        return session;
+    }
+
+    /** Reads a session that is not in memory from the store and caches it. */
+    private Session load(String id) {
+        if (store == MemorySessionStore.INSTANCE) return null;
+        StoredSession stored;
+        StoreWriter.Op queued = writer.queued(id);
+        if (queued != null) {
+            // changed after it was read, and not yet written
+            if (queued.session == null) return null;
+            stored = new StoredSession(queued.expiresAt, queued.session.data());
+        } else {
+            try {
+                stored = store.load(id);
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+        if (stored == null || stored.expiresAt <= System.currentTimeMillis()) return null;
+
+        Session restored = new Session(id, stored.data, stored.expiresAt);
+        long expiresAt = System.currentTimeMillis() + ttlMillis;
+        restored.expiresAt = expiresAt;
+        Session raced = sessions.putIfAbsent(id, restored);
+        if (raced != null) return raced;
+        bytes.add(restored.reweigh());
+        wheel.schedule(id, expiresAt);
+        enforceLimits();
+        return restored;
+    }
+
+    /**
+     * Installs a session received from another node, replacing any local copy. It is not
+     * written to the local store, nor replicated further.
+     * <p>
+     * The owner only sends a session again once its expiry moved by a tenth of the TTL (see
+     * {@link #commit}), so the copy is kept that much longer than the expiry received; it
+     * would otherwise expire here while still in use on the owner.
+     */
+    void putReplica(String id, long received, Map<String, Object> data) {
+        long expiresAt = received + ttlMillis / 10;
+        if (expiresAt <= System.currentTimeMillis()) {
+            removeReplica(id);
+            return;
+        }
+        Session replica = new Session(id, data, received);
+        replica.expiresAt = expiresAt;
+        bytes.add(replica.reweigh());
+        Session previous = sessions.put(id, replica);
+        if (previous != null) {
+            // its wheel entry now finds the replica under the same id
+            bytes.add(-previous.weight());
+        } else {
+            wheel.schedule(id, expiresAt);
         }
-        // refresh expiry
-        expiries.put(id, System.currentTimeMillis() + ttlMillis);
-        return sessions.get(id);
+        enforceLimits();
+    }
+
+    /** Removes a session that another node rotated away. */
+    void removeReplica(String id) {
+        Session s = sessions.get(id);
+        if (s != null) remove(id, s);
+    }
+
+    void forEachSession(BiConsumer<String, Session> action) {
+        sessions.forEach(action);
     }
 
     /**
@@ -74,6 +360,66 @@ public class SessionManager {
         return getOrCreate(null);
     }
 
+    /**
+     * Gives a session a fresh ID, keeping its data, and schedules the new cookie to be sent
+     * with the current response. Call this after a login or privilege change to prevent
+     * session fixation.
+     *
+     * @param s the session to rotate
+     * @return the same session, now under its new ID
+     */
+    public Session rotate(Session s) {
+        String oldId = s.getId();
+        String newId = idGenerator.generate();
+        track(newId, s);
+        s.changeId(newId);
+        // the old id's wheel entry finds nothing under its key and is dropped
+        sessions.remove(oldId, s);
+        deleteStored(oldId);
+        s.markDirty();
+        return s;
+    }
+
+    /**
+     * Writes a session to the store if it changed, or if its expiry moved on by a tenth of the
+     * TTL since it was last written; called after each request that used a session. The write
+     * is queued and done in the background; a failed write is logged and retried after the
+     * next request.
+     *
+     * @param s the session of the current request, may be {@code null}
+     */
+    public void commit(Session s) {
+        if (s == null || writer == null) return;
+        if (!s.takeDirty(ttlMillis / 10)) return;
+        writer.save(s);
+    }
+
+    private void expireStored(String id) {
+        if (writer != null) writer.expire(id);
+    }
+
+    private void deleteStored(String id) {
+        if (writer != null) writer.delete(id);
+    }
+
+    /**
+     * Returns the {@code Set-Cookie} value to send for a session, or null if the client
+     * already has the current ID. The cookie is only returned once per new or rotated ID.
+     *
+     * @param s the session of the current request
+     * @return encoded cookie header value, or null
+     */
+    public String cookieHeader(Session s) {
+        return s.takePendingCookie(SessionManager::encodeCookie);
+    }
+
+    static String encodeCookie(String id) {
+        Cookie cookie = new DefaultCookie(COOKIE_NAME, id);
+        cookie.setHttpOnly(true);
+        cookie.setPath("/");
+        return ServerCookieEncoder.STRICT.encode(cookie);
+    }
+
     /**
      * Ensures that the provided session has an ID and returns it.
      *
@@ -85,21 +431,120 @@ public class SessionManager {
     }
 
     /**
-     * Cleans up expired sessions.
-     * <p>
-     * Iterates over all stored sessions and removes those whose expiry time
-     * is earlier than the current system time.
-     * </p>
+     * Removes the sessions that expired in the ticks elapsed since the last call, up to the
+     * per-tick cap. Meant to be called every {@link #tickMillis()}.
+     *
+     * @return number of sessions removed
+     */
+    public int expireDue() {
+        return expire(maxExpiriesPerTick);
+    }
+
+    /**
+     * Removes all sessions that are due for expiry, without the per-tick cap.
      */
     public void sweep() {
-        long now = Instant.now().toEpochMilli();
-        expiries.entrySet().removeIf(e -> {
-            if (e.getValue() < now) {
-                String id = e.getKey();
-                sessions.remove(id);
-                return true;
+        expire(Integer.MAX_VALUE);
+    }
+
+    private int expire(int budget) {
+        long now = System.currentTimeMillis();
+        int[] removed = {0};
+        wheel.advance(now, budget, (id, tick) -> {
+            Session s = sessions.get(id);
+            if (s == null) return false; // rotated away or already removed
+            long expiresAt = s.expiresAt;
+            if (expiresAt > now) {
+                // touched since it was scheduled
+                wheel.schedule(id, expiresAt);
+                return false;
             }
-            return false;
+            if (!remove(id, s)) return false;
+            expireStored(id);
+            removed[0]++;
+            return true;
         });
+        expired.add(removed[0]);
+        return removed[0];
+    }
+
+    /**
+     * Evicts the least recently used sessions while the count or byte limit is exceeded.
+     * Sessions are evicted in small batches so a full store does not evict on every request.
+     */
+    private void enforceLimits() {
+        while (overLimit()) {
+            long horizon = ttlMillis / wheel.tickMillis() + 2;
+            int n = wheel.evict(EVICTION_BATCH, horizon, (id, tick) -> {
+                Session s = sessions.get(id);
+                if (s == null) return false;
+                long expiresAt = s.expiresAt;
+                if (wheel.tickOf(expiresAt) > tick) {
+                    // used more recently than this bucket says
+                    wheel.schedule(id, expiresAt);
+                    return false;
+                }
+                return remove(id, s);
+            });
+            evicted.add(n);
+            if (n == 0) return;
+        }
+    }
+
+    private boolean overLimit() {
+        return (maxSessions > 0 && sessions.size() > maxSessions)
+                || (maxBytes > 0 && bytes.sum() > maxBytes);
+    }
+
+    private boolean remove(String id, Session s) {
+        if (!sessions.remove(id, s)) return false;
+        bytes.add(-s.weight());
+        return true;
+    }
+
+    /**
+     * Writes the queued changes and closes the store. Sessions changed since their last
+     * {@link #commit} are not written.
+     *
+     * @throws IOException if the store fails to close
+     */
+    public void close() throws IOException {
+        if (writer != null) writer.close();
+        store.close();
+    }
+
+    /** @return the replicator given to the builder, or null */
+    public SessionReplicator replicator() {
+        return replicator;
+    }
+
+    /** @return the generator of new session ids */
+    SessionIdGenerator idGenerator() {
+        return idGenerator;
+    }
+
+    /** @return how often {@link #expireDue()} should run, in milliseconds */
+    public long tickMillis() {
+        return wheel.tickMillis();
+    }
+
+    /** @return number of live sessions */
+    public int size() {
+        return sessions.size();
+    }
+
+    /** @return approximate heap footprint of all sessions, in bytes */
+    public long bytes() {
+        return bytes.sum();
+    }
+
+    /** @return number of sessions removed by expiry since startup */
+    public long expiredCount() {
+        return expired.sum();
+    }
+
+    /** @return number of sessions evicted to stay within the count or byte limit */
+    public long evictedCount() {
+        return evicted.sum();
     }
 }
@@ -0,0 +1,692 @@
+package org.oldskooler.webserver4j.session;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.IoHandlerFactory;
+import io.netty.channel.MultiThreadIoEventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+import io.netty.handler.codec.TooLongFrameException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replicates sessions between {@code WebServer} instances over TCP, so a node can be
+ * restarted during a rolling deploy without logging its users out.
+ * <p>
+ * Every node listens for its peers and connects to each of them. When a request changes a
+ * session, the change is queued and coalesced per session id; a flush every few
+ * milliseconds sends all queued changes as one frame to every connected peer. A peer that
+ * connects, for example after a restart, first receives a snapshot of all live sessions,
+ * written in batches as the connection drains.
+ * Rotated ids are replicated as deletions. Expiry is not: each node expires its own copy,
+ * which it keeps for a tenth of the TTL longer than the last expiry it received, since the
+ * owning node only sends a session again once its expiry has moved on by that much.
+ * <p>
+ * Reads never leave the node: a received session simply replaces the local copy, so when two
+ * nodes change the same session at once, the last frame wins. Frames are authenticated with
+ * HMAC-SHA256 under a shared secret, as only peers may inject sessions; they are not
+ * encrypted, so replicate over a private network. A node accepting a connection first sends a
+ * random nonce, and takes nothing but a small frame until the peer has answered with one
+ * signed over that nonce. Every frame carries a sequence number, also covered by the
+ * signature, so frames cannot be replayed, neither on another connection nor on the same one.
+ * Frames are limited to about a megabyte; a session that serializes to more than that is not
+ * replicated, and peers drop their copy of it.
+ * <p>
+ * The replicator runs on a single event loop of its own, so a slow peer or a large snapshot
+ * never holds up HTTP requests. Peer host names are resolved on a separate thread, on every
+ * reconnect, so a peer whose address changes is found again.
+ *
+ * <h2>Usage</h2>
+ * <pre>{@code
+ * SessionReplicator replicator = new SessionReplicator.Builder()
+ *         .listen(7001)
+ *         .peer("10.0.0.2", 7001)
+ *         .peer("10.0.0.3", 7001)
+ *         .secret(sharedSecret)
+ *         .build();
+ * new WebServer.Builder()
+ *         .sessions(new SessionManager.Builder().replicator(replicator).build());
+ * }</pre>
+ */
+public final class SessionReplicator {
+    private static final byte VERSION = 2;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final byte[] NO_DATA = new byte[0];
+    private static final int NONCE_LENGTH = 32;
+    private static final int MAC_LENGTH = 32;
+    /** Version and sequence number. */
+    private static final int HEADER_BYTES = 1 + 8;
+    /** Largest frame body: change count and changes. A change that does not fit is not sent. */
+    private static final int MAX_BATCH_BYTES = 1024 * 1024;
+    private static final int MAX_FRAME_BYTES = HEADER_BYTES + MAX_BATCH_BYTES + MAC_LENGTH;
+    /** Frame limit until the handshake is done; room for the nonce or an empty signed frame. */
+    private static final int HANDSHAKE_FRAME_BYTES = 64;
+    private static final long HANDSHAKE_TIMEOUT_MILLIS = 10_000;
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * Builder for a {@link SessionReplicator}.
+     */
+    public static class Builder {
+        private String host;
+        private int port;
+        private final List<InetSocketAddress> peers = new ArrayList<>();
+        private byte[] secret;
+        private long flushMillis = 50;
+        private SessionSerializer serializer = new JavaSessionSerializer();
+
+        /**
+         * @param port port on which peers connect to this node; 0 (default) to only send
+         * @return this builder
+         */
+        public Builder listen(int port) {
+            this.port = port;
+            return this;
+        }
+
+        /**
+         * @param host address to listen on, e.g. the private network interface; default all
+         * @param port port on which peers connect to this node
+         * @return this builder
+         */
+        public Builder listen(String host, int port) {
+            this.host = host;
+            this.port = port;
+            return this;
+        }
+
+        /**
+         * Adds a node to replicate to. Unreachable peers are retried every second.
+         *
+         * @param host peer host
+         * @param port peer's replication port
+         * @return this builder
+         */
+        public Builder peer(String host, int port) {
+            peers.add(InetSocketAddress.createUnresolved(host, port));
+            return this;
+        }
+
+        /**
+         * @param secret key shared by all nodes, at least 32 bytes, authenticating every frame
+         * @return this builder
+         */
+        public Builder secret(byte[] secret) {
+            if (secret.length < 32) throw new IllegalArgumentException("Secret must be at least 32 bytes");
+            this.secret = secret.clone();
+            return this;
+        }
+
+        /**
+         * @param interval time over which changes are batched before they are sent; default
+         *                 50 milliseconds
+         * @param unit     unit of {@code interval}
+         * @return this builder
+         */
+        public Builder flushInterval(long interval, TimeUnit unit) {
+            this.flushMillis = Math.max(1, unit.toMillis(interval));
+            return this;
+        }
+
+        /**
+         * @param serializer converts session attributes to bytes; must match on all nodes.
+         *                   Default Java serialization
+         * @return this builder
+         */
+        public Builder serializer(SessionSerializer serializer) {
+            this.serializer = serializer;
+            return this;
+        }
+
+        public SessionReplicator build() {
+            if (secret == null) throw new IllegalStateException("A shared secret is required");
+            return new SessionReplicator(this);
+        }
+    }
+
+    /** A queued change; only the latest one per session id is kept. */
+    private static final class Change {
+        final byte type;
+        final long expiresAt;
+        final byte[] data;
+
+        Change(byte type, long expiresAt, byte[] data) {
+            this.type = type;
+            this.expiresAt = expiresAt;
+            this.data = data;
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final List<InetSocketAddress> peers;
+    private final byte[] secret;
+    private final long flushMillis;
+    private final SessionSerializer serializer;
+
+    private volatile SessionManager manager;
+    /** Changes not yet sent; guarded by {@code pendingLock}, swapped out on every flush. */
+    private final Object pendingLock = new Object();
+    private Map<String, Change> pending = new LinkedHashMap<>();
+
+    /** Event loop owned by the replicator; created by {@link #start}. */
+    private EventLoopGroup group;
+    /** Loop that runs flushes, snapshots and all outbound channels, which keeps them ordered. */
+    private volatile EventLoop loop;
+    /** Resolves peer host names, which may block. */
+    private ExecutorService resolver;
+    private Bootstrap bootstrap;
+    private Channel server;
+    /** Connected outbound channels; only used on {@link #loop}. */
+    private final Map<Channel, Sender> outbound = new HashMap<>();
+    private volatile int connected;
+    private final Set<Channel> inbound = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    private SessionReplicator(Builder b) {
+        this.host = b.host;
+        this.port = b.port;
+        this.peers = Collections.unmodifiableList(new ArrayList<>(b.peers));
+        this.secret = b.secret;
+        this.flushMillis = b.flushMillis;
+        this.serializer = b.serializer;
+    }
+
+    /**
+     * Binds the replicator to its session manager; called by {@link SessionManager.Builder#build()}.
+     *
+     * @return a store that writes through to {@code store} and queues every change for the peers
+     */
+    SessionStore attach(SessionManager manager, SessionStore store) {
+        if (this.manager != null) throw new IllegalStateException("Replicator is already in use");
+        this.manager = manager;
+        return new ReplicatingStore(store);
+    }
+
+    /**
+     * Starts listening and connecting to the peers on a single event loop of the replicator's
+     * own. Called by the web server on startup.
+     *
+     * @param ioHandler     I/O handler factory of the server's transport
+     * @param serverChannel server channel class matching {@code ioHandler}
+     * @param channel       client channel class matching {@code ioHandler}
+     */
+    public void start(IoHandlerFactory ioHandler, Class<? extends ServerChannel> serverChannel,
+                      Class<? extends Channel> channel) {
+        if (manager == null) throw new IllegalStateException("Replicator is not attached to a SessionManager");
+        group = new MultiThreadIoEventLoopGroup(1, ioHandler);
+        resolver = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "webserver4j-replicator-resolve");
+            t.setDaemon(true);
+            return t;
+        });
+        EventLoop l = group.next();
+        if (port > 0) {
+            ServerBootstrap sb = new ServerBootstrap()
+                    .group(group, group)
+                    .channel(serverChannel)
+                    .childHandler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel ch) {
+                            inbound.add(ch);
+                            ch.closeFuture().addListener(f -> inbound.remove(ch));
+                            FrameDecoder decoder = new FrameDecoder(HANDSHAKE_FRAME_BYTES);
+                            ch.pipeline().addLast(new LengthFieldPrepender(4));
+                            ch.pipeline().addLast(decoder);
+                            ch.pipeline().addLast(new Receiver(decoder));
+                        }
+                    });
+            server = (host != null ? sb.bind(host, port) : sb.bind(port)).syncUninterruptibly().channel();
+        }
+        bootstrap = new Bootstrap()
+                .group(l)
+                .channel(channel)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(new LengthFieldPrepender(4));
+                        ch.pipeline().addLast(new FrameDecoder(HANDSHAKE_FRAME_BYTES));
+                        ch.pipeline().addLast(new Sender());
+                    }
+                });
+        loop = l;
+        for (InetSocketAddress peer : peers) {
+            connect(peer);
+        }
+        l.scheduleWithFixedDelay(this::flush, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Resolves the peer's address on the resolver thread, then connects to it. */
+    private void connect(InetSocketAddress peer) {
+        if (closed) return;
+        try {
+            resolver.execute(() -> {
+                InetSocketAddress address = new InetSocketAddress(peer.getHostString(), peer.getPort());
+                if (address.isUnresolved()) {
+                    reconnect(peer);
+                    return;
+                }
+                bootstrap.connect(address).addListener((ChannelFutureListener) f -> {
+                    if (f.isSuccess()) {
+                        f.channel().closeFuture().addListener(c -> reconnect(peer));
+                    } else {
+                        reconnect(peer);
+                    }
+                });
+            });
+        } catch (RejectedExecutionException ignored) {
+            // shutting down
+        }
+    }
+
+    private void reconnect(InetSocketAddress peer) {
+        if (closed) return;
+        try {
+            loop.schedule(() -> connect(peer), RECONNECT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ignored) {
+            // shutting down
+        }
+    }
+
+    /** @return number of peers this node is currently sending to */
+    public int connectedPeers() {
+        return connected;
+    }
+
+    private void enqueue(String id, Change change) {
+        synchronized (pendingLock) {
+            pending.put(id, change);
+        }
+    }
+
+    /** Sends the queued changes to all connected peers; runs on {@link #loop}. */
+    private void flush() {
+        Map<String, Change> batch;
+        synchronized (pendingLock) {
+            if (pending.isEmpty()) return;
+            batch = pending;
+            pending = new LinkedHashMap<>();
+        }
+        if (outbound.isEmpty()) return;
+        for (Sender sender : outbound.values()) {
+            sender.superseded(batch.keySet());
+        }
+        FrameWriter writer = new FrameWriter(new ArrayList<>(outbound.values()));
+        for (Map.Entry<String, Change> e : batch.entrySet()) {
+            Change c = e.getValue();
+            writer.add(c.type, e.getKey(), c.expiresAt, c.data);
+        }
+        writer.finish();
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 not available", e);
+        }
+    }
+
+    /**
+     * Splits the stream at 4-byte length prefixes. A frame above the current limit is refused
+     * from its prefix, before any of it is buffered.
+     */
+    private static final class FrameDecoder extends ByteToMessageDecoder {
+        private int maxLength;
+
+        FrameDecoder(int maxLength) {
+            this.maxLength = maxLength;
+        }
+
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+            if (in.readableBytes() < 4) return;
+            int length = in.getInt(in.readerIndex());
+            if (length < 0 || length > maxLength) {
+                throw new TooLongFrameException("Replication frame of " + length + " bytes from "
+                        + ctx.channel().remoteAddress());
+            }
+            if (in.readableBytes() < 4 + length) return;
+            in.skipBytes(4);
+            out.add(in.readRetainedSlice(length));
+        }
+    }
+
+    /**
+     * Encodes changes into frame bodies of at most {@link #MAX_BATCH_BYTES} and sends each
+     * one to all targets, which sign it for their own connection.
+     * <p>
+     * Frame: {@code version:byte, seq:long, count:int, changes, hmac:32}, the HMAC taken over
+     * the receiver's nonce and the rest of the frame; change: {@code type:byte,
+     * idLength:short, id:utf8, expiresAt:long, dataLength:int, data}.
+     */
+    private static final class FrameWriter {
+        private final List<Sender> targets;
+        private ByteBuf body;
+        private int count;
+
+        FrameWriter(List<Sender> targets) {
+            this.targets = targets;
+        }
+
+        void add(byte type, String id, long expiresAt, byte[] data) {
+            byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+            if (4 + 15 + idBytes.length + data.length > MAX_BATCH_BYTES) {
+                // peers would refuse the frame; have them drop their copy rather than keep a stale one
+                new IOException("Session of " + data.length + " bytes is too large to replicate").printStackTrace();
+                type = DELETE;
+                data = NO_DATA;
+            }
+            int size = 15 + idBytes.length + data.length;
+            if (body != null && body.readableBytes() + size > MAX_BATCH_BYTES) send();
+            if (body == null) {
+                body = ByteBufAllocator.DEFAULT.buffer();
+                body.writeInt(0);
+                count = 0;
+            }
+            body.writeByte(type);
+            body.writeShort(idBytes.length);
+            body.writeBytes(idBytes);
+            body.writeLong(expiresAt);
+            body.writeInt(data.length);
+            body.writeBytes(data);
+            count++;
+        }
+
+        private void send() {
+            body.setInt(0, count);
+            for (Sender sender : targets) {
+                sender.write(body);
+            }
+            body.release();
+            body = null;
+        }
+
+        void finish() {
+            if (body != null) send();
+            for (Sender sender : targets) {
+                sender.channel.flush();
+            }
+        }
+    }
+
+    /**
+     * Outbound connection to a peer. Once the peer's nonce has arrived, the peer is sent an
+     * empty frame to complete the handshake, then all live sessions, written while the
+     * channel is writable and resumed whenever it drains, so the snapshot never piles up in
+     * memory. Flushes go out meanwhile; a session a flush sent is skipped by the snapshot,
+     * and so is one with a queued change, as the flush carries its newer state. All of it
+     * runs on {@link #loop}.
+     */
+    private final class Sender extends SimpleChannelInboundHandler<ByteBuf> {
+        private final Mac mac = newMac();
+        private final byte[] nonce = new byte[NONCE_LENGTH];
+        /** Set once the peer's nonce has arrived. */
+        private Channel channel;
+        private long seq;
+        /** Sessions the snapshot has yet to send; null once it is done. */
+        private Iterator<Map.Entry<String, Session>> snapshot;
+        /** Sessions changed since the snapshot began. */
+        private final Set<String> skip = new HashSet<>();
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            // a peer that never sends its nonce is retried like an unreachable one
+            ctx.executor().schedule(() -> {
+                if (channel == null) ctx.close();
+            }, HANDSHAKE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            ctx.fireChannelActive();
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf challenge) throws IOException {
+            if (channel != null || challenge.readableBytes() != 1 + NONCE_LENGTH || challenge.readByte() != VERSION) {
+                throw new IOException("Unexpected replication handshake from " + ctx.channel().remoteAddress());
+            }
+            challenge.readBytes(nonce);
+            channel = ctx.channel();
+            ByteBuf empty = ctx.alloc().buffer(4).writeInt(0);
+            write(empty);
+            empty.release();
+
+            outbound.put(channel, this);
+            connected = outbound.size();
+            List<Map.Entry<String, Session>> sessions = new ArrayList<>();
+            manager.forEachSession((id, s) -> sessions.add(new AbstractMap.SimpleImmutableEntry<>(id, s)));
+            synchronized (pendingLock) {
+                skip.addAll(pending.keySet());
+            }
+            snapshot = sessions.iterator();
+            sendSnapshot();
+        }
+
+        /** Writes a frame with {@code body}, numbered and signed for this connection. */
+        void write(ByteBuf body) {
+            ByteBuf header = channel.alloc().buffer(HEADER_BYTES);
+            header.writeByte(VERSION);
+            header.writeLong(seq++);
+            mac.update(nonce);
+            mac.update(header.nioBuffer());
+            mac.update(body.nioBuffer());
+            ByteBuf signature = Unpooled.wrappedBuffer(mac.doFinal());
+            channel.write(Unpooled.wrappedBuffer(header, body.retainedDuplicate(), signature));
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            if (snapshot != null && ctx.channel().isWritable()) sendSnapshot();
+            ctx.fireChannelWritabilityChanged();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            outbound.remove(ctx.channel());
+            connected = outbound.size();
+            snapshot = null;
+            skip.clear();
+        }
+
+        void superseded(Set<String> ids) {
+            if (snapshot != null) skip.addAll(ids);
+        }
+
+        /** Writes the next part of the snapshot, until the channel is no longer writable. */
+        private void sendSnapshot() {
+            FrameWriter writer = new FrameWriter(Collections.singletonList(this));
+            long now = System.currentTimeMillis();
+            while (snapshot.hasNext() && channel.isWritable()) {
+                Map.Entry<String, Session> e = snapshot.next();
+                long expiresAt = e.getValue().expiresAt;
+                if (skip.contains(e.getKey()) || expiresAt <= now) continue;
+                try {
+                    writer.add(PUT, e.getKey(), expiresAt, serializer.serialize(e.getValue().data()));
+                } catch (IOException | RuntimeException ex) {
+                    ex.printStackTrace();
+                }
+            }
+            writer.finish();
+            if (!snapshot.hasNext()) {
+                snapshot = null;
+                skip.clear();
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+
+    /**
+     * Inbound connection from a peer; sends it a nonce, then applies its frames to the local
+     * sessions. Frames are only taken up to {@link #MAX_FRAME_BYTES} once the first one came
+     * correctly signed.
+     */
+    private final class Receiver extends SimpleChannelInboundHandler<ByteBuf> {
+        private final Mac mac = newMac();
+        private final FrameDecoder decoder;
+        private final byte[] nonce = new byte[NONCE_LENGTH];
+        private long seq;
+
+        Receiver(FrameDecoder decoder) {
+            this.decoder = decoder;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            RANDOM.nextBytes(nonce);
+            ctx.writeAndFlush(ctx.alloc().buffer(1 + NONCE_LENGTH).writeByte(VERSION).writeBytes(nonce));
+            ctx.executor().schedule(() -> {
+                if (seq == 0) ctx.close();
+            }, HANDSHAKE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            ctx.fireChannelActive();
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf frame) throws IOException {
+            int start = frame.readerIndex();
+            int end = frame.writerIndex() - MAC_LENGTH;
+            if (end - start < HEADER_BYTES + 4 || frame.getByte(start) != VERSION) {
+                throw new IOException("Malformed replication frame from " + ctx.channel().remoteAddress());
+            }
+            mac.update(nonce);
+            mac.update(frame.nioBuffer(start, end - start));
+            byte[] expected = mac.doFinal();
+            byte[] actual = new byte[MAC_LENGTH];
+            frame.getBytes(end, actual);
+            if (!MessageDigest.isEqual(expected, actual)) {
+                throw new IOException("Replication frame with a bad signature from " + ctx.channel().remoteAddress());
+            }
+            if (frame.getLong(start + 1) != seq) {
+                throw new IOException("Replication frame out of sequence from " + ctx.channel().remoteAddress());
+            }
+            if (seq++ == 0) decoder.maxLength = MAX_FRAME_BYTES;
+
+            frame.skipBytes(HEADER_BYTES);
+            int count = frame.readInt();
+            for (int i = 0; i < count; i++) {
+                byte type = frame.readByte();
+                byte[] id = new byte[frame.readUnsignedShort()];
+                frame.readBytes(id);
+                long expiresAt = frame.readLong();
+                byte[] data = new byte[frame.readInt()];
+                frame.readBytes(data);
+                String sessionId = new String(id, StandardCharsets.UTF_8);
+                if (type == PUT) {
+                    manager.putReplica(sessionId, expiresAt, serializer.deserialize(data));
+                } else if (type == DELETE) {
+                    manager.removeReplica(sessionId);
+                }
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            cause.printStackTrace();
+            ctx.close();
+        }
+    }
+
+    /** Writes through to the manager's store and queues each change for the peers. */
+    private final class ReplicatingStore implements SessionStore {
+        private final SessionStore delegate;
+
+        ReplicatingStore(SessionStore delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public StoredSession load(String id) throws IOException {
+            return delegate.load(id);
+        }
+
+        @Override
+        public void save(String id, long expiresAt, Map<String, Object> data) throws IOException {
+            delegate.save(id, expiresAt, data);
+            // without a connected peer there is no one to tell; a peer that connects gets a snapshot
+            if (connected > 0) enqueue(id, new Change(PUT, expiresAt, serializer.serialize(data)));
+        }
+
+        @Override
+        public void delete(String id) throws IOException {
+            delegate.delete(id);
+            if (connected > 0) enqueue(id, new Change(DELETE, 0, NO_DATA));
+        }
+
+        @Override
+        public void expire(String id) throws IOException {
+            // peers expire their copies on their own; the owner may still be extending this one
+            delegate.expire(id);
+        }
+
+        @Override
+        public void close() throws IOException {
+            SessionReplicator.this.close();
+            delegate.close();
+        }
+    }
+
+    /** Sends the changes still queued, then disconnects from all peers and stops the loop. */
+    private void close() {
+        if (closed) return;
+        closed = true;
+        EventLoop l = loop;
+        if (l == null) return;
+        resolver.shutdownNow();
+        try {
+            l.execute(() -> {
+                flush();
+                for (Channel ch : new ArrayList<>(outbound.keySet())) {
+                    ch.close();
+                }
+            });
+        } catch (RejectedExecutionException ignored) {
+            // the loop is already gone, and its channels with it
+        }
+        if (server != null) server.close();
+        for (Channel ch : inbound) {
+            ch.close();
+        }
+        group.shutdownGracefully();
+    }
+}
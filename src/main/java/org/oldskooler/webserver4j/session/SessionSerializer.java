@@ -0,0 +1,13 @@
+package org.oldskooler.webserver4j.session;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Converts session attributes to bytes for a persistent {@link SessionStore}.
+ */
+public interface SessionSerializer {
+    byte[] serialize(Map<String, Object> data) throws IOException;
+
+    Map<String, Object> deserialize(byte[] bytes) throws IOException;
+}
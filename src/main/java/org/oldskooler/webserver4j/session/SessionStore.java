@@ -0,0 +1,51 @@
+package org.oldskooler.webserver4j.session;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Where sessions are kept beyond the in-heap map of the {@link SessionManager}.
+ * <p>
+ * The manager's map acts as the cache for hot reads: the store is only asked for a session
+ * whose id is not in memory, e.g. after a restart or after it was evicted, and is written
+ * when a session changed during a request. Implementations must be thread-safe.
+ */
+public interface SessionStore extends Closeable {
+    /**
+     * @param id session id sent by the client
+     * @return the stored session, or null if unknown or expired
+     * @throws IOException if the store cannot be read
+     */
+    StoredSession load(String id) throws IOException;
+
+    /**
+     * Writes a session, replacing any earlier version.
+     *
+     * @param id        session id
+     * @param expiresAt expiry time in epoch milliseconds
+     * @param data      attributes; the store must not keep a reference to the map
+     * @throws IOException if the session cannot be serialized or written
+     */
+    void save(String id, long expiresAt, Map<String, Object> data) throws IOException;
+
+    /**
+     * Removes a session that was given a new id or deleted.
+     *
+     * @param id session id
+     * @throws IOException if the store cannot be written
+     */
+    void delete(String id) throws IOException;
+
+    /**
+     * Removes a session that expired. Unlike {@link #delete}, this is a local decision: every
+     * node expires its own copy, so a replicating store does not pass it on. By default the
+     * same as {@link #delete}.
+     *
+     * @param id session id
+     * @throws IOException if the store cannot be written
+     */
+    default void expire(String id) throws IOException {
+        delete(id);
+    }
+}
@@ -0,0 +1,137 @@
+package org.oldskooler.webserver4j.session;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Applies session writes to a {@link SessionStore} on a thread of its own, so requests and
+ * expiry ticks only queue them and never wait for serialization, disk I/O or a compaction
+ * of the store.
+ * <p>
+ * Changes are coalesced per session id: a session changed again before its write went out
+ * is written once, with the newer state. {@link #queued} lets reads see changes that have
+ * not reached the store yet.
+ */
+final class StoreWriter {
+    /** A queued change; a removal if {@code session} is null. */
+    static final class Op {
+        final Session session;
+        final long expiresAt;
+        /** For removals: expired, rather than deleted or rotated away. */
+        final boolean expiry;
+
+        Op(Session session, long expiresAt, boolean expiry) {
+            this.session = session;
+            this.expiresAt = expiresAt;
+            this.expiry = expiry;
+        }
+    }
+
+    private final SessionStore store;
+    private final Thread thread;
+    /** Changes not yet taken by the writer thread; guarded by {@code this}. */
+    private Map<String, Op> pending = new LinkedHashMap<>();
+    /** Changes the writer thread is applying right now; guarded by {@code this}. */
+    private Map<String, Op> writing;
+    private boolean closed;
+
+    StoreWriter(SessionStore store) {
+        this.store = store;
+        this.thread = new Thread(this::run, "webserver4j-session-store");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /** Queues a write of {@code s} under its current id. */
+    void save(Session s) {
+        enqueue(s.getId(), new Op(s, s.expiresAt, false));
+    }
+
+    /** Queues the removal of a session that was rotated away or deleted. */
+    void delete(String id) {
+        enqueue(id, new Op(null, 0, false));
+    }
+
+    /** Queues the removal of a session that expired. */
+    void expire(String id) {
+        enqueue(id, new Op(null, 0, true));
+    }
+
+    private synchronized void enqueue(String id, Op op) {
+        if (closed) return;
+        pending.put(id, op);
+        notifyAll();
+    }
+
+    /** @return the latest change to {@code id} that may not have reached the store, or null */
+    synchronized Op queued(String id) {
+        Op op = pending.get(id);
+        if (op == null && writing != null) op = writing.get(id);
+        return op;
+    }
+
+    private void run() {
+        while (true) {
+            Map<String, Op> batch;
+            synchronized (this) {
+                while (pending.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // only close() ends the writer, so queued changes are never dropped
+                    }
+                }
+                if (pending.isEmpty()) return;
+                batch = pending;
+                pending = new LinkedHashMap<>();
+                writing = batch;
+            }
+            for (Map.Entry<String, Op> e : batch.entrySet()) {
+                apply(e.getKey(), e.getValue());
+            }
+            synchronized (this) {
+                writing = null;
+            }
+        }
+    }
+
+    private void apply(String id, Op op) {
+        try {
+            if (op.session == null) {
+                if (op.expiry) {
+                    store.expire(id);
+                } else {
+                    store.delete(id);
+                }
+            } else {
+                store.save(id, op.expiresAt, op.session.data());
+            }
+        } catch (IOException | RuntimeException e) {
+            // written again after the session's next request
+            if (op.session != null) op.session.markDirty();
+            e.printStackTrace();
+        }
+    }
+
+    /** Writes what is still queued, then stops the thread. */
+    void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            notifyAll();
+        }
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+}
@@ -0,0 +1,18 @@
+package org.oldskooler.webserver4j.session;
+
+import java.util.Map;
+
+/**
+ * A session as read from a {@link SessionStore}.
+ */
+public final class StoredSession {
+    /** Expiry time in epoch milliseconds at the last write. */
+    public final long expiresAt;
+    /** Deserialized attributes. */
+    public final Map<String, Object> data;
+
+    public StoredSession(long expiresAt, Map<String, Object> data) {
+        this.expiresAt = expiresAt;
+        this.data = data;
+    }
+}
@@ -0,0 +1,53 @@
+package org.oldskooler.webserver4j.staticfiles;
+
+/**
+ * Minimal parser for the Accept-Encoding request header.
+ */
+public final class AcceptEncoding {
+    private AcceptEncoding() {
+    }
+
+    /**
+     * Returns the quality the client assigns to a content coding, honoring {@code q} values
+     * and the {@code *} wildcard. A coding that is not listed, or listed with {@code q=0},
+     * is not acceptable.
+     *
+     * @param header Accept-Encoding header value, may be null
+     * @param coding coding to look up, e.g. "gzip" or "br"
+     * @return quality between 0 (not acceptable) and 1
+     */
+    public static double quality(String header, String coding) {
+        if (header == null || header.isEmpty()) return 0;
+        double wildcard = 0;
+        int len = header.length();
+        int start = 0;
+        while (start < len) {
+            int end = header.indexOf(',', start);
+            if (end < 0) end = len;
+            int semi = header.indexOf(';', start);
+            int nameEnd = semi >= 0 && semi < end ? semi : end;
+
+            String name = header.substring(start, nameEnd).trim();
+            double q = nameEnd < end ? parseQuality(header.substring(nameEnd + 1, end)) : 1;
+            if (name.equalsIgnoreCase(coding)) return q;
+            if (name.equals("*")) wildcard = q;
+            start = end + 1;
+        }
+        return wildcard;
+    }
+
+    private static double parseQuality(String params) {
+        for (String p : params.split(";")) {
+            p = p.trim();
+            if (p.length() > 2 && (p.charAt(0) == 'q' || p.charAt(0) == 'Q') && p.charAt(1) == '=') {
+                try {
+                    double q = Double.parseDouble(p.substring(2).trim());
+                    return q < 0 ? 0 : Math.min(q, 1);
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+}
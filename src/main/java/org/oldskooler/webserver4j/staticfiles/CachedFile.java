@@ -0,0 +1,221 @@
+package org.oldskooler.webserver4j.staticfiles;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import org.oldskooler.webserver4j.http.Preconditions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A static file held in memory by {@link StaticFileCache}, together with its compressed
+ * variants and the response headers of each, so a hit needs no filesystem access.
+ * <p>
+ * Reference counted: the cache owns one reference and every reader that obtained the entry
+ * from the cache owns another, so eviction never frees bytes that are still being written.
+ */
+public final class CachedFile {
+    /** One encoding of the file. */
+    public static final class Variant {
+        /** Content-Encoding, or null for the original bytes. */
+        public final String encoding;
+        /** Entity tag of this variant; weak for the gzip encoding made here, as for files compressed on the fly. */
+        public final String etag;
+        /** Content-Type, Content-Length, Vary, Content-Encoding, ETag, Last-Modified and Accept-Ranges. */
+        public final HttpHeaders headers;
+        private final ByteBuf content;
+
+        Variant(String encoding, String etag, HttpHeaders headers, ByteBuf content) {
+            this.encoding = encoding;
+            this.etag = etag;
+            this.headers = headers;
+            this.content = content;
+        }
+
+        /** @return a retained duplicate of the bytes, to be released by the writer */
+        public ByteBuf content() {
+            return content.retainedDuplicate();
+        }
+    }
+
+    final Path path;
+    final long weight;
+    private final long lastModified;
+    private final Variant[] variants;
+    private final AtomicInteger refCnt = new AtomicInteger(1);
+    /** Hit since the eviction clock of {@link StaticFileCache} last passed it. */
+    volatile boolean used;
+
+    private CachedFile(Path path, long lastModified, Variant[] variants) {
+        this.path = path;
+        this.lastModified = lastModified;
+        this.variants = variants;
+        long w = 0;
+        for (Variant v : variants) w += v.content.readableBytes();
+        this.weight = w;
+    }
+
+    /**
+     * Reads a file and its compressed variants into direct buffers. Sidecars found by
+     * {@link StaticFileService#findPrecompressed} are used as stored; a compressible file
+     * without a {@code .gz} sidecar is gzipped once here instead of on every request.
+     */
+    static CachedFile read(File file, boolean sidecars, ByteBufAllocator alloc) throws IOException {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String contentType = MimeTypes.get(dot >= 0 ? name.substring(dot + 1) : "");
+        boolean compressible = MimeTypes.isCompressible(contentType);
+
+        long modified = file.lastModified();
+        ByteBuf original = readFully(file, alloc);
+        long length = original.readableBytes();
+        List<Variant> list = new ArrayList<>(3);
+        try {
+            if (sidecars) {
+                File br = new File(file.getPath() + ".br");
+                if (isFresh(br, file)) list.add(variant("br", false, contentType, length, modified, readFully(br, alloc)));
+            }
+            File gz = new File(file.getPath() + ".gz");
+            if (sidecars && isFresh(gz, file)) {
+                list.add(variant("gzip", false, contentType, length, modified, readFully(gz, alloc)));
+            } else if (compressible) {
+                ByteBuf gzipped = gzip(original, alloc);
+                if (gzipped.readableBytes() < length) {
+                    list.add(variant("gzip", true, contentType, length, modified, gzipped));
+                } else {
+                    gzipped.release();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Variant v : list) v.content.release();
+            original.release();
+            throw e;
+        }
+        list.add(variant(null, false, contentType, length, modified, original));
+
+        boolean vary = compressible || list.size() > 1;
+        for (Variant v : list) {
+            if (vary) v.headers.set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+        }
+        return new CachedFile(file.toPath().toAbsolutePath().normalize(), modified, list.toArray(new Variant[0]));
+    }
+
+    private static boolean isFresh(File sidecar, File original) {
+        return sidecar.isFile() && sidecar.lastModified() >= original.lastModified();
+    }
+
+    private static Variant variant(String encoding, boolean weak, String contentType, long length, long modified,
+                                   ByteBuf content) {
+        String etag = Preconditions.fileEtag(length, modified, encoding);
+        // Gzipped here rather than stored, so the tag is weak like that of on-the-fly compression
+        if (weak) etag = "W/" + etag;
+        HttpHeaders headers = new DefaultHttpHeaders();
+        headers.set(HttpHeaderNames.CONTENT_TYPE, contentType);
+        headers.setInt(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
+        if (encoding != null) headers.set(HttpHeaderNames.CONTENT_ENCODING, encoding);
+        headers.set(HttpHeaderNames.ETAG, etag);
+        headers.set(HttpHeaderNames.LAST_MODIFIED, Preconditions.httpDate(modified));
+        headers.set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+        return new Variant(encoding, etag, headers, content);
+    }
+
+    private static ByteBuf readFully(File file, ByteBufAllocator alloc) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("File too large to cache: " + file);
+            ByteBuf buf = alloc.directBuffer((int) size);
+            try {
+                long pos = 0;
+                while (pos < size) {
+                    int n = buf.writeBytes(ch, pos, (int) (size - pos));
+                    if (n < 0) break;
+                    pos += n;
+                }
+                return buf;
+            } catch (IOException | RuntimeException e) {
+                buf.release();
+                throw e;
+            }
+        }
+    }
+
+    private static ByteBuf gzip(ByteBuf original, ByteBufAllocator alloc) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(original.readableBytes() / 2 + 64);
+        try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+            byte[] chunk = new byte[8192];
+            ByteBuf src = original.duplicate();
+            while (src.isReadable()) {
+                int n = Math.min(chunk.length, src.readableBytes());
+                src.readBytes(chunk, 0, n);
+                gz.write(chunk, 0, n);
+            }
+        }
+        byte[] bytes = out.toByteArray();
+        ByteBuf buf = alloc.directBuffer(bytes.length);
+        buf.writeBytes(bytes);
+        return buf;
+    }
+
+    /**
+     * Picks the variant to send: the encoded one with the highest quality the client accepts,
+     * preferring br over gzip on ties, otherwise the original bytes.
+     *
+     * @param acceptEncoding Accept-Encoding request header, may be null
+     * @return chosen variant
+     */
+    public Variant select(String acceptEncoding) {
+        Variant best = variants[variants.length - 1];
+        double bestQuality = 0;
+        for (int i = 0; i < variants.length - 1; i++) {
+            double q = AcceptEncoding.quality(acceptEncoding, variants[i].encoding);
+            if (q > bestQuality) {
+                best = variants[i];
+                bestQuality = q;
+            }
+        }
+        return best;
+    }
+
+    /** @return modification time of the file when it was loaded, in epoch milliseconds */
+    public long lastModified() {
+        return lastModified;
+    }
+
+    CachedFile retain() {
+        refCnt.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Takes a reference unless the bytes were already freed, which a lookup racing with an
+     * eviction can observe.
+     *
+     * @return true if a reference was taken
+     */
+    boolean tryRetain() {
+        for (;;) {
+            int n = refCnt.get();
+            if (n == 0) return false;
+            if (refCnt.compareAndSet(n, n + 1)) return true;
+        }
+    }
+
+    /** Drops a reference obtained from the cache; frees the bytes once nobody holds one. */
+    public void release() {
+        if (refCnt.decrementAndGet() == 0) {
+            for (Variant v : variants) v.content.release();
+        }
+    }
+}
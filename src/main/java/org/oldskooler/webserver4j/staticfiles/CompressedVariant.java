@@ -0,0 +1,18 @@
+package org.oldskooler.webserver4j.staticfiles;
+
+import java.io.File;
+
+/**
+ * A precompressed copy of a static file, e.g. {@code app.js.br} next to {@code app.js}.
+ */
+public final class CompressedVariant {
+    /** The compressed file on disk. */
+    public final File file;
+    /** Content-Encoding of {@link #file}, e.g. "br" or "gzip". */
+    public final String encoding;
+
+    public CompressedVariant(File file, String encoding) {
+        this.file = file;
+        this.encoding = encoding;
+    }
+}
@@ -22,8 +22,35 @@ public final class MimeTypes {
         map.put("txt", "text/plain; charset=UTF-8");
         map.put("ico", "image/x-icon");
         map.put("pdf", "application/pdf");
+        map.put("xml", "application/xml");
+        map.put("wasm", "application/wasm");
+        map.put("webp", "image/webp");
+        map.put("woff", "font/woff");
+        map.put("woff2", "font/woff2");
+        map.put("mp3", "audio/mpeg");
+        map.put("mp4", "video/mp4");
+        map.put("webm", "video/webm");
     }
     public static String get(String ext) {
         return map.getOrDefault(ext.toLowerCase(), "application/octet-stream");
     }
+
+    /**
+     * Whether content of this type is worth compressing. Images, audio, video, fonts and
+     * archives are already compressed, so compressing them again only costs CPU.
+     *
+     * @param contentType a Content-Type value, parameters allowed; null is not compressible
+     * @return true for text and text-like types such as JSON, JavaScript, XML and SVG
+     */
+    public static boolean isCompressible(String contentType) {
+        if (contentType == null) return false;
+        String ct = contentType.toLowerCase();
+        return ct.startsWith("text/")
+                || ct.startsWith("application/javascript")
+                || ct.startsWith("application/json")
+                || ct.startsWith("application/xml")
+                || ct.startsWith("application/wasm")
+                || ct.startsWith("image/svg+xml")
+                || ct.startsWith("image/x-icon");
+    }
 }
@@ -0,0 +1,51 @@
+package org.oldskooler.webserver4j.staticfiles;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Sorted index from filesystem paths to the cache keys stored for them, so a change finds
+ * the entries at or below the changed path without scanning the whole cache. Not
+ * thread-safe; the caches use it under their writer lock.
+ *
+ * @param <K> cache key
+ */
+final class PathIndex<K> {
+    private final TreeMap<String, Set<K>> byPath = new TreeMap<>();
+
+    void add(Path path, K key) {
+        byPath.computeIfAbsent(path.toString(), p -> new HashSet<>(2)).add(key);
+    }
+
+    void remove(Path path, K key) {
+        String p = path.toString();
+        Set<K> keys = byPath.get(p);
+        if (keys != null && keys.remove(key) && keys.isEmpty()) byPath.remove(p);
+    }
+
+    /** @return keys stored for exactly {@code path} */
+    List<K> at(Path path) {
+        Set<K> keys = byPath.get(path.toString());
+        return keys == null ? new ArrayList<>() : new ArrayList<>(keys);
+    }
+
+    /** @return keys stored for {@code path} or any path below it */
+    List<K> under(Path path) {
+        List<K> out = at(path);
+        String p = path.toString();
+        String separator = path.getFileSystem().getSeparator();
+        String prefix = p.endsWith(separator) ? p : p + separator;
+        for (Set<K> keys : byPath.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values()) {
+            out.addAll(keys);
+        }
+        return out;
+    }
+
+    void clear() {
+        byPath.clear();
+    }
+}
@@ -0,0 +1,139 @@
+package org.oldskooler.webserver4j.staticfiles;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded cache of path lookups under the web root, remembering both files that exist and
+ * paths that do not.
+ * <p>
+ * Requests that match no route fall through to the static files, so scanner noise and typos
+ * would otherwise cost a {@code stat} each before the 404. Entries are dropped by the
+ * {@link WebRootWatcher} when their path changes, and expire after a TTL as a backstop for
+ * filesystems whose change notifications are unreliable.
+ * <p>
+ * Lookups take no lock; they only flag the entry as used. Beyond {@code maxEntries}, entries
+ * are evicted in insertion order, except that one flagged since the last pass gets another
+ * round (the CLOCK approximation of LRU). Stores, evictions and invalidations are serialized
+ * among themselves, and an invalidation finds the affected entries through a sorted index
+ * instead of scanning them all.
+ */
+public final class PathResolutionCache {
+    /** Result of a lookup; {@link #file} is null for a path that is not a regular file. */
+    public static final class Lookup {
+        public final File file;
+        final Path path;
+        final long expiresAt;
+        /** Hit since the eviction clock last passed it. */
+        volatile boolean used;
+
+        Lookup(Path path, File file, long expiresAt) {
+            this.path = path;
+            this.file = file;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final ConcurrentHashMap<Path, Lookup> entries = new ConcurrentHashMap<>();
+    /** Guards {@link #clock}, {@link #index} and changes to {@link #entries} and {@link #generation}. */
+    private final Object lock = new Object();
+    /** Entries in insertion order; ones replaced or dropped since are skipped when reached. */
+    private final ArrayDeque<Lookup> clock = new ArrayDeque<>();
+    private final PathIndex<Path> index = new PathIndex<>();
+    private volatile long generation;
+
+    /**
+     * @param maxEntries maximum number of remembered paths
+     * @param ttlMillis  how long an entry stays valid; 0 to rely on the watcher alone
+     * @param watcher    watcher of the web root, or null to rely on the TTL alone
+     */
+    public PathResolutionCache(int maxEntries, long ttlMillis, WebRootWatcher watcher) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        if (watcher != null) watcher.addListener(this::invalidate);
+    }
+
+    /**
+     * @param resolved absolute, normalized path
+     * @return the remembered lookup, or null if unknown or expired
+     */
+    public Lookup get(Path resolved) {
+        Lookup e = entries.get(resolved);
+        // an expired entry stays until the next put for its path replaces it
+        if (e == null || (ttlMillis > 0 && System.currentTimeMillis() >= e.expiresAt)) return null;
+        if (!e.used) e.used = true;
+        return e;
+    }
+
+    /**
+     * @return a token to pass to {@link #put}; lookups that raced with an invalidation are
+     * not stored
+     */
+    public long generation() {
+        return generation;
+    }
+
+    /**
+     * Remembers the result of a lookup made after {@link #generation()} returned {@code generation}.
+     *
+     * @param resolved   absolute, normalized path
+     * @param file       the file, or null if the path is not a regular file
+     * @param generation value of {@link #generation()} taken before the lookup
+     */
+    public void put(Path resolved, File file, long generation) {
+        long expiresAt = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : Long.MAX_VALUE;
+        Lookup e = new Lookup(resolved, file, expiresAt);
+        synchronized (lock) {
+            if (generation != this.generation) return;
+            if (entries.put(resolved, e) == null) index.add(resolved, resolved);
+            clock.add(e);
+            evict();
+        }
+    }
+
+    /** Advances the clock until at most {@code maxEntries} remain. Holds {@link #lock}. */
+    private void evict() {
+        while (clock.size() > maxEntries) {
+            Lookup head = clock.poll();
+            if (entries.get(head.path) != head) continue;
+            if (head.used) {
+                head.used = false;
+                clock.add(head);
+            } else {
+                entries.remove(head.path);
+                index.remove(head.path, head.path);
+            }
+        }
+    }
+
+    /** Drops every entry for {@code changed} or a path below it. */
+    public void invalidate(Path changed) {
+        Path p = changed.toAbsolutePath().normalize();
+        synchronized (lock) {
+            generation++;
+            for (Path key : index.under(p)) {
+                entries.remove(key);
+                index.remove(key, key);
+            }
+        }
+    }
+
+    /** Drops all entries. */
+    public void clear() {
+        synchronized (lock) {
+            generation++;
+            entries.clear();
+            clock.clear();
+            index.clear();
+        }
+    }
+
+    /** @return number of remembered paths */
+    public int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,233 @@
+package org.oldskooler.webserver4j.staticfiles;
+
+import io.netty.buffer.ByteBufAllocator;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Size-bounded in-memory cache of small static files, keyed by request path.
+ * <p>
+ * Entries hold the file bytes and their compressed variants in pooled direct buffers along
+ * with ready-made headers, so a hit is served without any filesystem call. Hits take no lock;
+ * they only flag the entry as used. Loads, invalidations and evictions are serialized among
+ * themselves. Once the total size exceeds the byte budget, entries are evicted in load order,
+ * except that one flagged since the last pass gets another round (the CLOCK approximation of
+ * LRU). A {@link WebRootWatcher} drops entries as soon as their file or one of its sidecars
+ * changes, found through a sorted index of their paths; a load that raced with such a change
+ * is not stored.
+ */
+public final class StaticFileCache implements Closeable {
+    /** An entry in eviction order. */
+    private static final class Slot {
+        final String urlPath;
+        final CachedFile file;
+
+        Slot(String urlPath, CachedFile file) {
+            this.urlPath = urlPath;
+            this.file = file;
+        }
+    }
+
+    private final long maxBytes;
+    private final int maxFileSize;
+    private final ByteBufAllocator allocator;
+    private final ConcurrentHashMap<String, CachedFile> entries = new ConcurrentHashMap<>();
+    /** Paths with a {@link #loadAsync} in flight. */
+    private final Set<String> loading = ConcurrentHashMap.newKeySet();
+    /**
+     * Guards {@link #clock}, {@link #index} and changes to {@link #entries}, {@link #totalBytes}
+     * and {@link #generation}.
+     */
+    private final Object lock = new Object();
+    /** Entries in load order; ones replaced or dropped since are skipped when reached. */
+    private final ArrayDeque<Slot> clock = new ArrayDeque<>();
+    /** Request paths by the file they are backed by. */
+    private final PathIndex<String> index = new PathIndex<>();
+    private volatile long totalBytes;
+    private volatile long generation;
+
+    /**
+     * @param maxBytes    total size budget of all entries
+     * @param maxFileSize files larger than this are never cached
+     * @param allocator   allocator for the cached buffers
+     * @param watcher     watcher of the web root that invalidates changed entries
+     */
+    public StaticFileCache(long maxBytes, int maxFileSize, ByteBufAllocator allocator, WebRootWatcher watcher) {
+        this.maxBytes = maxBytes;
+        this.maxFileSize = maxFileSize;
+        this.allocator = allocator;
+        watcher.addListener(this::invalidate);
+    }
+
+    /**
+     * Looks up a cached file. The caller owns a reference and must {@link CachedFile#release()} it.
+     *
+     * @param urlPath request path without query string
+     * @return the entry, or null on a miss
+     */
+    public CachedFile get(String urlPath) {
+        CachedFile f = entries.get(urlPath);
+        if (f == null || !f.tryRetain()) return null;
+        if (!f.used) f.used = true;
+        return f;
+    }
+
+    /**
+     * Reads a file into the cache if it is small enough. This reads and compresses the file,
+     * so it should not run on an event loop; see {@link #loadAsync}.
+     * The caller owns a reference and must {@link CachedFile#release()} it.
+     *
+     * @param urlPath  request path the file was resolved from
+     * @param file     resolved file
+     * @param sidecars whether to pick up precompressed sidecars
+     * @return the new entry, or null if the file is too large or could not be read
+     */
+    public CachedFile load(String urlPath, File file, boolean sidecars) {
+        long length = file.length();
+        if (length > maxFileSize || length > maxBytes) return null;
+
+        long generation = this.generation;
+        CachedFile loaded;
+        try {
+            loaded = CachedFile.read(file, sidecars, allocator);
+        } catch (IOException e) {
+            return null;
+        }
+
+        synchronized (lock) {
+            // the file changed while it was read: serve this copy once, but do not keep it
+            if (generation != this.generation) return loaded;
+
+            CachedFile previous = entries.put(urlPath, loaded);
+            long total = totalBytes + loaded.weight;
+            if (previous != null) {
+                total -= previous.weight;
+                index.remove(previous.path, urlPath);
+                previous.release();
+            }
+            totalBytes = total;
+            index.add(loaded.path, urlPath);
+            clock.add(new Slot(urlPath, loaded));
+            CachedFile result = loaded.retain();
+            evict();
+            return result;
+        }
+    }
+
+    /**
+     * Reads a file into the cache on {@code executor}, unless a load of the same path is
+     * already under way. Requests keep being served from disk until it is done.
+     *
+     * @param urlPath  request path the file was resolved from
+     * @param file     resolved file
+     * @param sidecars whether to pick up precompressed sidecars
+     * @param executor executor to read the file on
+     */
+    public void loadAsync(String urlPath, File file, boolean sidecars, Executor executor) {
+        long length = file.length();
+        if (length > maxFileSize || length > maxBytes) return;
+        if (!loading.add(urlPath)) return;
+        try {
+            executor.execute(() -> {
+                try {
+                    CachedFile f = load(urlPath, file, sidecars);
+                    if (f != null) f.release();
+                } finally {
+                    loading.remove(urlPath);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // busy; a later request tries again
+            loading.remove(urlPath);
+        }
+    }
+
+    /**
+     * Advances the clock until the total fits the budget, and drops slots of entries that are
+     * gone once they outnumber the live ones. Holds {@link #lock}.
+     */
+    private void evict() {
+        while (totalBytes > maxBytes && !clock.isEmpty()) {
+            Slot head = clock.poll();
+            if (entries.get(head.urlPath) != head.file) continue;
+            if (head.file.used) {
+                head.file.used = false;
+                clock.add(head);
+            } else {
+                remove(head.urlPath, head.file);
+            }
+        }
+        while (clock.size() > 2 * entries.size() + 16) {
+            Slot head = clock.poll();
+            if (entries.get(head.urlPath) == head.file) clock.add(head);
+        }
+    }
+
+    /** Drops one entry. Holds {@link #lock}. */
+    private void remove(String urlPath, CachedFile f) {
+        if (entries.remove(urlPath, f)) {
+            index.remove(f.path, urlPath);
+            totalBytes -= f.weight;
+            f.release();
+        }
+    }
+
+    /**
+     * Drops every entry backed by {@code changed}, by a file below it, or by a file whose
+     * sidecar it is.
+     */
+    public void invalidate(Path changed) {
+        Path p = changed.toAbsolutePath().normalize();
+        String name = p.getFileName() == null ? "" : p.getFileName().toString();
+        Path base = name.endsWith(".br") || name.endsWith(".gz")
+                ? p.resolveSibling(name.substring(0, name.length() - 3))
+                : p;
+        synchronized (lock) {
+            generation++;
+            List<String> keys = index.under(p);
+            if (!base.equals(p)) keys.addAll(index.at(base));
+            for (String key : keys) {
+                CachedFile f = entries.get(key);
+                if (f != null) remove(key, f);
+            }
+            evict();
+        }
+    }
+
+    /** Drops all entries. */
+    public void clear() {
+        synchronized (lock) {
+            generation++;
+            for (CachedFile f : entries.values()) f.release();
+            entries.clear();
+            clock.clear();
+            index.clear();
+            totalBytes = 0;
+        }
+    }
+
+    /** @return number of cached paths */
+    public int size() {
+        return entries.size();
+    }
+
+    /** @return bytes currently held, including compressed variants */
+    public long bytes() {
+        return totalBytes;
+    }
+
+    /** Releases all cached buffers. */
+    @Override
+    public void close() {
+        clear();
+    }
+}
@@ -0,0 +1,155 @@
+package org.oldskooler.webserver4j.staticfiles;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory list of every regular file under the web root, loaded at startup so that path
+ * lookups never touch the filesystem.
+ * <p>
+ * The {@link WebRootWatcher} keeps it current: a changed path is re-read, and a new directory
+ * is walked. Files are kept per directory, so a change only touches the changed subtree.
+ * Suited to web roots that fit comfortably in memory; memory use grows with the number of
+ * files, not their size.
+ */
+public final class StaticFileIndex {
+    /** Files and subdirectories directly inside one directory. */
+    private static final class Dir {
+        final Set<Path> files = ConcurrentHashMap.newKeySet();
+        final Set<Path> dirs = ConcurrentHashMap.newKeySet();
+    }
+
+    private final Path root;
+    private final ConcurrentHashMap<Path, Dir> dirs = new ConcurrentHashMap<>();
+    private volatile int size;
+
+    /**
+     * Walks the web root. The index listens to the watcher before the walk, so files created
+     * meanwhile are not missed.
+     *
+     * @param watcher watcher of the web root
+     */
+    public StaticFileIndex(WebRootWatcher watcher) {
+        this.root = watcher.root();
+        watcher.addListener(this::refresh);
+        refresh(root);
+    }
+
+    /**
+     * @param resolved absolute, normalized path
+     * @return true if it names a regular file under the web root
+     */
+    public boolean contains(Path resolved) {
+        Path parent = resolved.getParent();
+        Dir d = parent == null ? null : dirs.get(parent);
+        return d != null && d.files.contains(resolved);
+    }
+
+    /** @return number of indexed files */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Re-reads {@code changed} and everything below it. New entries are added before stale
+     * ones are removed, so unchanged files never disappear from the index meanwhile.
+     */
+    public synchronized void refresh(Path changed) {
+        Path p = changed.toAbsolutePath().normalize();
+        if (!p.startsWith(root)) return;
+
+        Map<Path, Set<Path>> foundFiles = new HashMap<>();
+        Set<Path> foundDirs = new HashSet<>();
+        if (Files.isRegularFile(p)) {
+            foundFiles.computeIfAbsent(p.getParent(), k -> new HashSet<>()).add(p);
+        } else if (Files.isDirectory(p)) {
+            try {
+                Files.walkFileTree(p, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+                        new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                        foundDirs.add(dir.toAbsolutePath().normalize());
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        if (attrs.isRegularFile()) {
+                            Path f = file.toAbsolutePath().normalize();
+                            foundFiles.computeIfAbsent(f.getParent(), k -> new HashSet<>()).add(f);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException e) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException ignored) {
+                // unreadable entries were skipped by visitFileFailed; keep what was found
+            }
+        }
+
+        for (Path d : foundDirs) dir(d);
+        for (Map.Entry<Path, Set<Path>> e : foundFiles.entrySet()) {
+            Dir d = dir(e.getKey());
+            for (Path f : e.getValue()) {
+                if (d.files.add(f)) size++;
+            }
+        }
+
+        Path parent = p.getParent();
+        Dir parentDir = parent == null ? null : dirs.get(parent);
+        if (parentDir != null && !foundFiles.getOrDefault(parent, Collections.emptySet()).contains(p)
+                && parentDir.files.remove(p)) {
+            size--;
+        }
+        prune(p, foundDirs, foundFiles);
+    }
+
+    /** @return the node of directory {@code d}, created and linked to its parents if new */
+    private Dir dir(Path d) {
+        Dir node = dirs.get(d);
+        if (node == null) {
+            node = new Dir();
+            dirs.put(d, node);
+            Path parent = d.getParent();
+            if (!d.equals(root) && parent != null && parent.startsWith(root)) dir(parent).dirs.add(d);
+        }
+        return node;
+    }
+
+    /** Removes what is indexed below {@code d} but was not found by the last walk. */
+    private void prune(Path d, Set<Path> foundDirs, Map<Path, Set<Path>> foundFiles) {
+        Dir node = dirs.get(d);
+        if (node == null) return;
+        if (!foundDirs.contains(d)) {
+            removeTree(d);
+            Dir parent = d.getParent() == null ? null : dirs.get(d.getParent());
+            if (parent != null) parent.dirs.remove(d);
+            return;
+        }
+        Set<Path> keep = foundFiles.getOrDefault(d, Collections.emptySet());
+        for (Path f : node.files) {
+            if (!keep.contains(f) && node.files.remove(f)) size--;
+        }
+        for (Path child : new ArrayList<>(node.dirs)) prune(child, foundDirs, foundFiles);
+    }
+
+    private void removeTree(Path d) {
+        Dir node = dirs.remove(d);
+        if (node == null) return;
+        size -= node.files.size();
+        for (Path child : node.dirs) removeTree(child);
+    }
+}
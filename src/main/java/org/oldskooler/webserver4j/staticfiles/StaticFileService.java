@@ -1,27 +1,147 @@
 package org.oldskooler.webserver4j.staticfiles;
 
 import java.io.File;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.concurrent.Executor;
 
 /**
  * Resolves safe disk paths within a web root.
+ * <p>
+ * Also finds precompressed sidecars ({@code foo.js.br}, {@code foo.js.gz}) so they can be
+ * sent as stored instead of compressing the original on every request, and optionally keeps
+ * small files in a {@link StaticFileCache}. Path lookups can be answered from a
+ * {@link StaticFileIndex} loaded at startup or a {@link PathResolutionCache}, so misses stop
+ * costing a {@code stat} each.
  */
 public class StaticFileService {
+    /** Content codings with their sidecar suffix, in order of preference for equal quality. */
+    private static final String[][] SIDECARS = {{"br", ".br"}, {"gzip", ".gz"}};
+
     private final Path root;
+    private final boolean precompressed;
+    private final StaticFileCache cache;
+    private final String cacheControl;
+    private final PathResolutionCache paths;
+    private final StaticFileIndex index;
 
     public StaticFileService(String webRoot) {
+        this(webRoot, true, null, "no-cache", null, null);
+    }
+
+    /**
+     * @param webRoot       directory to serve
+     * @param precompressed whether to look for {@code .br} / {@code .gz} sidecars
+     * @param cache         in-memory cache for small files, or null to always read from disk
+     * @param cacheControl  Cache-Control header for static responses, or null to send none
+     * @param paths         cache of path lookups and misses, or null to check the disk every time
+     * @param index         preloaded list of all files, or null; takes precedence over {@code paths}
+     */
+    public StaticFileService(String webRoot, boolean precompressed, StaticFileCache cache, String cacheControl,
+                             PathResolutionCache paths, StaticFileIndex index) {
         this.root = Paths.get(webRoot).toAbsolutePath().normalize();
+        this.precompressed = precompressed;
+        this.cache = cache;
+        this.cacheControl = cacheControl;
+        this.paths = paths;
+        this.index = index;
+    }
+
+    /** @return Cache-Control value for static responses, or null */
+    public String cacheControl() {
+        return cacheControl;
+    }
+
+    /**
+     * Returns the cached copy of a path without touching the filesystem.
+     * The caller must {@link CachedFile#release()} the result.
+     *
+     * @param urlPath request path without query string
+     * @return cached file, or null if caching is off or the path is not cached
+     */
+    public CachedFile lookupCached(String urlPath) {
+        return cache == null ? null : cache.get(urlPath);
+    }
+
+    /**
+     * Loads a resolved file into the cache if it fits.
+     * The caller must {@link CachedFile#release()} the result.
+     *
+     * @param urlPath request path the file was resolved from
+     * @param file    file returned by {@link #resolve(String)}
+     * @return cached file, or null if caching is off or the file is too large
+     */
+    public CachedFile loadCached(String urlPath, File file) {
+        return cache == null ? null : cache.load(urlPath, file, precompressed);
+    }
+
+    /**
+     * Loads a resolved file into the cache on {@code executor}, for callers on an event loop.
+     *
+     * @param urlPath  request path the file was resolved from
+     * @param file     file returned by {@link #resolve(String)}
+     * @param executor executor to read the file on
+     */
+    public void loadCachedAsync(String urlPath, File file, Executor executor) {
+        if (cache != null) cache.loadAsync(urlPath, file, precompressed, executor);
+    }
+
+    /** @return the in-memory cache, or null if disabled */
+    public StaticFileCache cache() {
+        return cache;
     }
 
     /** Resolve a URL path to a safe file under the web root. */
     public File resolve(String urlPath) {
-        String p = urlPath.split("\\?")[0];
+        int q = urlPath.indexOf('?');
+        String p = q >= 0 ? urlPath.substring(0, q) : urlPath;
         if (p.equals("/") || p.isEmpty()) p = "/index.html";
         Path resolved = root.resolve("." + p).normalize();
         if (!resolved.startsWith(root)) return null; // path traversal protection
-        File f = resolved.toFile();
-        if (f.exists() && f.isFile()) return f;
-        return null;
+        return isFile(resolved) ? resolved.toFile() : null;
+    }
+
+    /**
+     * Checks for a regular file, answering from the index or the path cache when the path is
+     * under the web root, which they cover.
+     */
+    private boolean isFile(Path path) {
+        if (!path.startsWith(root)) return Files.isRegularFile(path);
+        if (index != null) return index.contains(path);
+        if (paths == null) return Files.isRegularFile(path);
+
+        PathResolutionCache.Lookup known = paths.get(path);
+        if (known != null) return known.file != null;
+        long generation = paths.generation();
+        boolean exists = Files.isRegularFile(path);
+        paths.put(path, exists ? path.toFile() : null, generation);
+        return exists;
+    }
+
+    /**
+     * Finds the best precompressed sidecar of {@code file} that the client accepts.
+     * Sidecars older than the file itself are considered stale and skipped.
+     *
+     * @param file           resolved original file
+     * @param acceptEncoding Accept-Encoding request header, may be null
+     * @return the variant to send, or null to send the original
+     */
+    public CompressedVariant findPrecompressed(File file, String acceptEncoding) {
+        if (!precompressed || acceptEncoding == null || acceptEncoding.isEmpty()) return null;
+        CompressedVariant best = null;
+        double bestQuality = 0;
+        long modified = -1;
+        for (String[] sidecar : SIDECARS) {
+            double q = AcceptEncoding.quality(acceptEncoding, sidecar[0]);
+            if (q <= bestQuality) continue;
+            File candidate = new File(file.getPath() + sidecar[1]);
+            if (!isFile(candidate.toPath().toAbsolutePath().normalize())) continue;
+            if (modified < 0) modified = file.lastModified();
+            if (candidate.lastModified() < modified) continue;
+            best = new CompressedVariant(candidate, sidecar[0]);
+            bestQuality = q;
+        }
+        return best;
     }
 }
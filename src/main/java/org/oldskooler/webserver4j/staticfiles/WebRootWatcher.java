@@ -0,0 +1,111 @@
+package org.oldskooler.webserver4j.staticfiles;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches the web root recursively and tells the static file caches what changed.
+ * <p>
+ * Listeners receive the changed file or directory. When events were lost, or the root itself
+ * went away, they receive the root, meaning everything below it may have changed. Listeners
+ * run on the watcher thread and must be cheap.
+ * <p>
+ * The tree is registered on construction, but events are only delivered after
+ * {@link #start()}; changes made in between are queued, so register the listeners first.
+ */
+public final class WebRootWatcher implements Closeable {
+    private final Path root;
+    private final WatchService watcher;
+    private final List<Consumer<Path>> listeners = new CopyOnWriteArrayList<>();
+    private final Thread thread;
+
+    /**
+     * Registers the directory tree; call {@link #start()} to begin delivering events.
+     *
+     * @param root web root to watch
+     * @throws IOException if the directory tree cannot be registered
+     */
+    public WebRootWatcher(Path root) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        this.watcher = FileSystems.getDefault().newWatchService();
+        if (Files.isDirectory(this.root)) registerTree(this.root);
+        this.thread = new Thread(this::watch, "webserver4j-static-watch");
+        this.thread.setDaemon(true);
+    }
+
+    /** Starts delivering events, including those queued since construction, to the listeners. */
+    public void start() {
+        thread.start();
+    }
+
+    /** @return the watched directory, absolute and normalized */
+    public Path root() {
+        return root;
+    }
+
+    /** Registers a listener for changed paths. */
+    public void addListener(Consumer<Path> listener) {
+        listeners.add(listener);
+    }
+
+    private void registerTree(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                d.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    fire(root);
+                    continue;
+                }
+                Path child = dir.resolve((Path) event.context());
+                if (event.kind() == ENTRY_CREATE && Files.isDirectory(child)) {
+                    try {
+                        registerTree(child);
+                    } catch (IOException ignored) {
+                        // directory vanished again before it could be watched
+                    }
+                }
+                fire(child);
+            }
+            if (!key.reset() && dir.equals(root)) {
+                fire(root);
+                return;
+            }
+        }
+    }
+
+    private void fire(Path changed) {
+        for (Consumer<Path> listener : listeners) {
+            listener.accept(changed);
+        }
+    }
+
+    /** Stops watching. */
+    @Override
+    public void close() throws IOException {
+        watcher.close();
+        thread.interrupt();
+    }
+}
@@ -0,0 +1,175 @@
+package org.oldskooler.webserver4j.template;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.handler.stream.ChunkedInput;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {{key}} template parsed once into alternating literal and placeholder segments, so
+ * rendering is a single pass that looks up each placeholder once.
+ * <p>
+ * Placeholders whose key is missing from the model are kept as they are; a key mapped to
+ * null renders as {@code "null"}.
+ * <p>
+ * The literal text is also kept UTF-8 encoded, so rendering into a {@link ByteBuf} or a
+ * {@link #stream stream} only encodes the values.
+ */
+public final class CompiledTemplate {
+    /** Rendering buffers larger than this are not kept for reuse. */
+    private static final int MAX_REUSED_CAPACITY = 64 * 1024;
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(1024));
+
+    private final String source;
+    /** One more literal than keys: {@code literals[0] keys[0] literals[1] ... literals[n]}. */
+    private final String[] literals;
+    private final String[] keys;
+    private final byte[][] literalBytes;
+    /** {@code "{{key}}"} for keys missing from the model. */
+    private final byte[][] placeholderBytes;
+    /** Output size without the values, to size the buffer. */
+    private final int literalLength;
+    private final int literalByteLength;
+
+    private CompiledTemplate(String source, String[] literals, String[] keys) {
+        this.source = source;
+        this.literals = literals;
+        this.keys = keys;
+        this.literalBytes = new byte[literals.length][];
+        this.placeholderBytes = new byte[keys.length][];
+        int n = 0;
+        int bytes = 0;
+        for (int i = 0; i < literals.length; i++) {
+            n += literals[i].length();
+            literalBytes[i] = literals[i].getBytes(StandardCharsets.UTF_8);
+            bytes += literalBytes[i].length;
+        }
+        for (int i = 0; i < keys.length; i++) {
+            placeholderBytes[i] = ("{{" + keys[i] + "}}").getBytes(StandardCharsets.UTF_8);
+        }
+        this.literalLength = n;
+        this.literalByteLength = bytes;
+    }
+
+    /**
+     * Parses template text.
+     *
+     * @param text template with {{key}} placeholders
+     * @return the parsed template
+     */
+    public static CompiledTemplate compile(String text) {
+        List<String> literals = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        int pos = 0;
+        while (true) {
+            int open = text.indexOf("{{", pos);
+            if (open < 0) break;
+            int close = text.indexOf("}}", open + 2);
+            if (close < 0) break;
+            // the innermost opening, so "{{{a}}}" holds the placeholder "{{a}}"
+            int start = text.lastIndexOf("{{", close - 2);
+            literals.add(text.substring(pos, start));
+            keys.add(text.substring(start + 2, close));
+            pos = close + 2;
+        }
+        literals.add(text.substring(pos));
+        return new CompiledTemplate(text, literals.toArray(new String[0]), keys.toArray(new String[0]));
+    }
+
+    /** @return encoded size of the literal text, a lower bound of the rendered size */
+    public int literalByteLength() {
+        return literalByteLength;
+    }
+
+    /** @return the template text this was compiled from */
+    public String source() {
+        return source;
+    }
+
+    /**
+     * @param model values by placeholder key; null renders the template unchanged
+     * @return the rendered text
+     */
+    public String render(Map<String, ?> model) {
+        if (model == null || keys.length == 0) return source;
+        StringBuilder out = BUFFER.get();
+        out.setLength(0);
+        render(model, out);
+        String result = out.toString();
+        if (out.capacity() > MAX_REUSED_CAPACITY) BUFFER.set(new StringBuilder(1024));
+        return result;
+    }
+
+    /**
+     * Appends the rendered text to {@code out}.
+     *
+     * @param model values by placeholder key; null appends the template unchanged
+     * @param out   destination
+     */
+    public void render(Map<String, ?> model, StringBuilder out) {
+        if (model == null) {
+            out.append(source);
+            return;
+        }
+        out.ensureCapacity(out.length() + literalLength + 16 * keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            out.append(literals[i]);
+            Object value = model.get(keys[i]);
+            if (value == null && !model.containsKey(keys[i])) {
+                out.append("{{").append(keys[i]).append("}}");
+            } else {
+                out.append(value);
+            }
+        }
+        out.append(literals[keys.length]);
+    }
+
+    /**
+     * Writes the rendered text to {@code out} as UTF-8.
+     *
+     * @param model values by placeholder key; null writes the template unchanged
+     * @param out   destination
+     */
+    public void render(Map<String, ?> model, ByteBuf out) {
+        for (int i = 0; i < keys.length; i++) {
+            out.writeBytes(literalBytes[i]);
+            Object value = model != null ? model.get(keys[i]) : null;
+            if (value == null && (model == null || !model.containsKey(keys[i]))) {
+                out.writeBytes(placeholderBytes[i]);
+            } else {
+                ByteBufUtil.writeUtf8(out, value instanceof CharSequence ? (CharSequence) value : String.valueOf(value));
+            }
+        }
+        out.writeBytes(literalBytes[keys.length]);
+    }
+
+    /**
+     * Renders lazily, one chunk at a time as the response is written, for pages too large to
+     * hold in memory at once. The model must not change until the stream is done.
+     *
+     * @param model     values by placeholder key; null streams the template unchanged
+     * @param chunkSize bytes per chunk
+     * @return the rendered text as a chunked input
+     */
+    public ChunkedInput<ByteBuf> stream(Map<String, ?> model, int chunkSize) {
+        return new TemplateStream(this, model, chunkSize);
+    }
+
+    /** @return number of segments: literals and placeholders alternating */
+    int segmentCount() {
+        return 2 * keys.length + 1;
+    }
+
+    /** @return segment {@code i} encoded as UTF-8; values are encoded on each call */
+    byte[] segmentBytes(int i, Map<String, ?> model) {
+        if ((i & 1) == 0) return literalBytes[i >> 1];
+        int k = i >> 1;
+        Object value = model != null ? model.get(keys[k]) : null;
+        if (value == null && (model == null || !model.containsKey(keys[k]))) return placeholderBytes[k];
+        return String.valueOf(value).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -1,19 +1,63 @@
 package org.oldskooler.webserver4j.template;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import org.oldskooler.webserver4j.controller.ActionResult;
+import org.oldskooler.webserver4j.http.HttpContext;
+import org.oldskooler.webserver4j.http.HttpResponseData;
+
 import java.util.Map;
 
 /**
  * Minimal template engine that replaces {{key}} with values.
+ * Templates are parsed once into a {@link CompiledTemplate}; placeholders without a value in
+ * the model are left as they are.
+ * <p>
+ * {@link #build} writes the page as UTF-8 straight into a pooled buffer. Pages whose literal
+ * text alone is {@value #STREAM_THRESHOLD} bytes or more are streamed in chunks as they are
+ * sent instead; the model must then not change after {@code build()} returns.
  */
 public class SimpleTemplateEngine extends TemplateEngine {
+    /** Literal size from which pages are streamed rather than rendered in one buffer. */
+    static final int STREAM_THRESHOLD = 256 * 1024;
+    private static final int CHUNK_SIZE = 32 * 1024;
+
     @Override
     public String render(String templateText, Map<String, Object> model) {
-        String out = templateText; // we treat templateName as the template text for simplicity
-        if (model == null) return out;
-        for (Map.Entry<String,Object> e : model.entrySet()) {
-            String key = "{{" + e.getKey() + "}}";
-            out = out.replace(key, String.valueOf(e.getValue()));
+        if (model == null) return templateText;
+        return CompiledTemplate.compile(templateText).render(model);
+    }
+
+    @Override
+    protected Object compile(String templateText) {
+        return CompiledTemplate.compile(templateText);
+    }
+
+    @Override
+    protected String renderCompiled(String templateText, Object compiled, Map<String, Object> model) {
+        return ((CompiledTemplate) compiled).render(model);
+    }
+
+    @Override
+    protected ActionResult buildCompiled(HttpContext ctx, String templateText, Object compiled,
+                                         Map<String, Object> model) {
+        CompiledTemplate template = (CompiledTemplate) compiled;
+        HttpResponseData response = ctx.response();
+        response.setStatus(200);
+        response.setContentType("text/html");
+
+        if (template.literalByteLength() >= STREAM_THRESHOLD) {
+            response.setStream(template.stream(model, CHUNK_SIZE));
+        } else {
+            ByteBuf out = ByteBufAllocator.DEFAULT.buffer(template.literalByteLength() + 256);
+            try {
+                template.render(model, out);
+            } catch (RuntimeException e) {
+                out.release();
+                throw e;
+            }
+            response.setContent(out);
         }
-        return out;
+        return ActionResult.fromResponse(response);
     }
 }
@@ -0,0 +1,67 @@
+package org.oldskooler.webserver4j.template;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Template files by path, read and compiled once. Each lookup checks the file's modification
+ * time and size, so an edited template is picked up on its next use without a restart.
+ */
+final class TemplateCache {
+    /** A template file as of one modification time. */
+    static final class Entry {
+        final long lastModified;
+        final long size;
+        final String text;
+        final Object compiled;
+
+        Entry(long lastModified, long size, String text, Object compiled) {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.text = text;
+            this.compiled = compiled;
+        }
+    }
+
+    private final ConcurrentHashMap<Path, Entry> entries = new ConcurrentHashMap<>();
+    private final Function<String, Object> compiler;
+
+    /**
+     * @param compiler turns template text into the engine's parsed form
+     */
+    TemplateCache(Function<String, Object> compiler) {
+        this.compiler = compiler;
+    }
+
+    /**
+     * @param path template file
+     * @return the current template, or null if there is no regular file at {@code path}
+     * @throws IOException if the file cannot be read
+     */
+    Entry get(Path path) throws IOException {
+        Path key = path.toAbsolutePath().normalize();
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(key, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            entries.remove(key);
+            return null;
+        }
+        if (!attrs.isRegularFile()) return null;
+
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        Entry e = entries.get(key);
+        if (e != null && e.lastModified == lastModified && e.size == attrs.size()) return e;
+
+        String text = new String(Files.readAllBytes(key), StandardCharsets.UTF_8);
+        e = new Entry(lastModified, attrs.size(), text, compiler.apply(text));
+        entries.put(key, e);
+        return e;
+    }
+}
@@ -4,74 +4,124 @@ import org.oldskooler.webserver4j.http.HttpContext;
 import org.oldskooler.webserver4j.controller.ActionResult;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Map;
 import java.util.Objects;
 
 /**
  * Pluggable template engine abstraction.
+ * <p>
+ * {@link #html}, {@link #file} and {@link #model} leave the engine unchanged and return a
+ * new view holding the template and model, so one engine can be shared by all requests,
+ * e.g. registered as a singleton.
+ * <p>
+ * Template files are read once and kept, together with the engine's parsed form of them,
+ * until they change on disk. Engines that can parse a template ahead of rendering override
+ * {@link #compile(String)} and {@link #renderCompiled}, and may override
+ * {@link #buildCompiled} to write the response body themselves.
  */
 public abstract class TemplateEngine {
-    private String templateText;
-    private Map<String, Object> model;
+    /** Engine that renders; {@code this}, or the engine a view was created from. */
+    private final TemplateEngine engine;
+    private final TemplateCache cache;
+    private final String templateText;
+    private final Object compiled;
+    private final Map<String, Object> model;
+
+    protected TemplateEngine() {
+        this.engine = this;
+        this.cache = new TemplateCache(this::compile);
+        this.templateText = null;
+        this.compiled = null;
+        this.model = null;
+    }
+
+    private TemplateEngine(TemplateEngine engine, String templateText, Object compiled, Map<String, Object> model) {
+        this.engine = engine;
+        this.cache = engine.cache;
+        this.templateText = templateText;
+        this.compiled = compiled;
+        this.model = model;
+    }
 
     /**
      * Set template string
+     *
+     * @return a view with this template and the current model
      */
     public TemplateEngine html(String templateText) {
-        this.templateText = templateText;
-        return this;
+        return new View(engine, templateText, null, model);
     }
 
     /**
      * Set template model
+     *
+     * @return a view with the current template and this model
      */
     public TemplateEngine model(Map<String, Object> model) {
-        this.model = model;
-        return this;
+        return new View(engine, templateText, compiled, model);
     }
 
     public abstract String render(String templateText, Map<String, Object> model);
 
+    /**
+     * Parses template text into a form that renders faster, see {@link #renderCompiled}. The
+     * result is cached with template files. By default templates are not parsed.
+     *
+     * @param templateText template source
+     * @return the parsed template, or null to render from the text
+     */
+    protected Object compile(String templateText) {
+        return null;
+    }
+
+    /**
+     * Renders a template parsed by {@link #compile(String)}. Only called when that returned
+     * a non-null value. By default the text is rendered with {@link #render(String, Map)}.
+     */
+    protected String renderCompiled(String templateText, Object compiled, Map<String, Object> model) {
+        return render(templateText, model);
+    }
+
+    /**
+     * Builds the response for a template parsed by {@link #compile(String)}. By default the
+     * result of {@link #renderCompiled} is sent as HTML.
+     */
+    protected ActionResult buildCompiled(HttpContext ctx, String templateText, Object compiled,
+                                         Map<String, Object> model) {
+        return ctx.html(renderCompiled(templateText, compiled, model));
+    }
+
     /**
      * Render a template file (lookup/load the template from disk or classpath).
-     * By default, unsupported unless overridden by a subclass.
+     * The file is read once and cached until its modification time or size changes.
+     *
+     * @return a view with this template and the current model
      */
     public TemplateEngine file(String fileName) {
         Objects.requireNonNull(fileName, "fileName must not be null");
 
-        String templateText = loadTemplate(fileName);
+        TemplateCache.Entry template = loadTemplate(fileName);
 
-        if (this.templateText == null) {
+        if (template == null) {
             throw new IllegalArgumentException("Template not found on classpath or filesystem: " + fileName);
         }
 
-        this.html(templateText);
-
-        return this;
+        return new View(engine, template.text, template.compiled, model);
     }
 
     /**
-     * Loads template text, first trying the classpath, then the filesystem.
+     * Loads template text from the filesystem, or from the cache if unchanged.
      * Interprets content as UTF-8.
      */
-    private static String loadTemplate(String nameOrPath) {
+    private TemplateCache.Entry loadTemplate(String nameOrPath) {
         Path p = FileSystems.getDefault().getPath(nameOrPath);
-
-        if (Files.exists(p) && Files.isRegularFile(p)) {
-            try {
-                byte[] bytes = Files.readAllBytes(p);
-                return new String(bytes, StandardCharsets.UTF_8);
-            } catch (IOException e) {
-                throw new RuntimeException("Failed to read template file: " + nameOrPath, e);
-            }
+        try {
+            return cache.get(p);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read template file: " + nameOrPath, e);
         }
-
-        // not found
-        return null;
     }
 
     /**
@@ -80,6 +130,24 @@ public abstract class TemplateEngine {
      */
     public ActionResult build(HttpContext ctx) {
         Objects.requireNonNull(ctx, "ctx");
-        return ctx.html(render(this.templateText, this.model));
+        Object c = compiled;
+        if (c == null && templateText != null) c = engine.compile(templateText);
+        if (c != null) return engine.buildCompiled(ctx, templateText, c, model);
+        return ctx.html(engine.render(templateText, model));
+    }
+
+    /** Template and model bound to an engine, which does the rendering. */
+    private static final class View extends TemplateEngine {
+        private final TemplateEngine engine;
+
+        View(TemplateEngine engine, String templateText, Object compiled, Map<String, Object> model) {
+            super(engine, templateText, compiled, model);
+            this.engine = engine;
+        }
+
+        @Override
+        public String render(String templateText, Map<String, Object> model) {
+            return engine.render(templateText, model);
+        }
     }
 }
@@ -0,0 +1,82 @@
+package org.oldskooler.webserver4j.template;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+
+import java.util.Map;
+
+/**
+ * Renders a {@link CompiledTemplate} into fixed-size chunks on demand, so only one chunk of
+ * a large page is in memory at a time.
+ */
+final class TemplateStream implements ChunkedInput<ByteBuf> {
+    private final CompiledTemplate template;
+    private final Map<String, ?> model;
+    private final int chunkSize;
+
+    /** Next segment to encode. */
+    private int segment;
+    /** Segment being copied, and how much of it was copied. */
+    private byte[] current;
+    private int offset;
+    private long progress;
+
+    TemplateStream(CompiledTemplate template, Map<String, ?> model, int chunkSize) {
+        this.template = template;
+        this.model = model;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public boolean isEndOfInput() {
+        return segment == template.segmentCount() && (current == null || offset == current.length);
+    }
+
+    @Override
+    public void close() {
+        segment = template.segmentCount();
+        current = null;
+    }
+
+    @Deprecated
+    @Override
+    public ByteBuf readChunk(ChannelHandlerContext ctx) {
+        return readChunk(ctx.alloc());
+    }
+
+    @Override
+    public ByteBuf readChunk(ByteBufAllocator allocator) {
+        if (isEndOfInput()) return null;
+        ByteBuf chunk = allocator.buffer(chunkSize);
+        try {
+            while (chunk.readableBytes() < chunkSize) {
+                if (current == null || offset == current.length) {
+                    if (segment == template.segmentCount()) break;
+                    current = template.segmentBytes(segment++, model);
+                    offset = 0;
+                    continue;
+                }
+                int n = Math.min(current.length - offset, chunkSize - chunk.readableBytes());
+                chunk.writeBytes(current, offset, n);
+                offset += n;
+                progress += n;
+            }
+        } catch (RuntimeException e) {
+            chunk.release();
+            throw e;
+        }
+        return chunk;
+    }
+
+    @Override
+    public long length() {
+        return -1;
+    }
+
+    @Override
+    public long progress() {
+        return progress;
+    }
+}
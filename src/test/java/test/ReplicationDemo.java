@@ -0,0 +1,61 @@
+package test;
+
+import org.oldskooler.webserver4j.http.HttpMethod;
+import org.oldskooler.webserver4j.server.WebServer;
+import org.oldskooler.webserver4j.session.Session;
+import org.oldskooler.webserver4j.session.SessionManager;
+import org.oldskooler.webserver4j.session.SessionReplicator;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Runs several nodes on localhost that replicate their sessions to each other.
+ * Node {@code i} serves HTTP on port {@code 8080 + i} and replicates on {@code 7001 + i}.
+ * <p>
+ * Browsers share cookies across ports of one host, so opening {@code /count} on one node
+ * and then on another keeps counting in the same session:
+ * <pre>
+ * curl -c jar -b jar http://localhost:8080/count
+ * curl -c jar -b jar http://localhost:8081/count
+ * </pre>
+ * Stop one node and start it again, and it receives all sessions back from the others.
+ */
+public class ReplicationDemo {
+    public static void main(String[] args) {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+        // demo only: real nodes share 32 or more random bytes
+        byte[] secret = Arrays.copyOf("replication-demo-secret".getBytes(StandardCharsets.UTF_8), 32);
+
+        for (int i = 0; i < nodes; i++) {
+            SessionReplicator.Builder replicator = new SessionReplicator.Builder()
+                    .listen("localhost", 7001 + i)
+                    .secret(secret);
+            for (int peer = 0; peer < nodes; peer++) {
+                if (peer != i) replicator.peer("localhost", 7001 + peer);
+            }
+
+            int port = 8080 + i;
+            WebServer server = new WebServer.Builder()
+                    .port(port)
+                    .sessions(new SessionManager.Builder().replicator(replicator.build()).build())
+                    .build();
+            server.routes().map(HttpMethod.GET, "/count", ctx -> {
+                Session session = ctx.session();
+                Integer count = (Integer) session.data().get("count");
+                count = count == null ? 1 : count + 1;
+                session.data().put("count", count);
+                return ctx.html("Node on port " + port + ": " + count + " requests in this session");
+            });
+
+            Thread thread = new Thread(() -> {
+                try {
+                    server.start();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "node-" + port);
+            thread.start();
+        }
+    }
+}